@@ -1,34 +1,101 @@
 package com.alessandrosestito.kdtree;
 
 import com.alessandrosestito.kdtree.impl.KDTreeBuilder;
+import com.alessandrosestito.kdtree.impl.KDTreeJoinCondition;
 import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import com.alessandrosestito.kdtree.impl.KDTreeListener;
+import com.alessandrosestito.kdtree.impl.KDTreeMemoryStats;
+import com.alessandrosestito.kdtree.impl.KDTreeNearestQuery;
+import com.alessandrosestito.kdtree.impl.KDTreeNearestResult;
+import com.alessandrosestito.kdtree.impl.KDTreePage;
 import com.alessandrosestito.kdtree.impl.KDTreeQuery;
 import com.alessandrosestito.kdtree.impl.KDTreeQueryBuilder;
+import com.alessandrosestito.kdtree.impl.KDTreeRegion;
+import com.alessandrosestito.kdtree.impl.KDTreeSubscription;
+import com.alessandrosestito.kdtree.impl.KDTreeVisitor;
 
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
-public interface KDTree<K extends KDTreeKey, V> {
+public interface KDTree<K extends KDTreeKey, V> extends AutoCloseable {
 
     static <K extends KDTreeKey, V> KDTreeBuilder<K, V> of(Class<K> keyClass, Class<V> ignoredValueClass) {
         return new KDTreeBuilder<>(keyClass);
     }
 
+    @SafeVarargs
+    @SuppressWarnings({"varargs"})
+    static <K extends KDTreeKey, V> KDTree<K, V> merge(KDTree<K, V> first, KDTree<K, V>... others) {
+        return first.merge(Arrays.asList(others));
+    }
+
     void insert(K key, V value);
 
+    void insert(K key, V value, Duration timeToLive);
+
+    void insertAll(Collection<Map.Entry<K, V>> entries);
+
     boolean delete(K key);
 
+    long deleteRange(KDTreeQuery<K, V> query);
+
+    boolean update(K key, V value);
+
+    V upsert(K key, V value);
+
+    boolean move(K oldKey, K newKey);
+
+    long moveAll(Map<K, K> moves);
+
+    long evictExpired();
+
     KDTreeQueryBuilder<K, V> query();
 
     List<Map.Entry<K, V>> find(KDTreeQuery<K, V> query);
 
+    KDTreePage<K, V> findPage(KDTreeQuery<K, V> query);
+
+    CompletableFuture<List<Map.Entry<K, V>>> findAsync(KDTreeQuery<K, V> query);
+
+    Flow.Publisher<Map.Entry<K, V>> publisher(KDTreeQuery<K, V> query);
+
+    List<List<Map.Entry<K, V>>> findAll(List<KDTreeQuery<K, V>> queries);
+
+    void visit(KDTreeQuery<K, V> query, KDTreeVisitor<K, V> visitor);
+
+    KDTreeNearestResult<K, V> nearest(KDTreeNearestQuery<K> query);
+
+    KDTreeSubscription<K, V> subscribe(KDTreeQuery<K, V> query, KDTreeListener<K, V> listener);
+
+    <W> void join(KDTree<K, W> other, KDTreeJoinCondition<K> condition, BiConsumer<Map.Entry<K, V>, Map.Entry<K, W>> consumer);
+
     Map.Entry<K, V> get(K key);
 
     boolean containsKey(K key);
 
     long size();
 
+    KDTreeMemoryStats memoryStats();
+
     void balance();
 
+    KDTree<K, V> merge(List<? extends KDTree<K, V>> others);
+
+    List<KDTree<K, V>> split(Predicate<K> predicate);
+
+    default List<KDTree<K, V>> split(KDTreeRegion<K> region) {
+        return split(region::contains);
+    }
+
     double score();
+
+    @Override
+    void close();
 }
@@ -9,5 +9,22 @@ public enum KDTreeExceptionType {
     FIELD_NOT_COMPARABLE,
     FIELD_NOT_IMMUTABLE,
     DUPLICATE_KEY,
-    AUTO_BALANCE_SCORE_THRESHOLD_RANGE
+    AUTO_BALANCE_SCORE_THRESHOLD_RANGE,
+    TIME_TO_LIVE_NOT_POSITIVE,
+    TOMBSTONE_RATIO_THRESHOLD_RANGE,
+    COMPACTION_FAILED,
+    MERGE_FAILED,
+    FEATURE_NOT_EXISTS,
+    BUFFER_CAPACITY_NOT_POSITIVE,
+    FEATURE_NOT_NUMERIC,
+    NEIGHBOURS_NOT_POSITIVE,
+    EPSILON_NEGATIVE,
+    VISIT_BUDGET_NOT_POSITIVE,
+    CURSOR_INVALIDATED,
+    ORDERED_QUERY_NOT_PAGEABLE,
+    REGION_INVALID,
+    VALUE_STORE_FAILED,
+    VALUE_NOT_EXISTS,
+    VALUE_STORE_BUDGET_NEGATIVE,
+    INCOMPATIBLE_OPTIONS
 }
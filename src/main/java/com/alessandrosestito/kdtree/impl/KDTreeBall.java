@@ -0,0 +1,65 @@
+package com.alessandrosestito.kdtree.impl;
+
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+class KDTreeBall<K extends KDTreeKey> implements KDTreeRegion<K> {
+
+    @Getter
+    private final List<String> features;
+    private final double[] center;
+    private final double squaredRadius;
+
+    KDTreeBall(Map<String, Double> center, double radius) {
+        if (center == null || center.isEmpty() || !(radius >= 0) || Double.isInfinite(radius)) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.REGION_INVALID, "a ball needs a center and a finite radius not negative: " + radius);
+        }
+        features = new ArrayList<>(center.keySet());
+        this.center = new double[features.size()];
+        for (int i = 0; i < this.center.length; i++) {
+            Double coordinate = center.get(features.get(i));
+            if (coordinate == null || !Double.isFinite(coordinate)) {
+                throw new KDTreeRuntimeException(KDTreeExceptionType.REGION_INVALID, "center of " + features.get(i) + " is not finite: " + coordinate);
+            }
+            this.center[i] = coordinate;
+        }
+        squaredRadius = radius * radius;
+    }
+
+    @Override
+    public boolean contains(double[] point) {
+        double distance = 0;
+        for (int i = 0; i < center.length; i++) {
+            double difference = point[i] - center[i];
+            distance += difference * difference;
+        }
+        return distance <= squaredRadius;
+    }
+
+    // the closest point of the box is the center clamped into it
+    @Override
+    public boolean intersects(double[] lower, double[] upper) {
+        double distance = 0;
+        for (int i = 0; i < center.length; i++) {
+            double offset = Math.max(0, Math.max(lower[i] - center[i], center[i] - upper[i]));
+            distance += offset * offset;
+        }
+        return distance <= squaredRadius;
+    }
+
+    // the farthest point of the box is a corner
+    @Override
+    public boolean contains(double[] lower, double[] upper) {
+        double distance = 0;
+        for (int i = 0; i < center.length; i++) {
+            double offset = Math.max(center[i] - lower[i], upper[i] - center[i]);
+            distance += offset * offset;
+        }
+        return distance <= squaredRadius;
+    }
+}
@@ -0,0 +1,43 @@
+package com.alessandrosestito.kdtree.impl;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+
+// region covered by a subtree, lower bounds are inclusive and upper bounds exclusive (inclusive for a single point), null is unbounded
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+class KDTreeBox {
+    private final Comparable<?>[] lower;
+    private final Comparable<?>[] upper;
+
+    static KDTreeBox unbounded(int dimensions) {
+        return new KDTreeBox(new Comparable<?>[dimensions], new Comparable<?>[dimensions]);
+    }
+
+    static KDTreeBox point(KDTreeKey key, int dimensions, boolean compactStorage) {
+        Comparable<?>[] values = new Comparable<?>[dimensions];
+        for (int axis = 0; axis < dimensions; axis++) {
+            values[axis] = KDTreeUtils.feature(key, axis, compactStorage);
+        }
+        return new KDTreeBox(values, values);
+    }
+
+    KDTreeBox left(int axis, Comparable<?> split) {
+        Comparable<?>[] bounds = upper.clone();
+        bounds[axis] = split;
+        return new KDTreeBox(lower, bounds);
+    }
+
+    KDTreeBox right(int axis, Comparable<?> split) {
+        Comparable<?>[] bounds = lower.clone();
+        bounds[axis] = split;
+        return new KDTreeBox(bounds, upper);
+    }
+
+    Comparable<?> getLower(int axis) {
+        return lower[axis];
+    }
+
+    Comparable<?> getUpper(int axis) {
+        return upper[axis];
+    }
+}
@@ -3,16 +3,45 @@ package com.alessandrosestito.kdtree.impl;
 import com.alessandrosestito.kdtree.KDTree;
 import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
 import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+import lombok.AccessLevel;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 
+import java.time.Clock;
 import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
 
 @RequiredArgsConstructor
+@Getter(AccessLevel.PACKAGE)
 public class KDTreeBuilder<K extends KDTreeKey, V> {
     private final Class<K> keyClass;
     private boolean autoBalance = false;
     private double autoBalanceScoreThreshold = 0.90;
     private Duration balanceInterval;
+    private Duration timeToLive;
+    private Clock clock = Clock.systemUTC();
+    private boolean tombstoneDeletes = false;
+    private double tombstoneRatioThreshold;
+    private ScheduledExecutorService scheduler;
+    private boolean hashIndex = false;
+    private boolean logarithmicMethod = false;
+    private int bufferCapacity;
+    private boolean zOrderIndex = false;
+    private boolean concurrentWriters = false;
+    private boolean compactStorage = false;
+    private final Set<String> secondaryIndexes = new LinkedHashSet<>();
+    private Executor subscriptionExecutor = ForkJoinPool.commonPool();
+    private int subscriptionBufferCapacity = Flow.defaultBufferSize();
+    private Executor asyncExecutor;
+    private KDTreeValueStore<V> valueStore;
+    // receives the value of every entry deleted or evicted, the value store backend releases the stored values with it
+    private Consumer<V> removalListener;
 
     public KDTreeBuilder<K, V> withAutoBalance(Duration interval) {
         autoBalance = true;
@@ -28,8 +57,125 @@ public class KDTreeBuilder<K extends KDTreeKey, V> {
         return this;
     }
 
+    public KDTreeBuilder<K, V> withTimeToLive(Duration timeToLive) {
+        KDTreeUtils.checkTimeToLive(timeToLive);
+        this.timeToLive = timeToLive;
+        return this;
+    }
+
+    public KDTreeBuilder<K, V> withClock(Clock clock) {
+        this.clock = clock;
+        return this;
+    }
+
+    public KDTreeBuilder<K, V> withTombstoneDeletes(double compactionThreshold) {
+        if (compactionThreshold <= 0 || compactionThreshold > 1) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.TOMBSTONE_RATIO_THRESHOLD_RANGE, "TombstoneDeletes compaction threshold range is (0,1]");
+        }
+        tombstoneDeletes = true;
+        tombstoneRatioThreshold = compactionThreshold;
+        return this;
+    }
+
+    public KDTreeBuilder<K, V> withScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    public KDTreeBuilder<K, V> withHashIndex() {
+        hashIndex = true;
+        return this;
+    }
+
+    public KDTreeBuilder<K, V> withLogarithmicMethod(int bufferCapacity) {
+        if (bufferCapacity <= 0) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.BUFFER_CAPACITY_NOT_POSITIVE, "buffer capacity must be positive");
+        }
+        logarithmicMethod = true;
+        this.bufferCapacity = bufferCapacity;
+        return this;
+    }
+
+    public KDTreeBuilder<K, V> withZOrderIndex() {
+        zOrderIndex = true;
+        return this;
+    }
+
+    public KDTreeBuilder<K, V> withConcurrentWriters() {
+        concurrentWriters = true;
+        return this;
+    }
+
+    public KDTreeBuilder<K, V> withCompactStorage() {
+        compactStorage = true;
+        return this;
+    }
+
+    public KDTreeBuilder<K, V> withSecondaryIndex(String featureName) {
+        secondaryIndexes.add(featureName);
+        return this;
+    }
+
+    public KDTreeBuilder<K, V> withSubscriptionExecutor(Executor executor, int bufferCapacity) {
+        if (bufferCapacity <= 0) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.BUFFER_CAPACITY_NOT_POSITIVE, "buffer capacity must be positive");
+        }
+        subscriptionExecutor = executor;
+        subscriptionBufferCapacity = bufferCapacity;
+        return this;
+    }
+
+    public KDTreeBuilder<K, V> withAsyncExecutor(Executor executor) {
+        asyncExecutor = executor;
+        return this;
+    }
+
+    public KDTreeBuilder<K, V> withValueStore(KDTreeValueStore<V> valueStore) {
+        this.valueStore = valueStore;
+        return this;
+    }
+
+    KDTreeBuilder<K, V> withRemovalListener(Consumer<V> removalListener) {
+        this.removalListener = removalListener;
+        return this;
+    }
+
     public KDTree<K, V> build() {
-        return new KDTreeImpl<>(keyClass, autoBalance, autoBalanceScoreThreshold, balanceInterval);
+        checkOptions();
+        if (valueStore != null) {
+            return new KDTreeStoredValuesImpl<>(this);
+        }
+        return buildBackend(null);
+    }
+
+    // the z-order index and the logarithmic method are backends of their own, they do not silently drop the options
+    // only the node tree implements. The logarithmic components are node trees, so they honour the hash index
+    private void checkOptions() {
+        if (zOrderIndex && logarithmicMethod) {
+            throw incompatible("withZOrderIndex cannot be combined with withLogarithmicMethod");
+        }
+        if (zOrderIndex && (hashIndex || tombstoneDeletes || concurrentWriters)) {
+            throw incompatible("withZOrderIndex cannot be combined with withHashIndex, withTombstoneDeletes or withConcurrentWriters");
+        }
+        if (logarithmicMethod && (tombstoneDeletes || concurrentWriters)) {
+            throw incompatible("withLogarithmicMethod cannot be combined with withTombstoneDeletes or withConcurrentWriters");
+        }
+    }
+
+    private KDTreeRuntimeException incompatible(String description) {
+        return new KDTreeRuntimeException(KDTreeExceptionType.INCOMPATIBLE_OPTIONS, description);
+    }
+
+    @SuppressWarnings({"unchecked"})
+    <W> KDTree<K, W> buildBackend(Consumer<W> removalListener) {
+        KDTreeBuilder<K, W> builder = ((KDTreeBuilder<K, W>) this).withRemovalListener(removalListener);
+        if (zOrderIndex) {
+            return new KDTreeZOrderImpl<>(builder);
+        }
+        if (logarithmicMethod) {
+            return new KDTreeLogarithmicImpl<>(builder);
+        }
+        return new KDTreeImpl<>(builder);
     }
 
 }
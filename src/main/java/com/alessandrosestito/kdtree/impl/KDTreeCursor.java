@@ -0,0 +1,15 @@
+package com.alessandrosestito.kdtree.impl;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+// an opaque continuation of an unordered query: the tree that produced it, its structure version at that time
+// and the position where the next page starts
+@AllArgsConstructor(access = AccessLevel.PACKAGE)
+@Getter(AccessLevel.PACKAGE)
+public class KDTreeCursor<K, V> {
+    private final Object tree;
+    private final long version;
+    private final Object position;
+}
@@ -0,0 +1,14 @@
+package com.alessandrosestito.kdtree.impl;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+@AllArgsConstructor
+@Getter
+@ToString
+public class KDTreeEvent<K, V> {
+    private final KDTreeEventType type;
+    private final K key;
+    private final V value;
+}
@@ -0,0 +1,7 @@
+package com.alessandrosestito.kdtree.impl;
+
+public enum KDTreeEventType {
+    INSERT,
+    UPDATE,
+    DELETE
+}
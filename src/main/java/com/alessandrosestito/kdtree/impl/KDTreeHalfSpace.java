@@ -0,0 +1,63 @@
+package com.alessandrosestito.kdtree.impl;
+
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+class KDTreeHalfSpace<K extends KDTreeKey> implements KDTreeRegion<K> {
+
+    @Getter
+    private final List<String> features;
+    private final double[] weights;
+    private final double threshold;
+
+    KDTreeHalfSpace(Map<String, Double> weights, double threshold) {
+        if (weights == null || weights.isEmpty() || !Double.isFinite(threshold)) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.REGION_INVALID, "a half-space needs some weights and a finite threshold");
+        }
+        features = new ArrayList<>(weights.keySet());
+        this.weights = new double[features.size()];
+        for (int i = 0; i < this.weights.length; i++) {
+            Double weight = weights.get(features.get(i));
+            if (weight == null || !Double.isFinite(weight)) {
+                throw new KDTreeRuntimeException(KDTreeExceptionType.REGION_INVALID, "weight of " + features.get(i) + " is not finite: " + weight);
+            }
+            this.weights[i] = weight;
+        }
+        this.threshold = threshold;
+    }
+
+    @Override
+    public boolean contains(double[] point) {
+        double sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i] * point[i];
+        }
+        return sum >= threshold;
+    }
+
+    // the weighted sum is linear, so its extremes over a box are on the corners picked by the signs of the weights
+    @Override
+    public boolean intersects(double[] lower, double[] upper) {
+        return extreme(lower, upper, true) >= threshold;
+    }
+
+    @Override
+    public boolean contains(double[] lower, double[] upper) {
+        return extreme(lower, upper, false) >= threshold;
+    }
+
+    private double extreme(double[] lower, double[] upper, boolean max) {
+        double sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] != 0) {
+                sum += weights[i] * (weights[i] > 0 == max ? upper[i] : lower[i]);
+            }
+        }
+        return sum;
+    }
+}
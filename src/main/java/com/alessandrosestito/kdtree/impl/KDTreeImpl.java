@@ -4,83 +4,493 @@ import com.alessandrosestito.kdtree.KDTree;
 import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
 import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
 
+import java.time.Clock;
 import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 public class KDTreeImpl<K extends KDTreeKey, V> implements KDTree<K, V> {
 
+    private static final int PARALLEL_BUILD_THRESHOLD = 1 << 13;
+    private static final ThreadLocal<ArrayDeque<KDTreeNode<?, ?>>> TRAVERSAL_STACK = ThreadLocal.withInitial(ArrayDeque::new);
+    @SuppressWarnings({"rawtypes"})
+    private static final AtomicLongFieldUpdater<KDTreeImpl> SIZE = AtomicLongFieldUpdater.newUpdater(KDTreeImpl.class, "size");
+    private static final AtomicLong IDS = new AtomicLong();
+
+    // unique for every tree, it orders the locks taken on two trees
+    private final long id = IDS.incrementAndGet();
+
+    private final KDTreeBuilder<K, V> builder;
     private final Map<Integer, String> features;
+    private final Map<String, Integer> featureIndexes;
     private final boolean withAutoBalance;
     private final double autoBalanceScoreThreshold;
     private final Duration interval;
-    private KDTreeNode<K, V> root;
-    private long size;
-    private ReentrantLock autoBalanceLock;
+    private final Duration timeToLive;
+    private final Clock clock;
+    private final NavigableMap<Long, List<K>> expirations;
+    private final boolean withTombstoneDeletes;
+    private final double tombstoneRatioThreshold;
+    private final boolean withConcurrentWriters;
+    private final boolean withCompactStorage;
+    private final List<Integer> secondaryAxes;
+    private final AtomicBoolean compactionScheduled;
+    private final AtomicReference<Throwable> compactionFailure;
+    private final AtomicBoolean rebalancing;
+    private final ReentrantReadWriteLock lock;
+    private final Executor asyncExecutor;
+    private ScheduledExecutorService scheduler;
+    private boolean ownScheduler;
+    private ScheduledFuture<?> scheduledBalance;
+    private List<Map.Entry<K, KDTreeNode<K, V>>> pendingWrites;
+    private Map<K, KDTreeNode<K, V>> keyIndex;
+    private List<KDTreeSecondaryIndex<K, V>> secondaryIndexes;
+    private final KDTreeSubscriptions<K, V> subscriptions;
+    private final Consumer<V> removalListener;
+    private volatile KDTreeNode<K, V> root;
+    private volatile long size;
+    private long tombstones;
+    // the keys marked as deleted since the last compaction, the compaction walks only the paths to them
+    private final Set<K> tombstoneKeys;
+    // changes whenever nodes are detached or rebuilt, the cursors saved before are invalidated
+    private long structureVersion;
 
 
     public KDTreeImpl(Class<K> clazz, boolean withAutoBalance, double autoBalanceScoreThreshold, Duration interval) {
+        this(legacyBuilder(clazz, withAutoBalance, autoBalanceScoreThreshold, interval));
+    }
+
+    KDTreeImpl(KDTreeBuilder<K, V> builder) {
+        this(builder, null);
+    }
+
+    KDTreeImpl(KDTreeBuilder<K, V> builder, KDTreeSubscriptions<K, V> subscriptions) {
+        this.builder = builder;
         AtomicInteger ai = new AtomicInteger();
-        features = KDTreeUtils.findIndexedFieldScan(clazz).stream()
+        features = KDTreeUtils.findIndexedFieldScan(builder.getKeyClass()).stream()
                 .map(field -> new AbstractMap.SimpleEntry<>(ai.getAndIncrement(), field.getName()))
                 .collect(Collectors.toMap(AbstractMap.SimpleEntry::getKey, AbstractMap.SimpleEntry::getValue));
-        this.withAutoBalance = withAutoBalance;
-        this.interval = interval;
-        this.autoBalanceScoreThreshold = autoBalanceScoreThreshold;
+        featureIndexes = features.entrySet().stream().collect(Collectors.toMap(Map.Entry::getValue, Map.Entry::getKey));
+        this.withAutoBalance = builder.isAutoBalance();
+        this.interval = builder.getBalanceInterval();
+        this.autoBalanceScoreThreshold = builder.getAutoBalanceScoreThreshold();
+        this.timeToLive = builder.getTimeToLive();
+        this.clock = builder.getClock();
+        expirations = new TreeMap<>();
+        this.withTombstoneDeletes = builder.isTombstoneDeletes();
+        this.tombstoneRatioThreshold = builder.getTombstoneRatioThreshold();
+        this.withConcurrentWriters = builder.isConcurrentWriters();
+        this.withCompactStorage = builder.isCompactStorage();
+        compactionScheduled = new AtomicBoolean(false);
+        compactionFailure = new AtomicReference<>();
+        rebalancing = new AtomicBoolean(false);
+        lock = new ReentrantReadWriteLock();
         root = null;
         size = 0;
+        tombstones = 0;
+        tombstoneKeys = new HashSet<>();
+        scheduler = builder.getScheduler();
+        keyIndex = builder.isHashIndex() ? newKeyIndex() : null;
+        for (String name : builder.getSecondaryIndexes()) {
+            if (!featureIndexes.containsKey(name)) {
+                throw new KDTreeRuntimeException(KDTreeExceptionType.FEATURE_NOT_EXISTS, "feature " + name + " is not indexed");
+            }
+        }
+        secondaryAxes = builder.getSecondaryIndexes().stream().map(featureIndexes::get).collect(Collectors.toList());
+        secondaryIndexes = newSecondaryIndexes();
+        asyncExecutor = builder.getAsyncExecutor() != null ? builder.getAsyncExecutor() : KDTreeUtils.defaultAsyncExecutor();
+        this.subscriptions = subscriptions != null ? subscriptions
+                : new KDTreeSubscriptions<>(features.size(), withCompactStorage, builder.getSubscriptionExecutor(), builder.getSubscriptionBufferCapacity());
+        removalListener = builder.getRemovalListener();
         manageAutoBalance();
     }
 
+    private static <K extends KDTreeKey, V> KDTreeBuilder<K, V> legacyBuilder(Class<K> clazz, boolean withAutoBalance, double autoBalanceScoreThreshold, Duration interval) {
+        KDTreeBuilder<K, V> builder = new KDTreeBuilder<K, V>(clazz).withAutoBalanceScoreThreshold(autoBalanceScoreThreshold);
+        if (withAutoBalance) {
+            builder.withAutoBalance(interval);
+        }
+        return builder;
+    }
+
     private void manageAutoBalance() {
         if (!withAutoBalance) {
             return;
         }
-        autoBalanceLock = new ReentrantLock();
-        Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(this::balance, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "kdtree-auto-balance");
+                thread.setDaemon(true);
+                return thread;
+            });
+            ownScheduler = true;
+        }
+        scheduledBalance = scheduler.scheduleAtFixedRate(this::balance, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (scheduledBalance != null) {
+            scheduledBalance.cancel(false);
+        }
+        if (ownScheduler) {
+            scheduler.shutdown();
+        }
+        subscriptions.close();
+        Throwable failure = compactionFailure.getAndSet(null);
+        if (failure != null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.COMPACTION_FAILED, "the tombstone compaction failed: " + failure);
+        }
     }
 
     @Override
     public void insert(K key, V value) {
+        insert(key, value, timeToLive, timeToLive != null);
+    }
+
+    @Override
+    public void insert(K key, V value, Duration timeToLive) {
+        KDTreeUtils.checkTimeToLive(timeToLive);
+        insert(key, value, timeToLive, true);
+    }
+
+    private void insert(K key, V value, Duration timeToLive, boolean expiring) {
         if (key == null) {
             throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "cannot insert data with null key");
         }
-        Runnable unlock = autoBalanceLock();
+        if (withConcurrentWriters && !expiring && insertConcurrently(key, value)) {
+            return;
+        }
+        Runnable unlock = writeLock();
+
+        try {
+            long now = clock.millis();
+            evictExpiredNodes(now);
+            insertEntry(key, value, now, timeToLive, expiring);
+        } finally {
+            unlock.run();
+        }
+    }
+
+    // the new leaf is attached with a compare and set under the read lock, so inserts on different paths run in parallel
+    // with each other and with the readers. An empty tree, expired nodes to evict or a tombstone to revive need the write lock
+    private boolean insertConcurrently(K key, V value) {
+        Runnable unlock = readLock();
 
+        try {
+            KDTreeNode<K, V> visited = root;
+            if (visited == null || (!expirations.isEmpty() && expirations.firstKey() <= clock.millis())) {
+                return false;
+            }
+            KDTreeNode<K, V> indexed = keyIndex != null ? keyIndex.get(key) : null;
+            if (indexed != null) {
+                if (indexed.isDeleted()) {
+                    return false;
+                }
+                throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_EXISTS, "key already exists into the tree");
+            }
+            KDTreeNode<K, V> node = KDTreeNode.<K, V>builder().key(key).value(value).build();
+            while (true) {
+                if (key.equals(visited.getKey())) {
+                    if (visited.isDeleted()) {
+                        return false;
+                    }
+                    throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_EXISTS, "key already exists into the tree");
+                }
+                int axis = visited.getAxis();
+                boolean goLeft = compareNodeFeature(visited.getKey(), key, axis) > 0;
+                KDTreeNode<K, V> next = goLeft ? visited.getLeft() : visited.getRight();
+                if (next == null) {
+                    node.setAxis((axis + 1) % features.size());
+                    if (goLeft ? visited.attachLeft(node) : visited.attachRight(node)) {
+                        break;
+                    }
+                    // another writer attached its node first, the descent goes on from that node
+                    continue;
+                }
+                visited = next;
+            }
+            index(key, node);
+            SIZE.incrementAndGet(this);
+            logWrite(key, node);
+            subscriptions.publish(KDTreeEventType.INSERT, key, value);
+            return true;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    private void insertEntry(K key, V value, long now, Duration timeToLive, boolean expiring) {
         KDTreeNode<K, V> node = KDTreeNode.<K, V>builder().key(key).value(value).build();
-        insertRec(root, node, 0);
+        if (expiring) {
+            node.setExpiresAt(now + timeToLive.toMillis());
+        }
+        node = insertNode(null, node);
+        trackExpiration(node);
+        logWrite(key, node);
+        subscriptions.publish(KDTreeEventType.INSERT, key, value);
+    }
+
+    @Override
+    public void insertAll(Collection<Map.Entry<K, V>> entries) {
+        KDTreeUtils.checkBatchKeys(entries);
+        Runnable unlock = writeLock();
+
+        try {
+            long now = clock.millis();
+            evictExpiredNodes(now);
+            List<KDTreeNode<K, V>> nodes = new ArrayList<>(entries.size());
+            for (Map.Entry<K, V> entry : entries) {
+                KDTreeNode<K, V> node = KDTreeNode.<K, V>builder().key(entry.getKey()).value(entry.getValue()).build();
+                if (timeToLive != null) {
+                    node.setExpiresAt(now + timeToLive.toMillis());
+                }
+                nodes.add(node);
+            }
+            for (KDTreeNode<K, V> node : insertBatch(nodes)) {
+                trackExpiration(node);
+                logWrite(node.getKey(), node);
+                subscriptions.publish(KDTreeEventType.INSERT, node.getKey(), node.getValue());
+            }
+        } finally {
+            unlock.run();
+        }
+    }
+
+    // partitions the batch down the tree once, then every group reaching a missing child is attached as a balanced subtree
+    private List<KDTreeNode<K, V>> insertBatch(List<KDTreeNode<K, V>> nodes) {
+        if (nodes.isEmpty()) {
+            return nodes;
+        }
+        List<Map.Entry<KDTreeNode<K, V>, KDTreeNode<K, V>>> revived = new ArrayList<>();
+        List<Map.Entry<KDTreeNode<K, V>, List<KDTreeNode<K, V>>>> attached = new ArrayList<>();
         if (root == null) {
-            root = node;
+            attached.add(new AbstractMap.SimpleImmutableEntry<>(null, nodes));
+        } else {
+            ArrayDeque<KDTreeNode<K, V>> stack = new ArrayDeque<>();
+            ArrayDeque<List<KDTreeNode<K, V>>> groups = new ArrayDeque<>();
+            stack.push(root);
+            groups.push(nodes);
+            while (!stack.isEmpty()) {
+                KDTreeNode<K, V> visited = stack.pop();
+                List<KDTreeNode<K, V>> left = new ArrayList<>();
+                List<KDTreeNode<K, V>> right = new ArrayList<>();
+                for (KDTreeNode<K, V> node : groups.pop()) {
+                    if (node.getKey().equals(visited.getKey())) {
+                        if (!visited.isDeleted()) {
+                            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_EXISTS, "key already exists into the tree");
+                        }
+                        revived.add(new AbstractMap.SimpleImmutableEntry<>(visited, node));
+                    } else if (compareNodeFeature(node.getKey(), visited.getKey(), visited.getAxis()) < 0) {
+                        left.add(node);
+                    } else {
+                        right.add(node);
+                    }
+                }
+                partitionBatch(visited, visited.getLeft(), left, stack, groups, attached);
+                partitionBatch(visited, visited.getRight(), right, stack, groups, attached);
+            }
         }
-        size++;
 
-        unlock.run();
+        List<KDTreeNode<K, V>> inserted = new ArrayList<>(nodes.size());
+        for (Map.Entry<KDTreeNode<K, V>, KDTreeNode<K, V>> revive : revived) {
+            replaceEntry(revive.getKey(), revive.getValue());
+            tombstones--;
+            inserted.add(revive.getKey());
+        }
+        for (Map.Entry<KDTreeNode<K, V>, List<KDTreeNode<K, V>>> attach : attached) {
+            KDTreeNode<K, V> parent = attach.getKey();
+            List<KDTreeNode<K, V>> group = attach.getValue();
+            inserted.addAll(group);
+            group.forEach(node -> index(node.getKey(), node));
+            if (parent == null) {
+                root = balanceRec(group, 0);
+            } else if (compareNodeFeature(group.get(0).getKey(), parent.getKey(), parent.getAxis()) < 0) {
+                parent.setLeft(balanceRec(group, parent.getAxis() + 1));
+            } else {
+                parent.setRight(balanceRec(group, parent.getAxis() + 1));
+            }
+        }
+        size += nodes.size();
+        return inserted;
+    }
+
+    private void partitionBatch(KDTreeNode<K, V> parent, KDTreeNode<K, V> child, List<KDTreeNode<K, V>> group,
+                                ArrayDeque<KDTreeNode<K, V>> stack, ArrayDeque<List<KDTreeNode<K, V>>> groups,
+                                List<Map.Entry<KDTreeNode<K, V>, List<KDTreeNode<K, V>>>> attached) {
+        if (group.isEmpty()) {
+            return;
+        }
+        if (child == null) {
+            attached.add(new AbstractMap.SimpleImmutableEntry<>(parent, group));
+        } else {
+            stack.push(child);
+            groups.push(group);
+        }
+    }
+
+    private void trackExpiration(KDTreeNode<K, V> node) {
+        if (node.getExpiresAt() != 0) {
+            expirations.computeIfAbsent(node.getExpiresAt(), expiresAt -> new ArrayList<>()).add(node.getKey());
+        }
+    }
+
+    @Override
+    public V upsert(K key, V value) {
+        if (key == null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "key cannot be null");
+        }
+        Runnable unlock = writeLock();
+
+        try {
+            long now = clock.millis();
+            evictExpiredNodes(now);
+            KDTreeNode<K, V> node = lookupNode(key);
+            if (node == null || node.isDeleted()) {
+                insertEntry(key, value, now, timeToLive, timeToLive != null);
+                return null;
+            }
+            V previous = node.getValue();
+            node.setValue(value);
+            logWrite(key, node);
+            subscriptions.publish(KDTreeEventType.UPDATE, key, value);
+            return previous;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public boolean move(K oldKey, K newKey) {
+        if (oldKey == null || newKey == null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "key cannot be null");
+        }
+        Runnable unlock = writeLock();
+
+        try {
+            evictExpiredNodes(clock.millis());
+            return moveNode(oldKey, newKey);
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public long moveAll(Map<K, K> moves) {
+        if (moves.containsKey(null) || moves.containsValue(null)) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "key cannot be null");
+        }
+        Runnable unlock = writeLock();
+
+        try {
+            evictExpiredNodes(clock.millis());
+            long moved = 0;
+            for (Map.Entry<K, K> move : moves.entrySet()) {
+                if (moveNode(move.getKey(), move.getValue())) {
+                    moved++;
+                }
+            }
+            return moved;
+        } finally {
+            unlock.run();
+        }
     }
 
 
     @Override
     public boolean delete(K key) {
+        return delete(key, true);
+    }
+
+    // an entry moved to another tree keeps its value, which is then not released to the removal listener
+    boolean delete(K key, boolean released) {
         if (root == null) {
             throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_NOT_EXISTS, "cannot delete node");
         }
         if (key == null) {
             throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "key cannot be null");
         }
-        Runnable unlock = autoBalanceLock();
+        Runnable unlock = writeLock();
+
+        try {
+            evictExpiredNodes(clock.millis());
+            KDTreeNode<K, V> node = subscriptions.isEmpty() && (removalListener == null || !released) ? null : lookupNode(key);
+            V value = node == null ? null : node.getValue();
+            boolean isDeleted = removeNode(key);
+            if (isDeleted) {
+                logWrite(key, null);
+                subscriptions.publish(KDTreeEventType.DELETE, key, value);
+                if (released) {
+                    notifyRemoval(value);
+                }
+            }
+            return isDeleted;
+        } finally {
+            unlock.run();
+        }
+    }
 
-        AtomicBoolean isDeleted = new AtomicBoolean(false);
-        root = deleteNodeRec(root, key, null, isDeleted);
-        if (isDeleted.get()) {
-            size--;
+    @Override
+    public long deleteRange(KDTreeQuery<K, V> query) {
+        Runnable unlock = writeLock();
+
+        try {
+            evictExpiredNodes(clock.millis());
+            long[] deleted = {0};
+            KDTreeFeatureBound<?>[] bounds = KDTreeUtils.boundsByAxis(query, featureIndexes);
+            KDTreeRegion<?> region = query.getRegion();
+            int[] axes = region == null ? null : KDTreeUtils.regionAxes(region, featureIndexes);
+            Predicate<KDTreeBox> reachable = region == null ? box -> true : box -> region.intersects(regionLower(box, axes), regionUpper(box, axes));
+            Predicate<KDTreeBox> detachable = query.getMatchFunction() != null ? box -> false : region == null ? box -> isContained(box, bounds)
+                    : box -> isContained(box, bounds) && region.contains(regionLower(box, axes), regionUpper(box, axes));
+            deleteRangeRec(bounds, query.getFilter(), reachable, detachable, deleted);
+            return deleted[0];
+        } finally {
+            unlock.run();
         }
+    }
 
-        unlock.run();
-        return isDeleted.get();
+    @Override
+    public boolean update(K key, V value) {
+        if (key == null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "key cannot be null");
+        }
+        Runnable unlock = writeLock();
+
+        try {
+            evictExpiredNodes(clock.millis());
+            KDTreeNode<K, V> node = lookupNode(key);
+            if (node == null || node.isDeleted()) {
+                return false;
+            }
+            node.setValue(value);
+            logWrite(key, node);
+            subscriptions.publish(KDTreeEventType.UPDATE, key, value);
+            return true;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public long evictExpired() {
+        Runnable unlock = writeLock();
+        try {
+            return evictExpiredNodes(clock.millis());
+        } finally {
+            unlock.run();
+        }
     }
 
     @Override
@@ -91,198 +501,1301 @@ public class KDTreeImpl<K extends KDTreeKey, V> implements KDTree<K, V> {
 
     @Override
     public List<Map.Entry<K, V>> find(KDTreeQuery<K, V> query) {
-        Runnable unlock = autoBalanceLock();
-
         List<Map.Entry<K, V>> results = new ArrayList<>();
-        findRec(root, query, results);
+        visit(query, KDTreeVisitor.of((key, value) -> results.add(new AbstractMap.SimpleImmutableEntry<>(key, value))));
+        return results;
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked"})
+    public KDTreePage<K, V> findPage(KDTreeQuery<K, V> query) {
+        Runnable unlock = readLock();
+        try {
+            List<KDTreeNode<K, V>> position = (List<KDTreeNode<K, V>>) KDTreeUtils.resumePosition(query, this, structureVersion);
+            ArrayDeque<KDTreeNode<K, V>> stack = position != null ? new ArrayDeque<>(position) : new ArrayDeque<>();
+            if (position == null && root != null) {
+                stack.push(root);
+            }
+            List<Map.Entry<K, V>> entries = new ArrayList<>();
+            boolean hasNext = pageNodes(stack, query, entries, clock.millis());
+            return new KDTreePage<>(entries, hasNext ? new KDTreeCursor<>(this, structureVersion, new ArrayList<>(stack)) : null);
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public void visit(KDTreeQuery<K, V> query, KDTreeVisitor<K, V> visitor) {
+        Runnable unlock = readLock();
+        try {
+            KDTreeSecondaryIndex<K, V> secondaryIndex = selectSecondaryIndex(query);
+            if (secondaryIndex != null) {
+                visitSecondaryIndex(secondaryIndex, query, visitor, clock.millis());
+                return;
+            }
+            if (!query.isOrdered()) {
+                visitNodes(root, query, visitor, clock.millis());
+                return;
+            }
+            for (KDTreeNode<K, V> node : orderedNodes(root, query, clock.millis())) {
+                if (!visitor.shouldContinue()) {
+                    return;
+                }
+                visitor.visit(node.getKey(), node.getValue());
+            }
+        } finally {
+            unlock.run();
+        }
+    }
 
-        unlock.run();
+
+    @Override
+    public KDTreeNearestResult<K, V> nearest(KDTreeNearestQuery<K> query) {
+        List<KDTreeNode<K, V>> roots = new ArrayList<>();
+        Runnable unlock = lockRoot(roots);
+        try {
+            return new KDTreeNearest<K, V>(query, features.size(), withCompactStorage, clock.millis()).search(roots);
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<Map.Entry<K, V>>> findAsync(KDTreeQuery<K, V> query) {
+        return CompletableFuture.supplyAsync(() -> find(query), asyncExecutor);
+    }
+
+    @Override
+    public Flow.Publisher<Map.Entry<K, V>> publisher(KDTreeQuery<K, V> query) {
+        return new KDTreePublisher<>(() -> find(query), asyncExecutor);
+    }
+
+    @Override
+    public List<List<Map.Entry<K, V>>> findAll(List<KDTreeQuery<K, V>> queries) {
+        List<List<Map.Entry<K, V>>> results = new ArrayList<>(queries.size());
+        for (int i = 0; i < queries.size(); i++) {
+            results.add(new ArrayList<>());
+        }
+        Runnable unlock = readLock();
+        try {
+            long now = clock.millis();
+            visitNodes(root, queries, results, now);
+            for (int i = 0; i < queries.size(); i++) {
+                if (queries.get(i).isOrdered()) {
+                    for (KDTreeNode<K, V> node : orderedNodes(root, queries.get(i), now)) {
+                        results.get(i).add(new AbstractMap.SimpleImmutableEntry<>(node.getKey(), node.getValue()));
+                    }
+                }
+            }
+        } finally {
+            unlock.run();
+        }
         return results;
     }
 
+    @Override
+    public KDTreeSubscription<K, V> subscribe(KDTreeQuery<K, V> query, KDTreeListener<K, V> listener) {
+        KDTreeFeatureBound<?>[] bounds = KDTreeUtils.boundsByAxis(query, featureIndexes);
+        return subscriptions.add(bounds, key -> isWithinBounds(bounds, key), query.getFilter(), listener);
+    }
+
+    @Override
+    public <W> void join(KDTree<K, W> other, KDTreeJoinCondition<K> condition, BiConsumer<Map.Entry<K, V>, Map.Entry<K, W>> consumer) {
+        if (!(other instanceof KDTreeImpl)) {
+            other.join(this, condition.reversed(), (otherEntry, entry) -> consumer.accept(entry, otherEntry));
+            return;
+        }
+        KDTreeImpl<K, W> otherTree = (KDTreeImpl<K, W>) other;
+        // the read locks are always taken in the same order, so two joins in opposite directions cannot deadlock
+        boolean thisFirst = id <= otherTree.id;
+        Runnable unlockFirst = thisFirst ? readLock() : otherTree.readLock();
+        Runnable unlockSecond = otherTree == this ? () -> {
+        } : thisFirst ? otherTree.readLock() : readLock();
+        try {
+            new KDTreeJoin<K, V, W>(featureIndexes, condition, consumer, withCompactStorage, otherTree.withCompactStorage, clock.millis()).run(root, otherTree.root);
+        } finally {
+            unlockSecond.run();
+            unlockFirst.run();
+        }
+    }
 
     @Override
     public Map.Entry<K, V> get(K key) {
-        List<Map.Entry<K, V>> res = query().lowerBound(key).upperBound(key).limit(1L).execute();
-        if (res.size() > 1) {
-            throw new KDTreeRuntimeException(KDTreeExceptionType.DUPLICATE_KEY, "this is a bug, there a 2 or more results with same key: " + res);
+        if (key == null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "key cannot be null");
         }
-        if (res.size() == 0) {
-            return null;
+        Runnable unlock = readLock();
+
+        try {
+            KDTreeNode<K, V> node = lookupNode(key);
+            if (node == null || node.isDeleted() || node.isExpired(clock.millis())) {
+                return null;
+            }
+            return new AbstractMap.SimpleImmutableEntry<>(node.getKey(), node.getValue());
+        } finally {
+            unlock.run();
         }
-        return res.get(0);
     }
 
 
     @Override
     public boolean containsKey(K key) {
-        return Optional.ofNullable(get(key)).isPresent();
+        return get(key) != null;
     }
 
 
     @Override
     public long size() {
-        return size;
+        // the replay of a balance moves the counter while it runs, so it is read under the lock
+        Runnable unlock = readLock();
+        try {
+            return size;
+        } finally {
+            unlock.run();
+        }
     }
 
 
+    @Override
+    public KDTreeMemoryStats memoryStats() {
+        Runnable unlock = readLock();
+        try {
+            KDTreeMemory memory = new KDTreeMemory();
+            List<KDTreeNode<K, V>> nodes = new ArrayList<>();
+            collectRec(root, nodes, Long.MIN_VALUE, true);
+            memory.addEntries(size);
+            memory.addStructure(nodes.size() * KDTreeMemory.shallow(KDTreeNode.class));
+            nodes.forEach(node -> memory.addKey(node.getKey()));
+            if (keyIndex != null) {
+                memory.addIndex(KDTreeMemory.hashMap(keyIndex.size()));
+            }
+            secondaryIndexes.forEach(secondaryIndex -> memory.addIndex(secondaryIndex.estimateBytes()));
+            memory.addExpirations(expirations);
+            return memory.toStats();
+        } finally {
+            unlock.run();
+        }
+    }
+
     @Override
     public void balance() {
         if (withAutoBalance && score() >= autoBalanceScoreThreshold) {
             return;
         }
 
-        Runnable unlock = autoBalanceLock();
+        if (!rebalancing.compareAndSet(false, true)) {
+            return;
+        }
 
-        List<Map.Entry<K, V>> nodes = query().execute();
-        root = balanceRec(nodes, 0);
+        try {
+            List<KDTreeNode<K, V>> nodes = new ArrayList<>();
+            Runnable unlock = writeLock();
+            try {
+                long now = clock.millis();
+                evictExpiredNodes(now);
+                collectRec(root, nodes, now, false);
+                nodes.replaceAll(this::copyNode);
+                pendingWrites = new ArrayList<>();
+            } finally {
+                unlock.run();
+            }
 
-        unlock.run();
+            KDTreeNode<K, V> balanced = null;
+            Map<K, KDTreeNode<K, V>> balancedIndex = null;
+            List<KDTreeSecondaryIndex<K, V>> balancedSecondaryIndexes = newSecondaryIndexes();
+            boolean built = false;
+            try {
+                if (keyIndex != null) {
+                    balancedIndex = newKeyIndex();
+                    for (KDTreeNode<K, V> node : nodes) {
+                        balancedIndex.put(node.getKey(), node);
+                    }
+                }
+                for (KDTreeSecondaryIndex<K, V> secondaryIndex : balancedSecondaryIndexes) {
+                    nodes.forEach(node -> secondaryIndex.put(node.getKey(), node));
+                }
+                balanced = balanceRec(nodes, 0);
+                built = true;
+            } finally {
+                unlock = writeLock();
+                try {
+                    if (built) {
+                        replayPendingWrites(balanced, balancedIndex, balancedSecondaryIndexes);
+                    }
+                    pendingWrites = null;
+                } finally {
+                    unlock.run();
+                }
+            }
+        } finally {
+            rebalancing.set(false);
+        }
     }
 
     @Override
     public double score() {
-        Runnable unlock = autoBalanceLock();
-        double score = Math.log(minDept(root)) / Math.log(maxDept(root));
-        unlock.run();
-        return score;
+        Runnable unlock = readLock();
+        try {
+            return Math.log(minDept(root)) / Math.log(maxDept(root));
+        } finally {
+            unlock.run();
+        }
     }
 
-    public int maxDept(KDTreeNode<K, V> node) {
-        if (node == null) {
-            return 0;
+    // the nodes of all the trees are loaded into a new tree with the options of this one, built balanced at once
+    @Override
+    public KDTree<K, V> merge(List<? extends KDTree<K, V>> others) {
+        List<KDTree<K, V>> trees = new ArrayList<>();
+        trees.add(this);
+        trees.addAll(others);
+        KDTreeImpl<K, V> merged = new KDTreeImpl<>(builder);
+        merged.loadBalanced(KDTreeUtils.liveNodes(trees));
+        return merged;
+    }
+
+    // the tree is left untouched, the matching keys and the others are loaded into two new trees
+    @Override
+    public List<KDTree<K, V>> split(Predicate<K> predicate) {
+        Map<Boolean, List<KDTreeNode<K, V>>> parts = liveNodes().stream().collect(Collectors.partitioningBy(node -> predicate.test(node.getKey())));
+        KDTreeImpl<K, V> matching = new KDTreeImpl<>(builder);
+        matching.loadBalanced(parts.get(true));
+        KDTreeImpl<K, V> others = new KDTreeImpl<>(builder);
+        others.loadBalanced(parts.get(false));
+        return List.of(matching, others);
+    }
+
+    List<KDTreeNode<K, V>> liveNodes() {
+        Runnable unlock = readLock();
+        try {
+            List<KDTreeNode<K, V>> nodes = new ArrayList<>();
+            collectRec(root, nodes, clock.millis(), false);
+            nodes.replaceAll(this::copyNode);
+            return nodes;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    void loadBalanced(List<KDTreeNode<K, V>> nodes) {
+        Runnable unlock = writeLock();
+        try {
+            if (root != null) {
+                throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_EXISTS, "cannot load nodes into a non empty tree");
+            }
+            for (KDTreeNode<K, V> node : nodes) {
+                index(node.getKey(), node);
+                trackExpiration(node);
+            }
+            root = balanceRec(nodes, 0);
+            size = nodes.size();
+            structureVersion++;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    // read locks the tree and adds its root, so many trees can be searched as one until the unlock
+    Runnable lockRoot(List<KDTreeNode<K, V>> roots) {
+        Runnable unlock = readLock();
+        roots.add(root);
+        return unlock;
+    }
+
+    KDTreeNode<K, V> getNode(K key) {
+        Runnable unlock = readLock();
+        try {
+            KDTreeNode<K, V> node = lookupNode(key);
+            if (node == null || node.isDeleted() || node.isExpired(clock.millis())) {
+                return null;
+            }
+            return copyNode(node);
+        } finally {
+            unlock.run();
         }
-        return 1 + Math.max(maxDept(node.getLeft()), maxDept(node.getRight()));
+    }
+
+    void replay(K key, KDTreeNode<K, V> node) {
+        Runnable unlock = writeLock();
+        try {
+            replayWrite(key, node == null ? null : copyNode(node));
+        } finally {
+            unlock.run();
+        }
+    }
+
+    void insertNode(KDTreeNode<K, V> node) {
+        Runnable unlock = writeLock();
+        try {
+            evictExpiredNodes(clock.millis());
+            KDTreeNode<K, V> inserted = insertNode(null, copyNode(node));
+            trackExpiration(inserted);
+            logWrite(inserted.getKey(), inserted);
+        } finally {
+            unlock.run();
+        }
+    }
+
+    public int maxDept(KDTreeNode<K, V> node) {
+        return levelDept(node, false);
     }
 
     public int minDept(KDTreeNode<K, V> node) {
+        return levelDept(node, true);
+    }
+
+    private int levelDept(KDTreeNode<K, V> node, boolean stopAtFirstMissingChild) {
         if (node == null) {
             return 0;
         }
-        return 1 + Math.min(minDept(node.getLeft()), minDept(node.getRight()));
+        ArrayDeque<KDTreeNode<K, V>> level = new ArrayDeque<>();
+        level.add(node);
+        int dept = 0;
+        while (!level.isEmpty()) {
+            dept++;
+            for (int i = level.size(); i > 0; i--) {
+                KDTreeNode<K, V> visited = level.poll();
+                if (stopAtFirstMissingChild && (visited.getLeft() == null || visited.getRight() == null)) {
+                    return dept;
+                }
+                if (visited.getLeft() != null) {
+                    level.add(visited.getLeft());
+                }
+                if (visited.getRight() != null) {
+                    level.add(visited.getRight());
+                }
+            }
+        }
+        return dept;
     }
 
-    private Runnable autoBalanceLock() {
-        if (withAutoBalance) {
-            autoBalanceLock.lock();
-            return () -> autoBalanceLock.unlock();
+    private Runnable readLock() {
+        lock.readLock().lock();
+        return lock.readLock()::unlock;
+    }
+
+    private Runnable writeLock() {
+        lock.writeLock().lock();
+        return lock.writeLock()::unlock;
+    }
+
+    // concurrent writers log under the read lock, the replay reads the log under the write lock
+    private void logWrite(K key, KDTreeNode<K, V> node) {
+        List<Map.Entry<K, KDTreeNode<K, V>>> pending = pendingWrites;
+        if (pending != null) {
+            synchronized (pending) {
+                pending.add(new AbstractMap.SimpleImmutableEntry<>(key, node == null ? null : copyNode(node)));
+            }
+        }
+    }
+
+    private Map<K, KDTreeNode<K, V>> newKeyIndex() {
+        return withConcurrentWriters ? new ConcurrentHashMap<>() : new HashMap<>();
+    }
+
+    private List<KDTreeSecondaryIndex<K, V>> newSecondaryIndexes() {
+        List<KDTreeSecondaryIndex<K, V>> indexes = new ArrayList<>(secondaryAxes.size());
+        secondaryAxes.forEach(axis -> indexes.add(new KDTreeSecondaryIndex<>(axis, withConcurrentWriters, withCompactStorage)));
+        return indexes;
+    }
+
+    // the hash index and the secondary indexes follow every key entering or leaving the tree
+    private void index(K key, KDTreeNode<K, V> node) {
+        if (keyIndex != null) {
+            keyIndex.put(key, node);
+        }
+        for (KDTreeSecondaryIndex<K, V> secondaryIndex : secondaryIndexes) {
+            secondaryIndex.put(key, node);
+        }
+    }
+
+    private void unindex(K key) {
+        if (keyIndex != null) {
+            keyIndex.remove(key);
+        }
+        for (KDTreeSecondaryIndex<K, V> secondaryIndex : secondaryIndexes) {
+            secondaryIndex.remove(key);
+        }
+    }
+
+    private void replayPendingWrites(KDTreeNode<K, V> balanced, Map<K, KDTreeNode<K, V>> balancedIndex,
+                                     List<KDTreeSecondaryIndex<K, V>> balancedSecondaryIndexes) {
+        long liveSize = size;
+        structureVersion++;
+        root = balanced;
+        keyIndex = balancedIndex;
+        secondaryIndexes = balancedSecondaryIndexes;
+        tombstones = 0;
+        tombstoneKeys.clear();
+        for (Map.Entry<K, KDTreeNode<K, V>> write : pendingWrites) {
+            replayWrite(write.getKey(), write.getValue());
+        }
+        size = liveSize;
+    }
+
+    private void replayWrite(K key, KDTreeNode<K, V> write) {
+        if (write == null) {
+            removeNode(key);
+            return;
+        }
+        KDTreeNode<K, V> node = lookupNode(key);
+        if (node != null && !node.isDeleted()) {
+            replaceEntry(node, write);
         } else {
-            return () -> {
-            };
+            insertNode(null, write);
         }
     }
 
-    private KDTreeNode<K, V> balanceRec(List<Map.Entry<K, V>> nodes, int depth) {
+    private KDTreeNode<K, V> lookupNode(K key) {
+        if (keyIndex != null) {
+            return keyIndex.get(key);
+        }
+        return findNodeRec(root, key);
+    }
 
-        if (nodes.size() == 0) {
-            return null;
+    private KDTreeNode<K, V> insertNode(KDTreeNode<K, V> subtree, KDTreeNode<K, V> node) {
+        KDTreeNode<K, V> inserted = keyIndex != null ? keyIndex.get(node.getKey()) : null;
+        if (inserted == null) {
+            inserted = insertRec(subtree == null ? root : subtree, node, 0);
+            if (root == null) {
+                root = inserted;
+            }
+        } else if (inserted.isDeleted()) {
+            replaceEntry(inserted, node);
+            tombstones--;
+        } else {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_EXISTS, "key already exists into the tree");
         }
+        index(inserted.getKey(), inserted);
+        size++;
+        return inserted;
+    }
 
-        int axis = depth % features.size();
-        if (nodes.size() == 1) {
-            return KDTreeNode.<K, V>builder().key(nodes.get(0).getKey()).value(nodes.get(0).getValue()).axis(axis).build();
+    private boolean moveNode(K oldKey, K newKey) {
+        List<KDTreeNode<K, V>> path = pathTo(oldKey, false);
+        if (path == null) {
+            return false;
+        }
+        if (oldKey.equals(newKey)) {
+            return true;
+        }
+        KDTreeNode<K, V> existing = lookupNode(newKey);
+        if (existing != null && !existing.isDeleted()) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_EXISTS, "key already exists into the tree");
+        }
+
+        int last = path.size() - 1;
+        KDTreeNode<K, V> node = path.get(last);
+        int subtree = 0;
+        while (subtree < last && isInChildRegion(path.get(subtree), path.get(subtree + 1), newKey)) {
+            subtree++;
+        }
+
+        KDTreeNode<K, V> moved = copyNode(node);
+        moved.setKey(newKey);
+        boolean sameCell = subtree == last && existing == null
+                && ((node.getLeft() == null && node.getRight() == null) || compareNodeFeature(newKey, oldKey, node.getAxis()) == 0);
+        if (sameCell) {
+            unindex(oldKey);
+            replaceEntry(node, moved);
+        } else {
+            // a tombstone of the new key may sit above the local subtree, so revive it from the root
+            KDTreeNode<K, V> start = existing == null ? path.get(subtree) : null;
+            if (withTombstoneDeletes) {
+                markTombstone(node);
+            } else {
+                KDTreeNode<K, V> replacement = unlinkNode(path);
+                if (start != null && start == node && replacement != node) {
+                    start = subtree == 0 ? null : path.get(subtree - 1);
+                }
+                size--;
+                unindex(oldKey);
+            }
+            moved = insertNode(start, moved);
+        }
+        trackExpiration(moved);
+        logWrite(oldKey, null);
+        logWrite(newKey, moved);
+        subscriptions.publish(KDTreeEventType.DELETE, oldKey, moved.getValue());
+        subscriptions.publish(KDTreeEventType.INSERT, newKey, moved.getValue());
+        return true;
+    }
+
+    private List<KDTreeNode<K, V>> pathTo(K key, boolean deleted) {
+        List<KDTreeNode<K, V>> path = new ArrayList<>();
+        KDTreeNode<K, V> node = root;
+        while (node != null) {
+            path.add(node);
+            if (node.getKey().equals(key)) {
+                return node.isDeleted() == deleted ? path : null;
+            }
+            node = compareNodeFeature(key, node.getKey(), node.getAxis()) < 0 ? node.getLeft() : node.getRight();
+        }
+        return null;
+    }
+
+    // the last node of the path is deleted inside its own subtree and the parent is linked to what replaces it
+    private KDTreeNode<K, V> unlinkNode(List<KDTreeNode<K, V>> path) {
+        int last = path.size() - 1;
+        KDTreeNode<K, V> node = path.get(last);
+        KDTreeNode<K, V> replacement = deleteNodeRec(node, node.getKey(), new AtomicBoolean(false));
+        structureVersion++;
+        if (last == 0) {
+            root = replacement;
+        } else if (path.get(last - 1).getLeft() == node) {
+            path.get(last - 1).setLeft(replacement);
+        } else {
+            path.get(last - 1).setRight(replacement);
+        }
+        return replacement;
+    }
+
+    private boolean isInChildRegion(KDTreeNode<K, V> parent, KDTreeNode<K, V> child, K key) {
+        int compare = compareNodeFeature(key, parent.getKey(), parent.getAxis());
+        return parent.getLeft() == child ? compare < 0 : compare >= 0;
+    }
+
+    private boolean removeNode(K key) {
+        if (withTombstoneDeletes) {
+            return markTombstone(lookupNode(key));
+        }
+        if (root == null) {
+            return false;
+        }
+        AtomicBoolean isDeleted = new AtomicBoolean(false);
+        root = deleteNodeRec(root, key, isDeleted);
+        if (isDeleted.get()) {
+            structureVersion++;
+            size--;
+            unindex(key);
+        }
+        return isDeleted.get();
+    }
+
+    // a subtree whose region is inside the bounds is detached at once, the first deleted node on a path
+    // rebuilds its subtree from the survivors, the other subtrees are only visited when reachable. Every node
+    // on the stack carries the link of its parent, so a detached or rebuilt subtree replaces it in place
+    private void deleteRangeRec(KDTreeFeatureBound<?>[] bounds, BiPredicate<K, V> matchFunction, Predicate<KDTreeBox> reachable,
+                                Predicate<KDTreeBox> detachable, long[] deleted) {
+        if (root == null) {
+            return;
+        }
+        ArrayDeque<KDTreeNode<K, V>> stack = new ArrayDeque<>();
+        ArrayDeque<KDTreeBox> boxes = new ArrayDeque<>();
+        ArrayDeque<Consumer<KDTreeNode<K, V>>> links = new ArrayDeque<>();
+        stack.push(root);
+        boxes.push(KDTreeBox.unbounded(features.size()));
+        links.push(rebuilt -> root = rebuilt);
+        while (!stack.isEmpty()) {
+            KDTreeNode<K, V> node = stack.pop();
+            KDTreeBox box = boxes.pop();
+            Consumer<KDTreeNode<K, V>> link = links.pop();
+            if (!reachable.test(box)) {
+                continue;
+            }
+            if (detachable.test(box)) {
+                List<KDTreeNode<K, V>> nodes = new ArrayList<>();
+                collectRec(node, nodes, Long.MIN_VALUE, true);
+                nodes.forEach(visited -> dropNode(visited, deleted));
+                link.accept(null);
+                continue;
+            }
+            if (isRangeDeleted(node, bounds, matchFunction)) {
+                List<KDTreeNode<K, V>> nodes = new ArrayList<>();
+                collectRec(node, nodes, Long.MIN_VALUE, true);
+                nodes.removeIf(visited -> {
+                    if (!visited.isDeleted() && !isRangeDeleted(visited, bounds, matchFunction)) {
+                        return false;
+                    }
+                    dropNode(visited, deleted);
+                    return true;
+                });
+                link.accept(balanceRec(nodes, node.getAxis()));
+                continue;
+            }
+            K key = node.getKey();
+            int axis = node.getAxis();
+            Comparable<?> split = KDTreeUtils.feature(key, axis, withCompactStorage);
+            if (node.getRight() != null && isRightReachable(bounds[axis], key, axis)) {
+                stack.push(node.getRight());
+                boxes.push(box.right(axis, split));
+                links.push(node::setRight);
+            }
+            if (node.getLeft() != null && isLeftReachable(bounds[axis], key, axis)) {
+                stack.push(node.getLeft());
+                boxes.push(box.left(axis, split));
+                links.push(node::setLeft);
+            }
+        }
+    }
+
+    private boolean isRangeDeleted(KDTreeNode<K, V> node, KDTreeFeatureBound<?>[] bounds, BiPredicate<K, V> matchFunction) {
+        return !node.isDeleted() && isWithinBounds(bounds, node.getKey()) && (matchFunction == null || matchFunction.test(node.getKey(), node.getValue()));
+    }
+
+    private void dropNode(KDTreeNode<K, V> node, long[] deleted) {
+        structureVersion++;
+        unindex(node.getKey());
+        if (node.isDeleted()) {
+            tombstones--;
+            tombstoneKeys.remove(node.getKey());
+            return;
         }
+        size--;
+        deleted[0]++;
+        logWrite(node.getKey(), null);
+        subscriptions.publish(KDTreeEventType.DELETE, node.getKey(), node.getValue());
+        notifyRemoval(node.getValue());
+    }
 
-        List<Map.Entry<K, V>> sorted = nodes.stream().parallel().sorted((o1, o2) -> compareNodeFeature(o1.getKey(), o2.getKey(), axis)).collect(Collectors.toList());
-        int pivotIndex = (int) Math.floor(sorted.size() / 2.0);
+    private void notifyRemoval(V value) {
+        if (removalListener != null) {
+            removalListener.accept(value);
+        }
+    }
 
-        while ((pivotIndex + 1) < sorted.size() && sorted.get(pivotIndex).getKey().equals(sorted.get(pivotIndex + 1).getKey())) {
-            pivotIndex++;
+    // the region upper bounds are exclusive, so a region ending on an upper bound is still inside it
+    @SuppressWarnings({"unchecked"})
+    private boolean isContained(KDTreeBox box, KDTreeFeatureBound<?>[] bounds) {
+        for (int axis = 0; axis < bounds.length; axis++) {
+            KDTreeFeatureBound<?> bound = bounds[axis];
+            if (bound == null) {
+                continue;
+            }
+            if (bound.getLowerBound() != null && (box.getLower(axis) == null || ((Comparable<Object>) box.getLower(axis)).compareTo(bound.getLowerBound()) < 0)) {
+                return false;
+            }
+            if (bound.getUpperBound() != null && (box.getUpper(axis) == null || ((Comparable<Object>) box.getUpper(axis)).compareTo(bound.getUpperBound()) > 0)) {
+                return false;
+            }
         }
+        return true;
+    }
 
-        List<Map.Entry<K, V>> left;
-        List<Map.Entry<K, V>> right;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private KDTreeNode<K, V> balanceRec(List<KDTreeNode<K, V>> nodes, int depth) {
+        KDTreeNode<K, V>[] array = nodes.toArray(new KDTreeNode[0]);
+        return balanceRec(array, 0, array.length, depth);
+    }
 
-        if (sorted.size() == 2) {
-            left = List.of(sorted.get(0));
-            right = List.of();
+    // every level splits on the median found by a linear selection instead of a sort, the two halves of a large
+    // subtree are built in parallel
+    private KDTreeNode<K, V> balanceRec(KDTreeNode<K, V>[] nodes, int from, int to, int depth) {
+        if (from == to) {
+            return null;
+        }
+        int axis = depth % features.size();
+        if (to - from == 1) {
+            return attachChildren(nodes[from], axis, null, null);
+        }
+        int pivot = selectMedian(nodes, from, to, axis);
+        KDTreeNode<K, V> left;
+        KDTreeNode<K, V> right;
+        if (to - from >= PARALLEL_BUILD_THRESHOLD) {
+            ForkJoinTask<KDTreeNode<K, V>> leftTask = ForkJoinTask.adapt(() -> balanceRec(nodes, from, pivot, depth + 1)).fork();
+            right = balanceRec(nodes, pivot + 1, to, depth + 1);
+            left = leftTask.join();
         } else {
-            left = sorted.subList(0, pivotIndex);
-            right = sorted.subList(pivotIndex + 1, sorted.size());
+            left = balanceRec(nodes, from, pivot, depth + 1);
+            right = balanceRec(nodes, pivot + 1, to, depth + 1);
         }
+        return attachChildren(nodes[pivot], axis, left, right);
+    }
 
-        KDTreeNode<K, V> nl = balanceRec(left, depth + 1);
-        KDTreeNode<K, V> nr = balanceRec(right, depth + 1);
+    // quickselect with a three-way partition, the split is the first node equal to the median: the nodes before it
+    // are strictly lower on the axis and the nodes after it greater or equal, like insertRec does
+    private int selectMedian(KDTreeNode<K, V>[] nodes, int from, int to, int axis) {
+        int median = from + (to - from) / 2;
+        int low = from;
+        int high = to;
+        while (true) {
+            K pivot = nodes[low + ThreadLocalRandom.current().nextInt(high - low)].getKey();
+            int lower = low;
+            int equal = low;
+            int greater = high;
+            while (equal < greater) {
+                int compare = compareNodeFeature(nodes[equal].getKey(), pivot, axis);
+                if (compare < 0) {
+                    swap(nodes, lower++, equal++);
+                } else if (compare > 0) {
+                    swap(nodes, equal, --greater);
+                } else {
+                    equal++;
+                }
+            }
+            if (median < lower) {
+                high = lower;
+            } else if (median >= greater) {
+                low = greater;
+            } else {
+                return lower;
+            }
+        }
+    }
 
+    private void swap(KDTreeNode<K, V>[] nodes, int i, int j) {
+        KDTreeNode<K, V> node = nodes[i];
+        nodes[i] = nodes[j];
+        nodes[j] = node;
+    }
+
+    private KDTreeNode<K, V> attachChildren(KDTreeNode<K, V> node, int axis, KDTreeNode<K, V> left, KDTreeNode<K, V> right) {
+        node.setAxis(axis);
+        node.setLeft(left);
+        node.setRight(right);
+        return node;
+    }
+
+    private KDTreeNode<K, V> copyNode(KDTreeNode<K, V> node) {
         return KDTreeNode.<K, V>builder()
-                .key(sorted.get(pivotIndex).getKey())
-                .value(sorted.get(pivotIndex).getValue())
-                .axis(axis)
-                .left(nl)
-                .right(nr)
+                .key(node.getKey())
+                .value(node.getValue())
+                .expiresAt(node.getExpiresAt())
                 .build();
     }
 
-    private void findRec(KDTreeNode<K, V> node, KDTreeQuery<K, V> query, List<Map.Entry<K, V>> results) {
+    private void collectRec(KDTreeNode<K, V> node, List<KDTreeNode<K, V>> nodes, long now, boolean withTombstones) {
         if (node == null) {
             return;
         }
+        ArrayDeque<KDTreeNode<K, V>> stack = new ArrayDeque<>();
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            KDTreeNode<K, V> visited = stack.pop();
+            if ((withTombstones || !visited.isDeleted()) && !visited.isExpired(now)) {
+                nodes.add(visited);
+            }
+            if (visited.getRight() != null) {
+                stack.push(visited.getRight());
+            }
+            if (visited.getLeft() != null) {
+                stack.push(visited.getLeft());
+            }
+        }
+    }
 
-        if (query.getLimit() != null && results.size() >= query.getLimit()) {
-            return;
+    // the buckets give the expired keys and every expired node is unlinked where it sits: a leaf is detached from its
+    // parent and an inner node is replaced from its own subtree, so the work follows the expired entries and not the
+    // size of the tree. Tombstones are only marked
+    private long evictExpiredNodes(long now) {
+        if (expirations.isEmpty() || expirations.firstKey() > now) {
+            return 0;
         }
+        long[] evicted = {0};
+        NavigableMap<Long, List<K>> expired = expirations.headMap(now, true);
+        for (List<K> keys : expired.values()) {
+            for (K key : keys) {
+                if (withTombstoneDeletes) {
+                    KDTreeNode<K, V> node = lookupNode(key);
+                    if (node != null && node.isExpired(now) && markTombstone(node)) {
+                        logWrite(key, null);
+                        subscriptions.publish(KDTreeEventType.DELETE, key, node.getValue());
+                        notifyRemoval(node.getValue());
+                        evicted[0]++;
+                    }
+                    continue;
+                }
+                List<KDTreeNode<K, V>> path = pathTo(key, false);
+                if (path != null && path.get(path.size() - 1).isExpired(now)) {
+                    KDTreeNode<K, V> node = copyNode(path.get(path.size() - 1));
+                    unlinkNode(path);
+                    dropNode(node, evicted);
+                }
+            }
+        }
+        expired.clear();
+        return evicted[0];
+    }
+
+    private boolean markTombstone(KDTreeNode<K, V> node) {
+        if (node == null || node.isDeleted()) {
+            return false;
+        }
+        node.setDeleted(true);
+        tombstoneKeys.add(node.getKey());
+        size--;
+        tombstones++;
+        if (tombstones > tombstoneRatioThreshold * (size + tombstones) && compactionScheduled.compareAndSet(false, true)) {
+            try {
+                CompletableFuture.runAsync(this::compact, scheduler != null ? scheduler : ForkJoinPool.commonPool())
+                        .exceptionally(e -> {
+                            compactionFailure.compareAndSet(null, e instanceof CompletionException ? e.getCause() : e);
+                            return null;
+                        });
+            } catch (RejectedExecutionException e) {
+                compactionScheduled.set(false);
+            }
+        }
+        return true;
+    }
+
+    // only the paths to the tombstones are walked, from the deepest nodes up: a subtree whose deleted nodes pass the
+    // threshold is rebuilt without them, and counting its nodes stops as soon as there are too many to pass it. A
+    // failed compaction is scheduled again by the next delete and reported by close
+    private void compact() {
+        Runnable unlock = writeLock();
+        try {
+            Map<KDTreeNode<K, V>, KDTreeNode<K, V>> parents = new IdentityHashMap<>();
+            List<List<KDTreeNode<K, V>>> byDepth = new ArrayList<>();
+            tombstoneKeys.removeIf(key -> {
+                List<KDTreeNode<K, V>> path = pathTo(key, true);
+                if (path == null) {
+                    return true;
+                }
+                for (int depth = 0; depth < path.size(); depth++) {
+                    KDTreeNode<K, V> node = path.get(depth);
+                    if (!parents.containsKey(node)) {
+                        parents.put(node, depth == 0 ? null : path.get(depth - 1));
+                        while (byDepth.size() <= depth) {
+                            byDepth.add(new ArrayList<>());
+                        }
+                        byDepth.get(depth).add(node);
+                    }
+                }
+                return false;
+            });
+            Map<KDTreeNode<K, V>, Long> deletedBelow = new IdentityHashMap<>();
+            for (int depth = byDepth.size() - 1; depth >= 0; depth--) {
+                for (KDTreeNode<K, V> node : byDepth.get(depth)) {
+                    long deleted = (node.isDeleted() ? 1 : 0) + deletedBelow.getOrDefault(node, 0L);
+                    KDTreeNode<K, V> parent = parents.get(node);
+                    if (countNodes(node, (long) (deleted / tombstoneRatioThreshold)) * tombstoneRatioThreshold < deleted) {
+                        KDTreeNode<K, V> rebuilt = rebuildSubtree(node);
+                        if (parent == null) {
+                            root = rebuilt;
+                        } else if (parent.getLeft() == node) {
+                            parent.setLeft(rebuilt);
+                        } else {
+                            parent.setRight(rebuilt);
+                        }
+                        deleted = 0;
+                    }
+                    if (parent != null) {
+                        deletedBelow.merge(parent, deleted, Long::sum);
+                    }
+                }
+            }
+        } finally {
+            compactionScheduled.set(false);
+            unlock.run();
+        }
+    }
 
-        boolean inBounds = true;
+    // counts the nodes of the subtree, stopping as soon as there are more than the limit
+    private long countNodes(KDTreeNode<K, V> node, long limit) {
+        long count = 0;
+        ArrayDeque<KDTreeNode<K, V>> stack = new ArrayDeque<>();
+        stack.push(node);
+        while (!stack.isEmpty() && count <= limit) {
+            KDTreeNode<K, V> visited = stack.pop();
+            count++;
+            if (visited.getLeft() != null) {
+                stack.push(visited.getLeft());
+            }
+            if (visited.getRight() != null) {
+                stack.push(visited.getRight());
+            }
+        }
+        return count;
+    }
 
-        if (query.hasFeatureBounds()) {
-            inBounds = isNodeWithinFeatureBounds(query.getBoundsMap(), node.getKey());
+    private KDTreeNode<K, V> rebuildSubtree(KDTreeNode<K, V> node) {
+        if (node == null) {
+            return null;
         }
+        structureVersion++;
+        List<KDTreeNode<K, V>> nodes = new ArrayList<>();
+        collectRec(node, nodes, Long.MIN_VALUE, true);
+        nodes.removeIf(visited -> {
+            if (!visited.isDeleted()) {
+                return false;
+            }
+            tombstones--;
+            tombstoneKeys.remove(visited.getKey());
+            unindex(visited.getKey());
+            return true;
+        });
+        return balanceRec(nodes, node.getAxis());
+    }
 
-        if (inBounds && (query.getMatchFunction() == null || query.getMatchFunction().test(node.getKey(), node.getValue()))) {
-            results.add(new AbstractMap.SimpleImmutableEntry<>(node.getKey(), node.getValue()));
+    private KDTreeNode<K, V> findNodeRec(KDTreeNode<K, V> node, K key) {
+        while (node != null && !node.getKey().equals(key)) {
+            node = compareNodeFeature(key, node.getKey(), node.getAxis()) < 0 ? node.getLeft() : node.getRight();
         }
+        return node;
+    }
 
-        KDTreeFeatureBound<?> bound = findFeatureBounds(query, node);
-        if (bound == null) {
-            findRec(node.getLeft(), query, results);
-            findRec(node.getRight(), query, results);
+    @SuppressWarnings({"unchecked"})
+    private void visitNodes(KDTreeNode<K, V> node, KDTreeQuery<K, V> query, KDTreeVisitor<K, V> visitor, long now) {
+        if (node == null) {
+            return;
+        }
+        if (query.getRegion() != null) {
+            visitRegion(node, query, visitor, now);
             return;
         }
+        KDTreeFeatureBound<?>[] bounds = KDTreeUtils.boundsByAxis(query, featureIndexes);
+        BiPredicate<K, V> matchFunction = query.getMatchFunction();
+        long limit = query.getLimit() == null ? Long.MAX_VALUE : query.getLimit();
+        long matches = 0;
+
+        ArrayDeque<KDTreeNode<K, V>> stack = (ArrayDeque<KDTreeNode<K, V>>) (ArrayDeque<?>) TRAVERSAL_STACK.get();
+        if (!stack.isEmpty()) {
+            stack = new ArrayDeque<>();
+        }
+        try {
+            stack.push(node);
+            while (!stack.isEmpty() && matches < limit && visitor.shouldContinue()) {
+                KDTreeNode<K, V> visited = stack.pop();
+                K key = visited.getKey();
+
+                if (!visited.isDeleted() && !visited.isExpired(now) && isWithinBounds(bounds, key)
+                        && (matchFunction == null || matchFunction.test(key, visited.getValue()))) {
+                    visitor.visit(key, visited.getValue());
+                    matches++;
+                }
 
-        boolean lbLowerThenNode = compareNodeFeatureWithBound(bound.getLowerBound(), node.getKey(), bound.getName()) < 0;
-        boolean ubGreaterThenNode = compareNodeFeatureWithBound(bound.getUpperBound(), node.getKey(), bound.getName()) >= 0;
+                KDTreeFeatureBound<?> bound = bounds[visited.getAxis()];
+                if (visited.getRight() != null && isRightReachable(bound, key, visited.getAxis())) {
+                    stack.push(visited.getRight());
+                }
+                if (visited.getLeft() != null && isLeftReachable(bound, key, visited.getAxis())) {
+                    stack.push(visited.getLeft());
+                }
+            }
+        } finally {
+            stack.clear();
+        }
+    }
 
-        if (lbLowerThenNode && ubGreaterThenNode) {
-            findRec(node.getLeft(), query, results);
-            findRec(node.getRight(), query, results);
-        } else if (lbLowerThenNode) {
-            findRec(node.getLeft(), query, results);
-        } else if (ubGreaterThenNode) {
-            findRec(node.getRight(), query, results);
+    // a kd-tree prunes on a feature only at one level in k, so a bound on a single feature is answered by its secondary
+    // index. Among many bounds an indexed one is used when its range holds at most 1/32 of the entries. An ordered
+    // query uses the index of its ordering feature only, whose values come out already sorted
+    private KDTreeSecondaryIndex<K, V> selectSecondaryIndex(KDTreeQuery<K, V> query) {
+        if (secondaryIndexes.isEmpty() || !query.hasFeatureBounds()) {
+            return null;
         }
+        KDTreeFeatureBound<?>[] bounds = KDTreeUtils.boundsByAxis(query, featureIndexes);
+        Integer orderAxis = query.isOrdered() ? featureIndexes.get(query.getOrderBy()) : null;
+        for (KDTreeSecondaryIndex<K, V> secondaryIndex : secondaryIndexes) {
+            KDTreeFeatureBound<?> bound = bounds[secondaryIndex.getAxis()];
+            if (bound == null || (query.isOrdered() && !Objects.equals(orderAxis, secondaryIndex.getAxis()))) {
+                continue;
+            }
+            if (query.getBoundsMap().size() == 1 || secondaryIndex.isWithin(bound, size >> 5)) {
+                return secondaryIndex;
+            }
+        }
+        return null;
     }
 
-    private void insertRec(KDTreeNode<K, V> visitedNode, KDTreeNode<K, V> nodeToInsert, int depth) {
-        int k = features.size();
-        int axis = depth % k;
+    private void visitSecondaryIndex(KDTreeSecondaryIndex<K, V> secondaryIndex, KDTreeQuery<K, V> query, KDTreeVisitor<K, V> visitor, long now) {
+        KDTreeFeatureBound<?>[] bounds = KDTreeUtils.boundsByAxis(query, featureIndexes);
+        BiPredicate<K, V> filter = query.getFilter();
+        long limit = query.getLimit() == null ? Long.MAX_VALUE : query.getLimit();
+        long matches = 0;
+        boolean descending = query.isOrdered() && query.getDirection() == KDTreeSortDirection.DESC;
+        for (Map<K, KDTreeNode<K, V>> sameValue : secondaryIndex.range(bounds[secondaryIndex.getAxis()], descending)) {
+            for (KDTreeNode<K, V> visited : sameValue.values()) {
+                if (matches >= limit || !visitor.shouldContinue()) {
+                    return;
+                }
+                K key = visited.getKey();
+                if (!visited.isDeleted() && !visited.isExpired(now) && isWithinBounds(bounds, key)
+                        && (filter == null || filter.test(key, visited.getValue()))) {
+                    visitor.visit(key, visited.getValue());
+                    matches++;
+                }
+            }
+        }
+    }
 
-        if (visitedNode == null) {
-            nodeToInsert.setAxis(axis);
+    // a subtree whose box misses the region is pruned, the nodes of a subtree whose box is inside it skip the point test
+    private void visitRegion(KDTreeNode<K, V> node, KDTreeQuery<K, V> query, KDTreeVisitor<K, V> visitor, long now) {
+        KDTreeFeatureBound<?>[] bounds = KDTreeUtils.boundsByAxis(query, featureIndexes);
+        KDTreeRegion<?> region = query.getRegion();
+        int[] axes = KDTreeUtils.regionAxes(region, featureIndexes);
+        BiPredicate<K, V> matchFunction = query.getMatchFunction();
+        BiPredicate<K, V> filter = query.getFilter();
+        long limit = query.getLimit() == null ? Long.MAX_VALUE : query.getLimit();
+        long matches = 0;
+
+        ArrayDeque<KDTreeNode<K, V>> stack = new ArrayDeque<>();
+        ArrayDeque<KDTreeBox> boxes = new ArrayDeque<>();
+        ArrayDeque<Boolean> inside = new ArrayDeque<>();
+        stack.push(node);
+        boxes.push(KDTreeBox.unbounded(features.size()));
+        inside.push(false);
+        while (!stack.isEmpty() && matches < limit && visitor.shouldContinue()) {
+            KDTreeNode<K, V> visited = stack.pop();
+            KDTreeBox box = boxes.pop();
+            boolean contained = inside.pop();
+            if (!contained) {
+                double[] lower = regionLower(box, axes);
+                double[] upper = regionUpper(box, axes);
+                if (!region.intersects(lower, upper)) {
+                    continue;
+                }
+                contained = region.contains(lower, upper);
+            }
+            K key = visited.getKey();
+
+            BiPredicate<K, V> test = contained ? matchFunction : filter;
+            if (!visited.isDeleted() && !visited.isExpired(now) && isWithinBounds(bounds, key)
+                    && (test == null || test.test(key, visited.getValue()))) {
+                visitor.visit(key, visited.getValue());
+                matches++;
+            }
+
+            int axis = visited.getAxis();
+            Comparable<?> split = KDTreeUtils.feature(key, axis, withCompactStorage);
+            if (visited.getRight() != null && isRightReachable(bounds[axis], key, axis)) {
+                stack.push(visited.getRight());
+                boxes.push(box.right(axis, split));
+                inside.push(contained);
+            }
+            if (visited.getLeft() != null && isLeftReachable(bounds[axis], key, axis)) {
+                stack.push(visited.getLeft());
+                boxes.push(box.left(axis, split));
+                inside.push(contained);
+            }
+        }
+    }
+
+    // the box is taken as closed on the region features, which only makes the region tests more conservative
+    private double[] regionLower(KDTreeBox box, int[] axes) {
+        double[] lower = new double[axes.length];
+        for (int i = 0; i < axes.length; i++) {
+            Comparable<?> value = box.getLower(axes[i]);
+            lower[i] = value == null ? Double.NEGATIVE_INFINITY : KDTreeRegion.toDouble(value, features.get(axes[i]));
+        }
+        return lower;
+    }
+
+    private double[] regionUpper(KDTreeBox box, int[] axes) {
+        double[] upper = new double[axes.length];
+        for (int i = 0; i < axes.length; i++) {
+            Comparable<?> value = box.getUpper(axes[i]);
+            upper[i] = value == null ? Double.POSITIVE_INFINITY : KDTreeRegion.toDouble(value, features.get(axes[i]));
+        }
+        return upper;
+    }
+
+    // the first match after a full page is pushed back unexpanded, so the stack resumes on it and is saved only when an entry follows
+    private boolean pageNodes(ArrayDeque<KDTreeNode<K, V>> stack, KDTreeQuery<K, V> query, List<Map.Entry<K, V>> entries, long now) {
+        KDTreeFeatureBound<?>[] bounds = KDTreeUtils.boundsByAxis(query, featureIndexes);
+        BiPredicate<K, V> matchFunction = query.getFilter();
+        long limit = query.getLimit() == null ? Long.MAX_VALUE : query.getLimit();
+        while (!stack.isEmpty()) {
+            KDTreeNode<K, V> visited = stack.pop();
+            K key = visited.getKey();
+
+            if (!visited.isDeleted() && !visited.isExpired(now) && isWithinBounds(bounds, key)
+                    && (matchFunction == null || matchFunction.test(key, visited.getValue()))) {
+                if (entries.size() >= limit) {
+                    stack.push(visited);
+                    return true;
+                }
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(key, visited.getValue()));
+            }
+
+            KDTreeFeatureBound<?> bound = bounds[visited.getAxis()];
+            if (visited.getRight() != null && isRightReachable(bound, key, visited.getAxis())) {
+                stack.push(visited.getRight());
+            }
+            if (visited.getLeft() != null && isLeftReachable(bound, key, visited.getAxis())) {
+                stack.push(visited.getLeft());
+            }
+        }
+        return false;
+    }
+
+    // one traversal for many queries, each subtree is visited with the queries whose bounds can still reach it
+    private void visitNodes(KDTreeNode<K, V> node, List<KDTreeQuery<K, V>> queries, List<List<Map.Entry<K, V>>> results, long now) {
+        int count = queries.size();
+        if (node == null || count == 0) {
+            return;
+        }
+        KDTreeFeatureBound<?>[][] bounds = new KDTreeFeatureBound<?>[count][];
+        long[] remaining = new long[count];
+        int[] active = new int[count];
+        int activeCount = 0;
+        for (int i = 0; i < count; i++) {
+            KDTreeQuery<K, V> query = queries.get(i);
+            bounds[i] = KDTreeUtils.boundsByAxis(query, featureIndexes);
+            remaining[i] = query.getLimit() == null ? Long.MAX_VALUE : query.getLimit();
+            if (!query.isOrdered()) {
+                active[activeCount++] = i;
+            }
+        }
+        if (activeCount == 0) {
             return;
         }
 
-        if (nodeToInsert.getKey().equals(visitedNode.getKey())) {
-            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_EXISTS, "key already exists into the tree");
+        ArrayDeque<KDTreeNode<K, V>> stack = new ArrayDeque<>();
+        ArrayDeque<int[]> activeQueries = new ArrayDeque<>();
+        stack.push(node);
+        activeQueries.push(Arrays.copyOf(active, activeCount));
+        int[] left = new int[count];
+        int[] right = new int[count];
+        while (!stack.isEmpty()) {
+            KDTreeNode<K, V> visited = stack.pop();
+            K key = visited.getKey();
+            int axis = visited.getAxis();
+            boolean live = !visited.isDeleted() && !visited.isExpired(now);
+            int leftCount = 0;
+            int rightCount = 0;
+            for (int i : activeQueries.pop()) {
+                if (remaining[i] == 0) {
+                    continue;
+                }
+                BiPredicate<K, V> matchFunction = queries.get(i).getFilter();
+                if (live && isWithinBounds(bounds[i], key) && (matchFunction == null || matchFunction.test(key, visited.getValue()))) {
+                    results.get(i).add(new AbstractMap.SimpleImmutableEntry<>(key, visited.getValue()));
+                    if (--remaining[i] == 0) {
+                        continue;
+                    }
+                }
+                if (visited.getLeft() != null && isLeftReachable(bounds[i][axis], key, axis)) {
+                    left[leftCount++] = i;
+                }
+                if (visited.getRight() != null && isRightReachable(bounds[i][axis], key, axis)) {
+                    right[rightCount++] = i;
+                }
+            }
+            if (rightCount > 0) {
+                stack.push(visited.getRight());
+                activeQueries.push(Arrays.copyOf(right, rightCount));
+            }
+            if (leftCount > 0) {
+                stack.push(visited.getLeft());
+                activeQueries.push(Arrays.copyOf(left, leftCount));
+            }
         }
+    }
 
-        if (compareNodeFeature(visitedNode.getKey(), nodeToInsert.getKey(), axis) > 0) {
-            if (visitedNode.getLeft() == null) {
-                nodeToInsert.setAxis((axis + 1) % k);
-                visitedNode.setLeft(nodeToInsert);
-            } else {
-                insertRec(visitedNode.getLeft(), nodeToInsert, depth + 1);
+    // keeps the k best entries in a heap, a subtree is pruned when the split bounds of its ancestors on the ordering feature cannot beat the k-th best
+    @SuppressWarnings({"unchecked"})
+    private List<KDTreeNode<K, V>> orderedNodes(KDTreeNode<K, V> node, KDTreeQuery<K, V> query, long now) {
+        Integer orderAxis = featureIndexes.get(query.getOrderBy());
+        if (orderAxis == null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.FEATURE_NOT_EXISTS, "feature " + query.getOrderBy() + " is not indexed");
+        }
+        boolean descending = query.getDirection() == KDTreeSortDirection.DESC;
+        long limit = query.getLimit() == null ? Long.MAX_VALUE : query.getLimit();
+        if (node == null || limit <= 0) {
+            return new ArrayList<>();
+        }
+        KDTreeFeatureBound<?>[] bounds = KDTreeUtils.boundsByAxis(query, featureIndexes);
+        BiPredicate<K, V> matchFunction = query.getFilter();
+        Comparator<KDTreeNode<K, V>> ascending = (o1, o2) -> compareNodeFeature(o1.getKey(), o2.getKey(), orderAxis);
+        Comparator<KDTreeNode<K, V>> best = descending ? ascending.reversed() : ascending;
+        PriorityQueue<KDTreeNode<K, V>> kept = new PriorityQueue<>(best.reversed());
+
+        // every range holds the lower (inclusive) and upper (exclusive) split bounds of the subtree on the ordering feature
+        ArrayDeque<KDTreeNode<K, V>> stack = new ArrayDeque<>();
+        ArrayDeque<Comparable<?>[]> ranges = new ArrayDeque<>();
+        stack.push(node);
+        ranges.push(new Comparable<?>[2]);
+        while (!stack.isEmpty()) {
+            KDTreeNode<K, V> visited = stack.pop();
+            Comparable<?>[] range = ranges.pop();
+            KDTreeNode<K, V> worst = kept.size() >= limit ? kept.peek() : null;
+            if (worst != null && !canBeat(range, worst.getKey(), orderAxis, descending)) {
+                continue;
             }
-        } else {
-            if (visitedNode.getRight() == null) {
+
+            K key = visited.getKey();
+            if (!visited.isDeleted() && !visited.isExpired(now) && isWithinBounds(bounds, key)
+                    && (matchFunction == null || matchFunction.test(key, visited.getValue()))) {
+                if (worst == null) {
+                    kept.add(visited);
+                } else if (best.compare(visited, worst) < 0) {
+                    kept.poll();
+                    kept.add(visited);
+                }
+            }
+
+            int axis = visited.getAxis();
+            Comparable<?>[] leftRange = range;
+            Comparable<?>[] rightRange = range;
+            if (axis == orderAxis) {
+                leftRange = new Comparable<?>[]{range[0], KDTreeUtils.feature(key, axis, withCompactStorage)};
+                rightRange = new Comparable<?>[]{KDTreeUtils.feature(key, axis, withCompactStorage), range[1]};
+            }
+            boolean visitLeft = visited.getLeft() != null && isLeftReachable(bounds[axis], key, axis);
+            boolean visitRight = visited.getRight() != null && isRightReachable(bounds[axis], key, axis);
+            // the most promising child is pushed last, so it is visited first
+            if (visitLeft && descending) {
+                stack.push(visited.getLeft());
+                ranges.push(leftRange);
+            }
+            if (visitRight) {
+                stack.push(visited.getRight());
+                ranges.push(rightRange);
+            }
+            if (visitLeft && !descending) {
+                stack.push(visited.getLeft());
+                ranges.push(leftRange);
+            }
+        }
+
+        List<KDTreeNode<K, V>> ordered = new ArrayList<>(kept);
+        ordered.sort(best);
+        return ordered;
+    }
+
+    private boolean canBeat(Comparable<?>[] range, K worst, int axis, boolean descending) {
+        Comparable<?> bound = descending ? range[1] : range[0];
+        if (bound == null) {
+            return true;
+        }
+        int compare = compareFeatureWithBound(bound, worst, axis);
+        return descending ? compare > 0 : compare < 0;
+    }
+
+    private boolean isLeftReachable(KDTreeFeatureBound<?> bound, K key, int axis) {
+        return bound == null || bound.getLowerBound() == null || compareFeatureWithBound(bound.getLowerBound(), key, axis) < 0;
+    }
+
+    private boolean isRightReachable(KDTreeFeatureBound<?> bound, K key, int axis) {
+        return bound == null || bound.getUpperBound() == null || compareFeatureWithBound(bound.getUpperBound(), key, axis) >= 0;
+    }
+
+    private KDTreeNode<K, V> insertRec(KDTreeNode<K, V> visitedNode, KDTreeNode<K, V> nodeToInsert, int depth) {
+        int k = features.size();
+
+        if (visitedNode == null) {
+            nodeToInsert.setAxis(depth % k);
+            return nodeToInsert;
+        }
+
+        while (true) {
+            if (nodeToInsert.getKey().equals(visitedNode.getKey())) {
+                if (!visitedNode.isDeleted()) {
+                    throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_EXISTS, "key already exists into the tree");
+                }
+                replaceEntry(visitedNode, nodeToInsert);
+                tombstones--;
+                return visitedNode;
+            }
+
+            int axis = visitedNode.getAxis();
+            boolean goLeft = compareNodeFeature(visitedNode.getKey(), nodeToInsert.getKey(), axis) > 0;
+            KDTreeNode<K, V> next = goLeft ? visitedNode.getLeft() : visitedNode.getRight();
+            if (next == null) {
                 nodeToInsert.setAxis((axis + 1) % k);
-                visitedNode.setRight(nodeToInsert);
-            } else {
-                insertRec(visitedNode.getRight(), nodeToInsert, depth + 1);
+                if (goLeft) {
+                    visitedNode.setLeft(nodeToInsert);
+                } else {
+                    visitedNode.setRight(nodeToInsert);
+                }
+                return nodeToInsert;
             }
+            visitedNode = next;
         }
     }
 
-    private KDTreeNode<K, V> deleteNodeRec(KDTreeNode<K, V> node, K nodeToDelete, KDTreeNode<K, V> parent, AtomicBoolean isDeleted) {
+    private KDTreeNode<K, V> deleteNodeRec(KDTreeNode<K, V> node, K nodeToDelete, AtomicBoolean isDeleted) {
         if (node == null) {
             return null;
         }
@@ -293,38 +1806,38 @@ public class KDTreeImpl<K extends KDTreeKey, V> implements KDTree<K, V> {
 
             if (node.getRight() != null) {
                 KDTreeNode<K, V> minR = findMinRec(node.getRight(), axis);
-                node.setKey(minR.getKey());
-                node.setValue(minR.getValue());
-                node.setRight(deleteNodeRec(node.getRight(), minR.getKey(), node, isDeleted));
+                replaceEntry(node, minR);
+                node.setRight(deleteNodeRec(node.getRight(), minR.getKey(), isDeleted));
 
             } else if (node.getLeft() != null) {
                 KDTreeNode<K, V> minL = findMinRec(node.getLeft(), axis);
-                node.setKey(minL.getKey());
-                node.setValue(minL.getValue());
-                node.setRight(deleteNodeRec(node.getLeft(), minL.getKey(), node, isDeleted));
+                replaceEntry(node, minL);
+                node.setRight(deleteNodeRec(node.getLeft(), minL.getKey(), isDeleted));
                 node.setLeft(null);
 
             } else {
-                if (parent.getLeft() != null && parent.getLeft().getKey().equals(node.getKey())) {
-                    parent.setLeft(null);
-                    return null;
-                } else if (parent.getRight() != null && parent.getRight().getKey().equals(node.getKey())) {
-                    parent.setRight(null);
-                    return null;
-                }
+                return null;
             }
             return node;
         }
 
         if (compareNodeFeature(nodeToDelete, node.getKey(), axis) < 0) {
-            node.setLeft(deleteNodeRec(node.getLeft(), nodeToDelete, node, isDeleted));
+            node.setLeft(deleteNodeRec(node.getLeft(), nodeToDelete, isDeleted));
         } else {
-            node.setRight(deleteNodeRec(node.getRight(), nodeToDelete, node, isDeleted));
+            node.setRight(deleteNodeRec(node.getRight(), nodeToDelete, isDeleted));
         }
 
         return node;
     }
 
+    private void replaceEntry(KDTreeNode<K, V> node, KDTreeNode<K, V> source) {
+        node.setKey(source.getKey());
+        node.setValue(source.getValue());
+        node.setExpiresAt(source.getExpiresAt());
+        node.setDeleted(source.isDeleted());
+        index(node.getKey(), node);
+    }
+
     private KDTreeNode<K, V> findMinRec(KDTreeNode<K, V> node, int axis) {
         if (node == null) {
             return null;
@@ -366,18 +1879,26 @@ public class KDTreeImpl<K extends KDTreeKey, V> implements KDTree<K, V> {
         return min;
     }
 
-    private boolean isNodeWithinFeatureBounds(Map<String, KDTreeFeatureBound<? extends Comparable<?>>> featureBoundMap, K keyNode) {
-        return featureBoundMap.entrySet().stream().parallel().map(e -> {
-            int compare1 = compareNodeFeatureWithBound(e.getValue().getLowerBound(), keyNode, e.getKey());
-            int compare2 = compareNodeFeatureWithBound(e.getValue().getUpperBound(), keyNode, e.getKey());
-            return compare1 <= 0 && compare2 >= 0;
-        }).reduce((bool1, bool2) -> bool1 && bool2).orElseThrow();
+    private boolean isWithinBounds(KDTreeFeatureBound<?>[] bounds, K key) {
+        for (int axis = 0; axis < bounds.length; axis++) {
+            KDTreeFeatureBound<?> bound = bounds[axis];
+            if (bound == null) {
+                continue;
+            }
+            if (bound.getLowerBound() != null && compareFeatureWithBound(bound.getLowerBound(), key, axis) > 0) {
+                return false;
+            }
+            if (bound.getUpperBound() != null && compareFeatureWithBound(bound.getUpperBound(), key, axis) < 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @SuppressWarnings({"unchecked"})
     private int compareNodeFeature(K key1, K key2, int axis) {
-        Comparable<Object> c1 = (Comparable<Object>) key1.getIndexedKeyValueByIndex(axis);
-        Comparable<Object> c2 = (Comparable<Object>) key2.getIndexedKeyValueByIndex(axis);
+        Comparable<Object> c1 = (Comparable<Object>) KDTreeUtils.feature(key1, axis, withCompactStorage);
+        Comparable<Object> c2 = (Comparable<Object>) KDTreeUtils.feature(key2, axis, withCompactStorage);
         if (c1 == null) {
             throw new KDTreeRuntimeException(KDTreeExceptionType.FIELD_CANNOT_BE_NULL, "index " + axis + " of " + key1 + " cannot be null");
         }
@@ -388,14 +1909,9 @@ public class KDTreeImpl<K extends KDTreeKey, V> implements KDTree<K, V> {
     }
 
     @SuppressWarnings({"unchecked"})
-    private int compareNodeFeatureWithBound(Comparable<?> bound, K key, String name) {
+    private int compareFeatureWithBound(Comparable<?> bound, K key, int axis) {
         Comparable<Object> c1 = (Comparable<Object>) bound;
-        Comparable<Object> c2 = (Comparable<Object>) key.getIndexedKeyValueByName(name);
-        return c1.compareTo(c2);
-    }
-
-    private KDTreeFeatureBound<? extends Comparable<?>> findFeatureBounds(KDTreeQuery<K, V> query, KDTreeNode<K, V> node) {
-        return query.getBoundsMap().get(features.get(node.getAxis()));
+        return c1.compareTo(KDTreeUtils.feature(key, axis, withCompactStorage));
     }
 
 }
@@ -0,0 +1,171 @@
+package com.alessandrosestito.kdtree.impl;
+
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+import lombok.AllArgsConstructor;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+// dual tree traversal: a pair covers every entry of one side against every entry of the other side,
+// it is pruned when the regions of the two sides are too far apart, otherwise the shallower side is split
+class KDTreeJoin<K extends KDTreeKey, V, W> {
+
+    private static final int PARALLEL_DEPTH = 10;
+
+    private final int dimensions;
+    private final double[] maxDistances;
+    private final BiPredicate<K, K> filter;
+    private final boolean parallel;
+    private final BiConsumer<Map.Entry<K, V>, Map.Entry<K, W>> consumer;
+    private final boolean compactStorage;
+    private final boolean otherCompactStorage;
+    private final long now;
+
+    KDTreeJoin(Map<String, Integer> featureIndexes, KDTreeJoinCondition<K> condition, BiConsumer<Map.Entry<K, V>, Map.Entry<K, W>> consumer,
+              boolean compactStorage, boolean otherCompactStorage, long now) {
+        dimensions = featureIndexes.size();
+        maxDistances = new double[dimensions];
+        Arrays.fill(maxDistances, Double.NaN);
+        condition.getMaxDistances().forEach((name, maxDistance) -> {
+            Integer axis = featureIndexes.get(name);
+            if (axis == null) {
+                throw new KDTreeRuntimeException(KDTreeExceptionType.FEATURE_NOT_EXISTS, "feature " + name + " is not indexed");
+            }
+            maxDistances[axis] = maxDistance;
+        });
+        filter = condition.getFilter();
+        parallel = condition.isParallel();
+        this.consumer = consumer;
+        this.compactStorage = compactStorage;
+        this.otherCompactStorage = otherCompactStorage;
+        this.now = now;
+    }
+
+    void run(KDTreeNode<K, V> root, KDTreeNode<K, W> otherRoot) {
+        if (root == null || otherRoot == null) {
+            return;
+        }
+        JoinPair pair = new JoinPair(root, KDTreeBox.unbounded(dimensions), true, 0, otherRoot, KDTreeBox.unbounded(dimensions), true, 0);
+        if (parallel) {
+            ForkJoinPool.commonPool().invoke(new JoinTask(pair));
+        } else {
+            joinSequential(pair);
+        }
+    }
+
+    private void joinSequential(JoinPair pair) {
+        ArrayDeque<JoinPair> stack = new ArrayDeque<>();
+        stack.push(pair);
+        while (!stack.isEmpty()) {
+            expand(stack.pop(), stack::push);
+        }
+    }
+
+    private void expand(JoinPair pair, Consumer<JoinPair> next) {
+        if (!canMatch(pair.box, pair.otherBox)) {
+            return;
+        }
+        if (!pair.subtree && !pair.otherSubtree) {
+            emit(pair.node, pair.otherNode);
+            return;
+        }
+        if (pair.subtree && (!pair.otherSubtree || pair.depth <= pair.otherDepth)) {
+            KDTreeNode<K, V> node = pair.node;
+            Comparable<?> split = KDTreeUtils.feature(node.getKey(), node.getAxis(), compactStorage);
+            next.accept(new JoinPair(node, KDTreeBox.point(node.getKey(), dimensions, compactStorage), false, pair.depth, pair.otherNode, pair.otherBox, pair.otherSubtree, pair.otherDepth));
+            if (node.getLeft() != null) {
+                next.accept(new JoinPair(node.getLeft(), pair.box.left(node.getAxis(), split), true, pair.depth + 1, pair.otherNode, pair.otherBox, pair.otherSubtree, pair.otherDepth));
+            }
+            if (node.getRight() != null) {
+                next.accept(new JoinPair(node.getRight(), pair.box.right(node.getAxis(), split), true, pair.depth + 1, pair.otherNode, pair.otherBox, pair.otherSubtree, pair.otherDepth));
+            }
+        } else {
+            KDTreeNode<K, W> node = pair.otherNode;
+            Comparable<?> split = KDTreeUtils.feature(node.getKey(), node.getAxis(), otherCompactStorage);
+            next.accept(new JoinPair(pair.node, pair.box, pair.subtree, pair.depth, node, KDTreeBox.point(node.getKey(), dimensions, otherCompactStorage), false, pair.otherDepth));
+            if (node.getLeft() != null) {
+                next.accept(new JoinPair(pair.node, pair.box, pair.subtree, pair.depth, node.getLeft(), pair.otherBox.left(node.getAxis(), split), true, pair.otherDepth + 1));
+            }
+            if (node.getRight() != null) {
+                next.accept(new JoinPair(pair.node, pair.box, pair.subtree, pair.depth, node.getRight(), pair.otherBox.right(node.getAxis(), split), true, pair.otherDepth + 1));
+            }
+        }
+    }
+
+    private void emit(KDTreeNode<K, V> node, KDTreeNode<K, W> otherNode) {
+        if (node.isDeleted() || node.isExpired(now) || otherNode.isDeleted() || otherNode.isExpired(now)) {
+            return;
+        }
+        if (filter == null || filter.test(node.getKey(), otherNode.getKey())) {
+            consumer.accept(new AbstractMap.SimpleImmutableEntry<>(node.getKey(), node.getValue()),
+                    new AbstractMap.SimpleImmutableEntry<>(otherNode.getKey(), otherNode.getValue()));
+        }
+    }
+
+    // the upper bounds are treated as inclusive, so the gap between the regions is never overestimated
+    private boolean canMatch(KDTreeBox box, KDTreeBox otherBox) {
+        for (int axis = 0; axis < dimensions; axis++) {
+            double maxDistance = maxDistances[axis];
+            if (Double.isNaN(maxDistance)) {
+                continue;
+            }
+            if (gap(box.getLower(axis), otherBox.getUpper(axis)) > maxDistance || gap(otherBox.getLower(axis), box.getUpper(axis)) > maxDistance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private double gap(Comparable<?> lower, Comparable<?> upper) {
+        if (lower == null || upper == null) {
+            return 0;
+        }
+        return toDouble(lower) - toDouble(upper);
+    }
+
+    private double toDouble(Comparable<?> value) {
+        if (!(value instanceof Number)) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.FEATURE_NOT_NUMERIC, "max distance needs a numeric feature, found " + value);
+        }
+        return ((Number) value).doubleValue();
+    }
+
+    @AllArgsConstructor
+    private class JoinPair {
+        private final KDTreeNode<K, V> node;
+        private final KDTreeBox box;
+        private final boolean subtree;
+        private final int depth;
+        private final KDTreeNode<K, W> otherNode;
+        private final KDTreeBox otherBox;
+        private final boolean otherSubtree;
+        private final int otherDepth;
+    }
+
+    @AllArgsConstructor
+    private class JoinTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final JoinPair pair;
+
+        @Override
+        protected void compute() {
+            if (pair.depth + pair.otherDepth >= PARALLEL_DEPTH) {
+                joinSequential(pair);
+                return;
+            }
+            List<JoinTask> tasks = new ArrayList<>();
+            expand(pair, child -> tasks.add(new JoinTask(child)));
+            invokeAll(tasks);
+        }
+    }
+}
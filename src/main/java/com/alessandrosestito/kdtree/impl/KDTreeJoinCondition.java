@@ -0,0 +1,45 @@
+package com.alessandrosestito.kdtree.impl;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiPredicate;
+
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+@Getter(AccessLevel.PACKAGE)
+public class KDTreeJoinCondition<K extends KDTreeKey> {
+
+    private final Map<String, Double> maxDistances = new HashMap<>();
+    private BiPredicate<K, K> filter;
+    private boolean parallel = false;
+
+    public static <K extends KDTreeKey> KDTreeJoinCondition<K> create() {
+        return new KDTreeJoinCondition<>();
+    }
+
+    public KDTreeJoinCondition<K> maxDistance(String featureName, double maxDistance) {
+        maxDistances.put(featureName, maxDistance);
+        return this;
+    }
+
+    public KDTreeJoinCondition<K> filter(BiPredicate<K, K> filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    public KDTreeJoinCondition<K> parallel() {
+        parallel = true;
+        return this;
+    }
+
+    KDTreeJoinCondition<K> reversed() {
+        KDTreeJoinCondition<K> reversed = new KDTreeJoinCondition<>();
+        reversed.maxDistances.putAll(maxDistances);
+        reversed.filter = filter == null ? null : (key, otherKey) -> filter.test(otherKey, key);
+        reversed.parallel = parallel;
+        return reversed;
+    }
+}
@@ -1,48 +1,67 @@
 package com.alessandrosestito.kdtree.impl;
 
-import lombok.Getter;
-
 import java.lang.reflect.Field;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 
-@Getter
 public abstract class KDTreeKey {
 
-    private static final Map<Class<?>, List<Field>> subClassesFieldIndex = new HashMap<>();
-    private static final Map<Class<?>, Map<String, Field>> subClassesFieldName = new HashMap<>();
-    private final Map<Integer, Comparable<?>> subKeyValuesByIndex;
-    private final Map<String, Comparable<?>> subKeyValuesByName;
+    private static final Map<Class<?>, List<Field>> subClassesFieldIndex = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Map<String, Integer>> subClassesFieldName = new ConcurrentHashMap<>();
+    // the indexed values read so far by position, allocated on the first read. A compact tree never fills it,
+    // it reads the fields of the keys it stores every time
+    private Comparable<?>[] subKeyValues;
 
     public KDTreeKey() {
-        subClassesFieldIndex.computeIfAbsent(getClass(), KDTreeUtils::findIndexedFieldScan);
-        subKeyValuesByIndex = new ConcurrentHashMap<>();
-        subClassesFieldName.computeIfAbsent(getClass(), clazz -> KDTreeUtils.findIndexedFieldScan(clazz).stream().collect(Collectors.toMap(Field::getName, Function.identity())));
-        subKeyValuesByName = new ConcurrentHashMap<>();
+        List<Field> fields = subClassesFieldIndex.computeIfAbsent(getClass(), KDTreeUtils::findIndexedFieldScan);
+        subClassesFieldName.computeIfAbsent(getClass(), clazz -> {
+            Map<String, Integer> positions = new HashMap<>();
+            for (int i = 0; i < fields.size(); i++) {
+                positions.put(fields.get(i).getName(), i);
+            }
+            return positions;
+        });
     }
 
     public Comparable<?> getIndexedKeyValueByIndex(int index) {
-        return subKeyValuesByIndex.computeIfAbsent(index, integer -> {
-            try {
-                return (Comparable<?>) subClassesFieldIndex.get(getClass()).get(index).get(this);
-            } catch (IllegalAccessException e) {
-                throw new RuntimeException(e);
-            }
-        });
+        Comparable<?>[] values = subKeyValues;
+        if (values == null) {
+            values = new Comparable<?>[subClassesFieldIndex.get(getClass()).size()];
+            subKeyValues = values;
+        }
+        Comparable<?> value = values[index];
+        if (value == null) {
+            value = readIndexedKeyValue(index);
+            values[index] = value;
+        }
+        return value;
     }
 
     public Comparable<?> getIndexedKeyValueByName(String name) {
-        return subKeyValuesByName.computeIfAbsent(name, s -> {
-            try {
-                return (Comparable<?>) subClassesFieldName.get(getClass()).get(s).get(this);
-            } catch (IllegalAccessException e) {
-                throw new RuntimeException(e);
+        return getIndexedKeyValueByIndex(getIndexedFieldPosition(name));
+    }
+
+    // the indexed values read so far, by position and by field name
+    public Map<Integer, Comparable<?>> getSubKeyValuesByIndex() {
+        Map<Integer, Comparable<?>> values = new HashMap<>();
+        Comparable<?>[] cached = subKeyValues;
+        for (int i = 0; cached != null && i < cached.length; i++) {
+            if (cached[i] != null) {
+                values.put(i, cached[i]);
             }
-        });
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    public Map<String, Comparable<?>> getSubKeyValuesByName() {
+        Map<String, Comparable<?>> values = new HashMap<>();
+        List<Field> fields = subClassesFieldIndex.get(getClass());
+        getSubKeyValuesByIndex().forEach((index, value) -> values.put(fields.get(index).getName(), value));
+        return Collections.unmodifiableMap(values);
     }
 
     public List<String> getAllFieldNamesNotNull() {
@@ -54,4 +73,24 @@ public abstract class KDTreeKey {
             }
         }).map(Field::getName).collect(Collectors.toList());
     }
+
+    Comparable<?> readIndexedKeyValue(int index) {
+        try {
+            return (Comparable<?>) subClassesFieldIndex.get(getClass()).get(index).get(this);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    int getIndexedFieldPosition(String name) {
+        return subClassesFieldName.get(getClass()).get(name);
+    }
+
+    int getIndexedFieldCount() {
+        return subClassesFieldIndex.get(getClass()).size();
+    }
+
+    Comparable<?>[] getCachedValues() {
+        return subKeyValues;
+    }
 }
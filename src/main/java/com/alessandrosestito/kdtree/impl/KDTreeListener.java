@@ -0,0 +1,6 @@
+package com.alessandrosestito.kdtree.impl;
+
+public interface KDTreeListener<K, V> {
+
+    void onEvent(KDTreeEvent<K, V> event);
+}
@@ -0,0 +1,739 @@
+package com.alessandrosestito.kdtree.impl;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+// Bentley-Saxe logarithmic method: a small mutable buffer plus static balanced levels of doubling capacity,
+// every key is live in exactly one component
+public class KDTreeLogarithmicImpl<K extends KDTreeKey, V> implements KDTree<K, V> {
+
+    private final KDTreeBuilder<K, V> builder;
+    private final int bufferCapacity;
+    private final int dimensions;
+    private final Executor executor;
+    private final ReentrantReadWriteLock lock;
+    private final Executor asyncExecutor;
+    private final List<KDTreeImpl<K, V>> levels;
+    private final KDTreeSubscriptions<K, V> subscriptions;
+    private KDTreeImpl<K, V> buffer;
+    private List<KDTreeImpl<K, V>> merging;
+    private Set<K> mergingWrites;
+    // the failure of a merge run in background, reported by close
+    private final AtomicReference<Throwable> mergeFailure;
+    // changes whenever the components are merged, the cursors saved before are invalidated
+    private long structureVersion;
+
+    KDTreeLogarithmicImpl(KDTreeBuilder<K, V> builder) {
+        this.builder = builder;
+        bufferCapacity = builder.getBufferCapacity();
+        executor = builder.getScheduler() != null ? builder.getScheduler() : ForkJoinPool.commonPool();
+        lock = new ReentrantReadWriteLock();
+        asyncExecutor = builder.getAsyncExecutor() != null ? builder.getAsyncExecutor() : KDTreeUtils.defaultAsyncExecutor();
+        levels = new ArrayList<>();
+        mergeFailure = new AtomicReference<>();
+        dimensions = KDTreeUtils.findIndexedFieldScan(builder.getKeyClass()).size();
+        // the components publish their own writes, evictions included, to the subscriptions they share
+        subscriptions = new KDTreeSubscriptions<>(dimensions, builder.isCompactStorage(), builder.getSubscriptionExecutor(), builder.getSubscriptionBufferCapacity());
+        buffer = newComponent(false);
+    }
+
+    private KDTreeImpl<K, V> newComponent(boolean staticLevel) {
+        KDTreeBuilder<K, V> component = new KDTreeBuilder<K, V>(builder.getKeyClass()).withClock(builder.getClock());
+        if (builder.getTimeToLive() != null) {
+            component.withTimeToLive(builder.getTimeToLive());
+        }
+        if (builder.isHashIndex()) {
+            component.withHashIndex();
+        }
+        if (builder.isCompactStorage()) {
+            component.withCompactStorage();
+        }
+        builder.getSecondaryIndexes().forEach(component::withSecondaryIndex);
+        component.withRemovalListener(builder.getRemovalListener());
+        if (staticLevel) {
+            // static levels are never restructured, their tombstones are dropped by the next merge
+            component.withTombstoneDeletes(1);
+        }
+        return new KDTreeImpl<>(component, subscriptions);
+    }
+
+    @Override
+    public void close() {
+        Runnable unlock = readLock();
+        try {
+            components().forEach(KDTreeImpl::close);
+        } finally {
+            unlock.run();
+        }
+        Throwable failure = mergeFailure.getAndSet(null);
+        if (failure != null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.MERGE_FAILED, "a merge of the levels failed: " + failure);
+        }
+    }
+
+    @Override
+    public void insert(K key, V value) {
+        insert(key, () -> buffer.insert(key, value));
+    }
+
+    @Override
+    public void insert(K key, V value, Duration timeToLive) {
+        KDTreeUtils.checkTimeToLive(timeToLive);
+        insert(key, () -> buffer.insert(key, value, timeToLive));
+    }
+
+    @Override
+    public void insertAll(Collection<Map.Entry<K, V>> entries) {
+        KDTreeUtils.checkBatchKeys(entries);
+        Runnable unlock = writeLock();
+
+        try {
+            for (Map.Entry<K, V> entry : entries) {
+                if (locate(entry.getKey()) != null) {
+                    throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_EXISTS, "key already exists into the tree");
+                }
+            }
+            buffer.insertAll(entries);
+            scheduleMerge();
+        } finally {
+            unlock.run();
+        }
+    }
+
+    private void insert(K key, Runnable insertion) {
+        if (key == null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "cannot insert data with null key");
+        }
+        Runnable unlock = writeLock();
+
+        try {
+            if (locate(key) != null) {
+                throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_EXISTS, "key already exists into the tree");
+            }
+            insertion.run();
+            scheduleMerge();
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public boolean delete(K key) {
+        if (size() == 0) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_NOT_EXISTS, "cannot delete node");
+        }
+        if (key == null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "key cannot be null");
+        }
+        Runnable unlock = writeLock();
+
+        try {
+            KDTreeImpl<K, V> component = locate(key);
+            if (component == null) {
+                return false;
+            }
+            component.delete(key);
+            logWrite(component, key);
+            return true;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public long deleteRange(KDTreeQuery<K, V> query) {
+        Runnable unlock = writeLock();
+
+        try {
+            long deleted = 0;
+            for (KDTreeImpl<K, V> component : components()) {
+                if (merging != null && merging.contains(component)) {
+                    // the merged level does not hold the keys yet, so they are replayed as deletes
+                    KDTreeQuery<K, V> unlimited = KDTreeQuery.<K, V>builder().boundsMap(query.getBoundsMap()).matchFunction(query.getMatchFunction())
+                            .region(query.getRegion()).build();
+                    component.find(unlimited).forEach(entry -> mergingWrites.add(entry.getKey()));
+                }
+                deleted += component.deleteRange(query);
+            }
+            return deleted;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public boolean update(K key, V value) {
+        if (key == null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "key cannot be null");
+        }
+        Runnable unlock = writeLock();
+
+        try {
+            KDTreeImpl<K, V> component = locate(key);
+            if (component == null) {
+                return false;
+            }
+            component.update(key, value);
+            logWrite(component, key);
+            return true;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public V upsert(K key, V value) {
+        if (key == null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "key cannot be null");
+        }
+        Runnable unlock = writeLock();
+
+        try {
+            KDTreeImpl<K, V> component = locate(key);
+            if (component == null) {
+                buffer.insert(key, value);
+                scheduleMerge();
+                return null;
+            }
+            V previous = component.upsert(key, value);
+            logWrite(component, key);
+            return previous;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public boolean move(K oldKey, K newKey) {
+        if (oldKey == null || newKey == null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "key cannot be null");
+        }
+        Runnable unlock = writeLock();
+
+        try {
+            return moveEntry(oldKey, newKey);
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public long moveAll(Map<K, K> moves) {
+        if (moves.containsKey(null) || moves.containsValue(null)) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "key cannot be null");
+        }
+        Runnable unlock = writeLock();
+
+        try {
+            long moved = 0;
+            for (Map.Entry<K, K> move : moves.entrySet()) {
+                if (moveEntry(move.getKey(), move.getValue())) {
+                    moved++;
+                }
+            }
+            return moved;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    private boolean moveEntry(K oldKey, K newKey) {
+        KDTreeImpl<K, V> component = locate(oldKey);
+        if (component == null) {
+            return false;
+        }
+        if (oldKey.equals(newKey)) {
+            return true;
+        }
+        if (locate(newKey) != null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_EXISTS, "key already exists into the tree");
+        }
+        if (component == buffer) {
+            return buffer.move(oldKey, newKey);
+        }
+        KDTreeNode<K, V> node = component.getNode(oldKey);
+        // the value moves with the entry, so it is not released
+        component.delete(oldKey, false);
+        logWrite(component, oldKey);
+        node.setKey(newKey);
+        buffer.insertNode(node);
+        subscriptions.publish(KDTreeEventType.INSERT, newKey, node.getValue());
+        scheduleMerge();
+        return true;
+    }
+
+    @Override
+    public long evictExpired() {
+        Runnable unlock = writeLock();
+        try {
+            return components().stream().mapToLong(KDTreeImpl::evictExpired).sum();
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public KDTreeQueryBuilder<K, V> query() {
+        return new KDTreeQueryBuilder<>(this);
+    }
+
+    @Override
+    public List<Map.Entry<K, V>> find(KDTreeQuery<K, V> query) {
+        List<Map.Entry<K, V>> results = new ArrayList<>();
+        visit(query, KDTreeVisitor.of((key, value) -> results.add(new AbstractMap.SimpleImmutableEntry<>(key, value))));
+        return results;
+    }
+
+    // the components are paged one after the other, the cursor holds the index of the current one and its own cursor
+    @Override
+    @SuppressWarnings({"unchecked"})
+    public KDTreePage<K, V> findPage(KDTreeQuery<K, V> query) {
+        long limit = query.getLimit() == null ? Long.MAX_VALUE : query.getLimit();
+        Runnable unlock = readLock();
+        try {
+            Map.Entry<Integer, KDTreeCursor<K, V>> position = (Map.Entry<Integer, KDTreeCursor<K, V>>) KDTreeUtils.resumePosition(query, this, structureVersion);
+            int index = position == null ? 0 : position.getKey();
+            KDTreeCursor<K, V> cursor = position == null ? null : position.getValue();
+            List<KDTreeImpl<K, V>> components = components();
+            List<Map.Entry<K, V>> entries = new ArrayList<>();
+            for (; index < components.size(); index++, cursor = null) {
+                KDTreePage<K, V> page = components.get(index).findPage(KDTreeQuery.<K, V>builder().boundsMap(query.getBoundsMap())
+                        .matchFunction(query.getMatchFunction()).region(query.getRegion()).limit(limit - entries.size()).cursor(cursor).build());
+                entries.addAll(page.getEntries());
+                if (page.hasNext()) {
+                    return new KDTreePage<>(entries, new KDTreeCursor<>(this, structureVersion, new AbstractMap.SimpleImmutableEntry<>(index, page.getCursor())));
+                }
+            }
+            return new KDTreePage<>(entries, null);
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<Map.Entry<K, V>>> findAsync(KDTreeQuery<K, V> query) {
+        return CompletableFuture.supplyAsync(() -> find(query), asyncExecutor);
+    }
+
+    @Override
+    public Flow.Publisher<Map.Entry<K, V>> publisher(KDTreeQuery<K, V> query) {
+        return new KDTreePublisher<>(() -> find(query), asyncExecutor);
+    }
+
+    @Override
+    public List<List<Map.Entry<K, V>>> findAll(List<KDTreeQuery<K, V>> queries) {
+        List<List<Map.Entry<K, V>>> results = new ArrayList<>(queries.size());
+        for (int i = 0; i < queries.size(); i++) {
+            results.add(new ArrayList<>());
+        }
+        Runnable unlock = readLock();
+        try {
+            for (KDTreeImpl<K, V> component : components()) {
+                List<List<Map.Entry<K, V>>> found = component.findAll(queries);
+                for (int i = 0; i < queries.size(); i++) {
+                    results.get(i).addAll(found.get(i));
+                }
+            }
+        } finally {
+            unlock.run();
+        }
+        for (int i = 0; i < queries.size(); i++) {
+            KDTreeQuery<K, V> query = queries.get(i);
+            List<Map.Entry<K, V>> result = results.get(i);
+            if (query.isOrdered()) {
+                result.sort(entryOrder(query));
+            }
+            if (query.getLimit() != null && result.size() > query.getLimit()) {
+                result.subList((int) Math.max(0, query.getLimit()), result.size()).clear();
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public void visit(KDTreeQuery<K, V> query, KDTreeVisitor<K, V> visitor) {
+        long limit = query.getLimit() == null ? Long.MAX_VALUE : query.getLimit();
+        long[] matches = {0};
+        KDTreeVisitor<K, V> limited = new KDTreeVisitor<>() {
+            @Override
+            public void visit(K key, V value) {
+                matches[0]++;
+                visitor.visit(key, value);
+            }
+
+            @Override
+            public boolean shouldContinue() {
+                return matches[0] < limit && visitor.shouldContinue();
+            }
+        };
+
+        Runnable unlock = readLock();
+        try {
+            if (!query.isOrdered()) {
+                for (KDTreeImpl<K, V> component : components()) {
+                    if (!limited.shouldContinue()) {
+                        return;
+                    }
+                    component.visit(query, limited);
+                }
+                return;
+            }
+            // every component returns its own best entries, they are merged keeping the global order
+            List<Map.Entry<K, V>> ordered = new ArrayList<>();
+            for (KDTreeImpl<K, V> component : components()) {
+                ordered.addAll(component.find(query));
+            }
+            ordered.sort(entryOrder(query));
+            for (Map.Entry<K, V> entry : ordered) {
+                if (!limited.shouldContinue()) {
+                    return;
+                }
+                limited.visit(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            unlock.run();
+        }
+    }
+
+    // a single best-bin-first search over all the components, so the budget of the query is not multiplied by the levels
+    @Override
+    public KDTreeNearestResult<K, V> nearest(KDTreeNearestQuery<K> query) {
+        List<Runnable> unlocks = new ArrayList<>();
+        Runnable unlock = readLock();
+        try {
+            List<KDTreeNode<K, V>> roots = new ArrayList<>();
+            for (KDTreeImpl<K, V> component : components()) {
+                unlocks.add(component.lockRoot(roots));
+            }
+            return new KDTreeNearest<K, V>(query, dimensions, builder.isCompactStorage(), builder.getClock().millis()).search(roots);
+        } finally {
+            unlocks.forEach(Runnable::run);
+            unlock.run();
+        }
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private Comparator<Map.Entry<K, V>> entryOrder(KDTreeQuery<K, V> query) {
+        boolean compactStorage = builder.isCompactStorage();
+        Comparator<Map.Entry<K, V>> ascending = (o1, o2) -> {
+            int axis = o1.getKey().getIndexedFieldPosition(query.getOrderBy());
+            return ((Comparable<Object>) KDTreeUtils.feature(o1.getKey(), axis, compactStorage)).compareTo(KDTreeUtils.feature(o2.getKey(), axis, compactStorage));
+        };
+        return query.getDirection() == KDTreeSortDirection.DESC ? ascending.reversed() : ascending;
+    }
+
+    @Override
+    public KDTreeSubscription<K, V> subscribe(KDTreeQuery<K, V> query, KDTreeListener<K, V> listener) {
+        return buffer.subscribe(query, listener);
+    }
+
+    @Override
+    public <W> void join(KDTree<K, W> other, KDTreeJoinCondition<K> condition, BiConsumer<Map.Entry<K, V>, Map.Entry<K, W>> consumer) {
+        Runnable unlock = readLock();
+        try {
+            for (KDTreeImpl<K, V> component : components()) {
+                component.join(other, condition, consumer);
+            }
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public Map.Entry<K, V> get(K key) {
+        if (key == null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "key cannot be null");
+        }
+        Runnable unlock = readLock();
+
+        try {
+            for (KDTreeImpl<K, V> component : components()) {
+                Map.Entry<K, V> entry = component.get(key);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+            return null;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public long size() {
+        Runnable unlock = readLock();
+        try {
+            return components().stream().mapToLong(KDTreeImpl::size).sum();
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public KDTreeMemoryStats memoryStats() {
+        Runnable unlock = readLock();
+        try {
+            KDTreeMemory memory = new KDTreeMemory();
+            components().forEach(component -> memory.add(component.memoryStats()));
+            return memory.toStats();
+        } finally {
+            unlock.run();
+        }
+    }
+
+    // merges every component into a single static level, dropping all the tombstones
+    @Override
+    public void balance() {
+        List<KDTreeImpl<K, V>> components;
+        List<KDTreeImpl<K, V>> previousLevels;
+        int target = 0;
+        Runnable unlock = writeLock();
+        try {
+            if (merging != null) {
+                return;
+            }
+            components = components();
+            long size = components.stream().mapToLong(KDTreeImpl::size).sum();
+            while (((long) bufferCapacity << target) < size) {
+                target++;
+            }
+            previousLevels = new ArrayList<>(levels);
+            levels.clear();
+            startMerge(components);
+        } finally {
+            unlock.run();
+        }
+        mergeComponents(components, previousLevels, target);
+    }
+
+    @Override
+    public double score() {
+        Runnable unlock = readLock();
+        try {
+            double score = 0;
+            long size = 0;
+            for (KDTreeImpl<K, V> component : components()) {
+                double componentScore = component.score();
+                if (!Double.isNaN(componentScore)) {
+                    score += componentScore * component.size();
+                    size += component.size();
+                }
+            }
+            return size == 0 ? buffer.score() : score / size;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    // the nodes of all the trees are loaded as a single static level of a new tree with the options of this one
+    @Override
+    public KDTree<K, V> merge(List<? extends KDTree<K, V>> others) {
+        List<KDTree<K, V>> trees = new ArrayList<>();
+        trees.add(this);
+        trees.addAll(others);
+        KDTreeLogarithmicImpl<K, V> merged = new KDTreeLogarithmicImpl<>(builder);
+        merged.loadBalanced(KDTreeUtils.liveNodes(trees));
+        return merged;
+    }
+
+    @Override
+    public List<KDTree<K, V>> split(Predicate<K> predicate) {
+        Map<Boolean, List<KDTreeNode<K, V>>> parts = liveNodes().stream().collect(Collectors.partitioningBy(node -> predicate.test(node.getKey())));
+        KDTreeLogarithmicImpl<K, V> matching = new KDTreeLogarithmicImpl<>(builder);
+        matching.loadBalanced(parts.get(true));
+        KDTreeLogarithmicImpl<K, V> others = new KDTreeLogarithmicImpl<>(builder);
+        others.loadBalanced(parts.get(false));
+        return List.of(matching, others);
+    }
+
+    List<KDTreeNode<K, V>> liveNodes() {
+        Runnable unlock = readLock();
+        try {
+            List<KDTreeNode<K, V>> nodes = new ArrayList<>();
+            components().forEach(component -> nodes.addAll(component.liveNodes()));
+            return nodes;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    // the nodes become the level whose capacity holds them all
+    private void loadBalanced(List<KDTreeNode<K, V>> nodes) {
+        if (nodes.isEmpty()) {
+            return;
+        }
+        int target = 0;
+        while (((long) bufferCapacity << target) < nodes.size()) {
+            target++;
+        }
+        KDTreeImpl<K, V> level = newComponent(true);
+        level.loadBalanced(nodes);
+        Runnable unlock = writeLock();
+        try {
+            while (levels.size() <= target) {
+                levels.add(null);
+            }
+            levels.set(target, level);
+            structureVersion++;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    private List<KDTreeImpl<K, V>> components() {
+        List<KDTreeImpl<K, V>> components = new ArrayList<>();
+        components.add(buffer);
+        if (merging != null) {
+            components.addAll(merging);
+        }
+        for (KDTreeImpl<K, V> level : levels) {
+            if (level != null) {
+                components.add(level);
+            }
+        }
+        return components;
+    }
+
+    private KDTreeImpl<K, V> locate(K key) {
+        for (KDTreeImpl<K, V> component : components()) {
+            if (component.containsKey(key)) {
+                return component;
+            }
+        }
+        return null;
+    }
+
+    private void logWrite(KDTreeImpl<K, V> component, K key) {
+        if (merging != null && merging.contains(component)) {
+            mergingWrites.add(key);
+        }
+    }
+
+    private void scheduleMerge() {
+        if (merging != null || buffer.size() < bufferCapacity) {
+            return;
+        }
+        int target = 0;
+        while (target < levels.size() && levels.get(target) != null) {
+            target++;
+        }
+        List<KDTreeImpl<K, V>> previousLevels = new ArrayList<>(levels);
+        List<KDTreeImpl<K, V>> components = new ArrayList<>();
+        components.add(buffer);
+        for (int i = 0; i < target; i++) {
+            components.add(levels.get(i));
+            levels.set(i, null);
+        }
+        startMerge(components);
+
+        int level = target;
+        // the write that filled the buffer is already done, so a failed merge is kept for close instead of thrown
+        Runnable merge = () -> {
+            try {
+                mergeComponents(components, previousLevels, level);
+            } catch (RuntimeException | Error e) {
+                mergeFailure.compareAndSet(null, e);
+            }
+        };
+        try {
+            executor.execute(merge);
+        } catch (RejectedExecutionException e) {
+            merge.run();
+        }
+    }
+
+    private void startMerge(List<KDTreeImpl<K, V>> components) {
+        structureVersion++;
+        merging = components;
+        mergingWrites = new HashSet<>();
+        buffer = newComponent(false);
+    }
+
+    // builds the merged level off-lock, the merging components keep serving reads and writes until the swap. When
+    // the build fails they are put back as they were, so the next write or balance can merge them again
+    private void mergeComponents(List<KDTreeImpl<K, V>> components, List<KDTreeImpl<K, V>> previousLevels, int target) {
+        KDTreeImpl<K, V> level = null;
+        Runnable unlock = null;
+        try {
+            List<KDTreeNode<K, V>> nodes = new ArrayList<>();
+            for (KDTreeImpl<K, V> component : components) {
+                nodes.addAll(component.liveNodes());
+            }
+            KDTreeImpl<K, V> merged = newComponent(true);
+            merged.loadBalanced(nodes);
+
+            unlock = writeLock();
+            for (K key : mergingWrites) {
+                KDTreeNode<K, V> node = null;
+                for (KDTreeImpl<K, V> component : components) {
+                    node = component.getNode(key);
+                    if (node != null) {
+                        break;
+                    }
+                }
+                merged.replay(key, node);
+            }
+            level = merged;
+        } finally {
+            if (unlock == null) {
+                unlock = writeLock();
+            }
+            try {
+                if (level == null) {
+                    restoreComponents(components, previousLevels);
+                } else {
+                    while (levels.size() <= target) {
+                        levels.add(null);
+                    }
+                    levels.set(target, level);
+                }
+                structureVersion++;
+                merging = null;
+                mergingWrites = null;
+                if (level != null) {
+                    scheduleMerge();
+                }
+            } finally {
+                unlock.run();
+            }
+        }
+    }
+
+    // the entries inserted into the new buffer during the merge are moved into the buffer it replaced
+    private void restoreComponents(List<KDTreeImpl<K, V>> components, List<KDTreeImpl<K, V>> previousLevels) {
+        KDTreeImpl<K, V> previousBuffer = components.get(0);
+        buffer.liveNodes().forEach(previousBuffer::insertNode);
+        buffer = previousBuffer;
+        levels.clear();
+        levels.addAll(previousLevels);
+    }
+
+    private Runnable readLock() {
+        lock.readLock().lock();
+        return lock.readLock()::unlock;
+    }
+
+    private Runnable writeLock() {
+        lock.writeLock().lock();
+        return lock.writeLock()::unlock;
+    }
+}
@@ -0,0 +1,125 @@
+package com.alessandrosestito.kdtree.impl;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+// sizes on a 64-bit JVM with compressed references: 12 bytes of object header, 16 of array header,
+// 4 bytes per reference and every object aligned to 8 bytes
+class KDTreeMemory {
+
+    private static final ClassValue<Long> SHALLOW_SIZES = new ClassValue<>() {
+        @Override
+        protected Long computeValue(Class<?> type) {
+            long bytes = 12;
+            for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+                for (Field field : current.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        bytes += fieldSize(field.getType());
+                    }
+                }
+            }
+            return align(bytes);
+        }
+    };
+
+    private long entries;
+    private long structureBytes;
+    private long keyBytes;
+    private long keyCacheBytes;
+    private long featureBytes;
+    private long indexBytes;
+
+    void addEntries(long count) {
+        entries += count;
+    }
+
+    void addStructure(long bytes) {
+        structureBytes += bytes;
+    }
+
+    void addIndex(long bytes) {
+        indexBytes += bytes;
+    }
+
+    // the features are read from the fields, so that measuring does not fill the caches of the keys
+    void addKey(KDTreeKey key) {
+        keyBytes += shallow(key.getClass());
+        Comparable<?>[] cached = key.getCachedValues();
+        if (cached != null) {
+            keyCacheBytes += array(cached.length, 4);
+        }
+        for (int i = 0; i < key.getIndexedFieldCount(); i++) {
+            featureBytes += value(key.readIndexedKeyValue(i));
+        }
+    }
+
+    void addExpirations(NavigableMap<Long, ? extends List<?>> expirations) {
+        for (Map.Entry<Long, ? extends List<?>> entry : expirations.entrySet()) {
+            // the tree map entry, the boxed time and the list of keys
+            indexBytes += 40 + 24 + shallow(entry.getValue().getClass()) + array(entry.getValue().size(), 4);
+        }
+    }
+
+    void add(KDTreeMemoryStats stats) {
+        entries += stats.getEntries();
+        structureBytes += stats.getStructureBytes();
+        keyBytes += stats.getKeyBytes();
+        keyCacheBytes += stats.getKeyCacheBytes();
+        featureBytes += stats.getFeatureBytes();
+        indexBytes += stats.getIndexBytes();
+    }
+
+    KDTreeMemoryStats toStats() {
+        return new KDTreeMemoryStats(entries, structureBytes, keyBytes, keyCacheBytes, featureBytes, indexBytes);
+    }
+
+    static long shallow(Class<?> type) {
+        return SHALLOW_SIZES.get(type);
+    }
+
+    static long array(int length, int elementBytes) {
+        return align(16 + (long) length * elementBytes);
+    }
+
+    // the map object, a table sized for the default load factor and a node per entry
+    static long hashMap(int entries) {
+        int capacity = 16;
+        while (capacity * 3L / 4 < entries) {
+            capacity <<= 1;
+        }
+        return 64 + array(capacity, 4) + 32L * entries;
+    }
+
+    private static long value(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return shallow(String.class) + array(((String) value).length(), 1);
+        }
+        return shallow(value.getClass());
+    }
+
+    private static int fieldSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        if (type == byte.class || type == boolean.class) {
+            return 1;
+        }
+        return 4;
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
@@ -0,0 +1,29 @@
+package com.alessandrosestito.kdtree.impl;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+// estimated bytes held by a tree, the values are owned by the caller and not counted
+@AllArgsConstructor(access = AccessLevel.PACKAGE)
+@Getter
+@ToString
+public class KDTreeMemoryStats {
+    private final long entries;
+    // the tree nodes, or the blocks of the z-order index
+    private final long structureBytes;
+    private final long keyBytes;
+    private final long keyCacheBytes;
+    private final long featureBytes;
+    // the hash index and the expiration schedule
+    private final long indexBytes;
+
+    public long getTotalBytes() {
+        return structureBytes + keyBytes + keyCacheBytes + featureBytes + indexBytes;
+    }
+
+    public double getBytesPerEntry() {
+        return entries == 0 ? 0 : (double) getTotalBytes() / entries;
+    }
+}
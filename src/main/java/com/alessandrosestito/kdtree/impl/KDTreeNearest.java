@@ -0,0 +1,151 @@
+package com.alessandrosestito.kdtree.impl;
+
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+import lombok.AllArgsConstructor;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+// best-bin-first search: the regions are visited by increasing distance from the target, the search stops when no
+// region can hold a closer entry, or earlier when the budget of the query is spent, all distances are squared
+class KDTreeNearest<K extends KDTreeKey, V> {
+
+    private static final int CLOCK_CHECK_INTERVAL = 64;
+
+    private final double[] target;
+    private final int neighbours;
+    private final double epsilonFactor;
+    private final long maxVisitedNodes;
+    private final long deadline;
+    private final boolean compactStorage;
+    private final long now;
+    private final PriorityQueue<Neighbour<K, V>> kept;
+    private long visitedNodes;
+
+    KDTreeNearest(KDTreeNearestQuery<K> query, int dimensions, boolean compactStorage, long now) {
+        target = new double[dimensions];
+        for (int axis = 0; axis < dimensions; axis++) {
+            Comparable<?> value = query.getTarget().getIndexedKeyValueByIndex(axis);
+            if (value == null) {
+                throw new KDTreeRuntimeException(KDTreeExceptionType.FIELD_CANNOT_BE_NULL, "index " + axis + " of " + query.getTarget() + " cannot be null");
+            }
+            target[axis] = toDouble(value);
+        }
+        neighbours = query.getNeighbours();
+        epsilonFactor = (1 + query.getEpsilon()) * (1 + query.getEpsilon());
+        maxVisitedNodes = query.getMaxVisitedNodes();
+        deadline = query.getTimeBudget() == null ? 0 : System.nanoTime() + query.getTimeBudget().toNanos();
+        this.compactStorage = compactStorage;
+        this.now = now;
+        kept = new PriorityQueue<>(Comparator.<Neighbour<K, V>>comparingDouble(neighbour -> neighbour.distance).reversed());
+    }
+
+    // many roots are searched as a single tree, so the budget is shared by all of them
+    KDTreeNearestResult<K, V> search(List<KDTreeNode<K, V>> roots) {
+        PriorityQueue<Region<K, V>> regions = new PriorityQueue<>(Comparator.comparingDouble(region -> region.distance));
+        for (KDTreeNode<K, V> root : roots) {
+            if (root != null) {
+                regions.add(new Region<>(root, 0, new double[target.length]));
+            }
+        }
+        while (!regions.isEmpty() && isPromising(regions.peek().distance) && visit()) {
+            Region<K, V> region = regions.poll();
+            KDTreeNode<K, V> node = region.node;
+            if (!node.isDeleted() && !node.isExpired(now)) {
+                offer(node.getKey(), node.getValue(), distance(node.getKey()));
+            }
+
+            int axis = node.getAxis();
+            double offset = target[axis] - toDouble(KDTreeUtils.feature(node.getKey(), axis, compactStorage));
+            KDTreeNode<K, V> near = offset < 0 ? node.getLeft() : node.getRight();
+            KDTreeNode<K, V> far = offset < 0 ? node.getRight() : node.getLeft();
+            if (near != null) {
+                regions.add(new Region<>(near, region.distance, region.offsets));
+            }
+            if (far != null) {
+                // the far region is farther only on the split axis, its offset there replaces the previous one
+                double[] offsets = region.offsets.clone();
+                double distance = region.distance - offsets[axis] * offsets[axis] + offset * offset;
+                offsets[axis] = offset;
+                regions.add(new Region<>(far, distance, offsets));
+            }
+        }
+        return result(regions.isEmpty() ? Double.POSITIVE_INFINITY : regions.peek().distance);
+    }
+
+    boolean isPromising(double distance) {
+        return kept.size() < neighbours || distance * epsilonFactor < kept.peek().distance;
+    }
+
+    // counts a visit, false when the budget of visited nodes or time is spent
+    boolean visit() {
+        if (visitedNodes >= maxVisitedNodes) {
+            return false;
+        }
+        if (deadline != 0 && visitedNodes % CLOCK_CHECK_INTERVAL == 0 && System.nanoTime() - deadline >= 0) {
+            return false;
+        }
+        visitedNodes++;
+        return true;
+    }
+
+    void offer(K key, V value, double distance) {
+        if (kept.size() < neighbours) {
+            kept.add(new Neighbour<>(key, value, distance));
+        } else if (distance < kept.peek().distance) {
+            kept.poll();
+            kept.add(new Neighbour<>(key, value, distance));
+        }
+    }
+
+    double distance(K key) {
+        double distance = 0;
+        for (int axis = 0; axis < target.length; axis++) {
+            double difference = target[axis] - toDouble(KDTreeUtils.feature(key, axis, compactStorage));
+            distance += difference * difference;
+        }
+        return distance;
+    }
+
+    double[] getTarget() {
+        return target;
+    }
+
+    // the result is exact when the closest region left unvisited cannot hold a closer entry
+    KDTreeNearestResult<K, V> result(double unvisitedDistance) {
+        boolean exact = unvisitedDistance == Double.POSITIVE_INFINITY || (kept.size() == neighbours && unvisitedDistance >= kept.peek().distance);
+        List<Neighbour<K, V>> nearest = new ArrayList<>(kept);
+        nearest.sort(Comparator.comparingDouble(neighbour -> neighbour.distance));
+        List<Map.Entry<K, V>> entries = new ArrayList<>(nearest.size());
+        for (Neighbour<K, V> neighbour : nearest) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(neighbour.key, neighbour.value));
+        }
+        return new KDTreeNearestResult<>(entries, exact, visitedNodes);
+    }
+
+    private static double toDouble(Comparable<?> value) {
+        if (!(value instanceof Number)) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.FEATURE_NOT_NUMERIC, "nearest search needs numeric features, found " + value);
+        }
+        return ((Number) value).doubleValue();
+    }
+
+    @AllArgsConstructor
+    private static class Neighbour<K, V> {
+        private final K key;
+        private final V value;
+        private final double distance;
+    }
+
+    @AllArgsConstructor
+    private static class Region<K, V> {
+        private final KDTreeNode<K, V> node;
+        private final double distance;
+        private final double[] offsets;
+    }
+}
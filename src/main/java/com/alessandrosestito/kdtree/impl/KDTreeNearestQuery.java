@@ -0,0 +1,57 @@
+package com.alessandrosestito.kdtree.impl;
+
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.time.Duration;
+
+@Getter(AccessLevel.PACKAGE)
+public class KDTreeNearestQuery<K extends KDTreeKey> {
+
+    private final K target;
+    private final int neighbours;
+    private long maxVisitedNodes = Long.MAX_VALUE;
+    private double epsilon = 0;
+    private Duration timeBudget;
+
+    private KDTreeNearestQuery(K target, int neighbours) {
+        this.target = target;
+        this.neighbours = neighbours;
+    }
+
+    public static <K extends KDTreeKey> KDTreeNearestQuery<K> create(K target, int neighbours) {
+        if (target == null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "target cannot be null");
+        }
+        if (neighbours <= 0) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.NEIGHBOURS_NOT_POSITIVE, "number of neighbours must be positive: " + neighbours);
+        }
+        return new KDTreeNearestQuery<>(target, neighbours);
+    }
+
+    public KDTreeNearestQuery<K> maxVisitedNodes(long maxVisitedNodes) {
+        if (maxVisitedNodes <= 0) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.VISIT_BUDGET_NOT_POSITIVE, "max visited nodes must be positive: " + maxVisitedNodes);
+        }
+        this.maxVisitedNodes = maxVisitedNodes;
+        return this;
+    }
+
+    public KDTreeNearestQuery<K> epsilon(double epsilon) {
+        if (!(epsilon >= 0)) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.EPSILON_NEGATIVE, "epsilon cannot be negative: " + epsilon);
+        }
+        this.epsilon = epsilon;
+        return this;
+    }
+
+    public KDTreeNearestQuery<K> timeBudget(Duration timeBudget) {
+        if (timeBudget == null || timeBudget.isNegative() || timeBudget.isZero()) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.VISIT_BUDGET_NOT_POSITIVE, "time budget must be a positive duration: " + timeBudget);
+        }
+        this.timeBudget = timeBudget;
+        return this;
+    }
+}
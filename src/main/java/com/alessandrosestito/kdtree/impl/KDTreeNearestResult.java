@@ -0,0 +1,18 @@
+package com.alessandrosestito.kdtree.impl;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.List;
+import java.util.Map;
+
+@AllArgsConstructor(access = AccessLevel.PACKAGE)
+@Getter
+@ToString
+public class KDTreeNearestResult<K, V> {
+    private final List<Map.Entry<K, V>> entries;
+    private final boolean exact;
+    private final long visitedNodes;
+}
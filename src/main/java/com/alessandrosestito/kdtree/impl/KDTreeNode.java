@@ -4,14 +4,35 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.ToString;
 
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 @Data
 @Builder
 @ToString(exclude = {"left", "right"})
 public class KDTreeNode<K, V> {
+    @SuppressWarnings({"rawtypes"})
+    private static final AtomicReferenceFieldUpdater<KDTreeNode, KDTreeNode> LEFT = AtomicReferenceFieldUpdater.newUpdater(KDTreeNode.class, KDTreeNode.class, "left");
+    @SuppressWarnings({"rawtypes"})
+    private static final AtomicReferenceFieldUpdater<KDTreeNode, KDTreeNode> RIGHT = AtomicReferenceFieldUpdater.newUpdater(KDTreeNode.class, KDTreeNode.class, "right");
+
     private K key;
     private V value;
-    private KDTreeNode<K, V> left;
-    private KDTreeNode<K, V> right;
+    // volatile so that a child attached by a concurrent writer is seen fully built
+    private volatile KDTreeNode<K, V> left;
+    private volatile KDTreeNode<K, V> right;
     private int axis;
+    private long expiresAt;
+    private boolean deleted;
+
+    boolean isExpired(long now) {
+        return expiresAt != 0 && expiresAt <= now;
+    }
+
+    boolean attachLeft(KDTreeNode<K, V> child) {
+        return LEFT.compareAndSet(this, null, child);
+    }
+
+    boolean attachRight(KDTreeNode<K, V> child) {
+        return RIGHT.compareAndSet(this, null, child);
+    }
 }
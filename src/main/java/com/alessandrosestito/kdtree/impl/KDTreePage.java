@@ -0,0 +1,21 @@
+package com.alessandrosestito.kdtree.impl;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.List;
+import java.util.Map;
+
+@AllArgsConstructor(access = AccessLevel.PACKAGE)
+@Getter
+@ToString
+public class KDTreePage<K, V> {
+    private final List<Map.Entry<K, V>> entries;
+    private final KDTreeCursor<K, V> cursor;
+
+    public boolean hasNext() {
+        return cursor != null;
+    }
+}
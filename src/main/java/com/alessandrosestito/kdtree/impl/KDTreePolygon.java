@@ -0,0 +1,127 @@
+package com.alessandrosestito.kdtree.impl;
+
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+import lombok.Getter;
+
+import java.util.List;
+
+// a simple polygon, convex or not, the points on its edges are inside
+class KDTreePolygon<K extends KDTreeKey> implements KDTreeRegion<K> {
+
+    @Getter
+    private final List<String> features;
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] lower;
+    private final double[] upper;
+
+    KDTreePolygon(String xFeature, String yFeature, double[][] vertices) {
+        if (xFeature == null || yFeature == null || xFeature.equals(yFeature) || vertices == null || vertices.length < 3) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.REGION_INVALID, "a polygon needs two distinct features and at least three vertices");
+        }
+        features = List.of(xFeature, yFeature);
+        xs = new double[vertices.length];
+        ys = new double[vertices.length];
+        lower = new double[]{Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        upper = new double[]{Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int i = 0; i < vertices.length; i++) {
+            if (vertices[i] == null || vertices[i].length != 2 || !Double.isFinite(vertices[i][0]) || !Double.isFinite(vertices[i][1])) {
+                throw new KDTreeRuntimeException(KDTreeExceptionType.REGION_INVALID, "vertex " + i + " is not a finite {x, y} pair");
+            }
+            xs[i] = vertices[i][0];
+            ys[i] = vertices[i][1];
+            for (int axis = 0; axis < 2; axis++) {
+                lower[axis] = Math.min(lower[axis], vertices[i][axis]);
+                upper[axis] = Math.max(upper[axis], vertices[i][axis]);
+            }
+        }
+    }
+
+    // even-odd rule, after checking the edges so that the boundary is inside
+    @Override
+    public boolean contains(double[] point) {
+        double x = point[0];
+        double y = point[1];
+        if (x < lower[0] || x > upper[0] || y < lower[1] || y > upper[1]) {
+            return false;
+        }
+        boolean inside = false;
+        for (int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+            if (isOnSegment(x, y, xs[j], ys[j], xs[i], ys[i])) {
+                return true;
+            }
+            if ((ys[i] > y) != (ys[j] > y) && x < xs[j] + (y - ys[j]) * (xs[i] - xs[j]) / (ys[i] - ys[j])) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    // the box is first clamped to the bounding box of the polygon: it meets the polygon when an edge crosses it,
+    // otherwise it is either inside or outside as a whole and its center decides
+    @Override
+    public boolean intersects(double[] lower, double[] upper) {
+        double[] low = {Math.max(lower[0], this.lower[0]), Math.max(lower[1], this.lower[1])};
+        double[] high = {Math.min(upper[0], this.upper[0]), Math.min(upper[1], this.upper[1])};
+        if (low[0] > high[0] || low[1] > high[1]) {
+            return false;
+        }
+        for (int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+            if (clip(xs[j], ys[j], xs[i], ys[i], low, high) != null) {
+                return true;
+            }
+        }
+        return contains(new double[]{(low[0] + high[0]) / 2, (low[1] + high[1]) / 2});
+    }
+
+    // no edge enters the open box and its center is inside, a flat box is never reported as contained
+    @Override
+    public boolean contains(double[] lower, double[] upper) {
+        if (lower[0] < this.lower[0] || upper[0] > this.upper[0] || lower[1] < this.lower[1] || upper[1] > this.upper[1]
+                || !(lower[0] < upper[0]) || !(lower[1] < upper[1])) {
+            return false;
+        }
+        for (int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+            double[] clipped = clip(xs[j], ys[j], xs[i], ys[i], lower, upper);
+            if (clipped != null) {
+                // the middle of the part of the edge inside the closed box is on its border only when the whole part is
+                double t = (clipped[0] + clipped[1]) / 2;
+                double x = xs[j] + t * (xs[i] - xs[j]);
+                double y = ys[j] + t * (ys[i] - ys[j]);
+                if (x > lower[0] && x < upper[0] && y > lower[1] && y < upper[1]) {
+                    return false;
+                }
+            }
+        }
+        return contains(new double[]{(lower[0] + upper[0]) / 2, (lower[1] + upper[1]) / 2});
+    }
+
+    private static boolean isOnSegment(double x, double y, double x1, double y1, double x2, double y2) {
+        double cross = (x2 - x1) * (y - y1) - (y2 - y1) * (x - x1);
+        return cross == 0 && x >= Math.min(x1, x2) && x <= Math.max(x1, x2) && y >= Math.min(y1, y2) && y <= Math.max(y1, y2);
+    }
+
+    // Liang-Barsky: the parameters of the part of the segment inside the closed box, null when it misses the box
+    private static double[] clip(double x1, double y1, double x2, double y2, double[] lower, double[] upper) {
+        double[] p = {x1 - x2, x2 - x1, y1 - y2, y2 - y1};
+        double[] q = {x1 - lower[0], upper[0] - x1, y1 - lower[1], upper[1] - y1};
+        double t0 = 0;
+        double t1 = 1;
+        for (int i = 0; i < 4; i++) {
+            if (p[i] == 0) {
+                if (q[i] < 0) {
+                    return null;
+                }
+            } else {
+                double t = q[i] / p[i];
+                if (p[i] < 0) {
+                    t0 = Math.max(t0, t);
+                } else {
+                    t1 = Math.min(t1, t);
+                }
+            }
+        }
+        return t0 <= t1 ? new double[]{t0, t1} : null;
+    }
+}
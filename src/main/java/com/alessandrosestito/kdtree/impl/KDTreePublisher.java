@@ -0,0 +1,84 @@
+package com.alessandrosestito.kdtree.impl;
+
+import lombok.RequiredArgsConstructor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// the query runs on the executor at the first request, then the results are emitted only as requested by the subscriber
+@RequiredArgsConstructor
+class KDTreePublisher<K, V> implements Flow.Publisher<Map.Entry<K, V>> {
+
+    private final Supplier<List<Map.Entry<K, V>>> query;
+    private final Executor executor;
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Map.Entry<K, V>> subscriber) {
+        subscriber.onSubscribe(new ResultSubscription(subscriber));
+    }
+
+    @RequiredArgsConstructor
+    private class ResultSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super Map.Entry<K, V>> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pendingDrains = new AtomicInteger();
+        private volatile boolean done;
+        private List<Map.Entry<K, V>> results;
+        private int next;
+
+        @Override
+        public void request(long n) {
+            if (done) {
+                return;
+            }
+            if (n <= 0) {
+                done = true;
+                subscriber.onError(new IllegalArgumentException("requested " + n + " results, the request must be positive"));
+                return;
+            }
+            demand.getAndAccumulate(n, (current, requested) -> current + requested < 0 ? Long.MAX_VALUE : current + requested);
+            if (pendingDrains.getAndIncrement() == 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            done = true;
+        }
+
+        // a single drain runs at a time, the requests arrived while it was running are served before it exits
+        private void drain() {
+            int missed = 1;
+            do {
+                if (done) {
+                    return;
+                }
+                if (results == null) {
+                    try {
+                        results = query.get();
+                    } catch (RuntimeException e) {
+                        done = true;
+                        subscriber.onError(e);
+                        return;
+                    }
+                }
+                while (!done && next < results.size() && demand.get() > 0) {
+                    subscriber.onNext(results.get(next++));
+                    demand.decrementAndGet();
+                }
+                if (!done && next == results.size()) {
+                    done = true;
+                    subscriber.onComplete();
+                    return;
+                }
+                missed = pendingDrains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
@@ -12,8 +12,29 @@ public class KDTreeQuery<K, V> {
     private BiPredicate<K, V> matchFunction;
     private Long limit;
     private Map<String, KDTreeFeatureBound<? extends Comparable<?>>> boundsMap;
+    private String orderBy;
+    private KDTreeSortDirection direction;
+    private KDTreeCursor<K, V> cursor;
+    private KDTreeRegion<?> region;
 
     public boolean hasFeatureBounds() {
         return boundsMap != null && boundsMap.size() != 0;
     }
+
+    public boolean isOrdered() {
+        return orderBy != null;
+    }
+
+    // the match function with the point test of the region, for the paths that cannot prune on the region
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BiPredicate<K, V> getFilter() {
+        if (region == null) {
+            return matchFunction;
+        }
+        KDTreeRegion raw = region;
+        if (matchFunction == null) {
+            return (key, value) -> raw.contains((KDTreeKey) key);
+        }
+        return (key, value) -> raw.contains((KDTreeKey) key) && matchFunction.test(key, value);
+    }
 }
@@ -7,6 +7,9 @@ import lombok.RequiredArgsConstructor;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.BiConsumer;
 import java.util.function.BiPredicate;
 
 @RequiredArgsConstructor(access = AccessLevel.MODULE)
@@ -16,6 +19,10 @@ public class KDTreeQueryBuilder<K extends KDTreeKey, V> {
     private final Map<String, KDTreeFeatureBound<? extends Comparable<?>>> boundMap = new HashMap<>();
     private BiPredicate<K, V> matchFunction;
     private Long limit;
+    private String orderBy;
+    private KDTreeSortDirection direction;
+    private KDTreeCursor<K, V> cursor;
+    private KDTreeRegion<K> region;
 
     public <S extends Comparable<S>> KDTreeQueryBuilder<K, V> featureBounds(String name, S lowerBound, S upperBound) {
         KDTreeFeatureBound<S> bound = new KDTreeFeatureBound<>(name, lowerBound, upperBound);
@@ -65,13 +72,56 @@ public class KDTreeQueryBuilder<K extends KDTreeKey, V> {
         return this;
     }
 
+    public KDTreeQueryBuilder<K, V> orderBy(String featureName, KDTreeSortDirection direction) {
+        this.orderBy = featureName;
+        this.direction = direction;
+        return this;
+    }
+
+    public KDTreeQueryBuilder<K, V> region(KDTreeRegion<K> region) {
+        this.region = region;
+        return this;
+    }
+
+    public KDTreeQueryBuilder<K, V> after(KDTreeCursor<K, V> cursor) {
+        this.cursor = cursor;
+        return this;
+    }
+
     public List<Map.Entry<K, V>> execute() {
-        KDTreeQuery<K, V> query = KDTreeQuery.<K, V>builder()
+        return kdTree.find(build());
+    }
+
+    public KDTreePage<K, V> executePage() {
+        return kdTree.findPage(build());
+    }
+
+    public CompletableFuture<List<Map.Entry<K, V>>> executeAsync() {
+        return kdTree.findAsync(build());
+    }
+
+    public Flow.Publisher<Map.Entry<K, V>> publisher() {
+        return kdTree.publisher(build());
+    }
+
+    public void forEach(BiConsumer<K, V> consumer) {
+        kdTree.visit(build(), KDTreeVisitor.of(consumer));
+    }
+
+    public void forEach(KDTreeVisitor<K, V> visitor) {
+        kdTree.visit(build(), visitor);
+    }
+
+    public KDTreeQuery<K, V> build() {
+        return KDTreeQuery.<K, V>builder()
                 .boundsMap(boundMap)
                 .matchFunction(matchFunction)
                 .limit(limit)
+                .orderBy(orderBy)
+                .direction(direction)
+                .cursor(cursor)
+                .region(region)
                 .build();
-        return kdTree.find(query);
     }
 
 }
@@ -0,0 +1,54 @@
+package com.alessandrosestito.kdtree.impl;
+
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+
+import java.util.List;
+import java.util.Map;
+
+// a region over some numeric features, the coordinates are passed in the order of getFeatures and an unbounded side of
+// a box is infinite. The box tests may be conservative: intersects can answer true for a disjoint box and contains(box)
+// false for a box inside the region, they only cost pruning, the point test must be exact
+public interface KDTreeRegion<K extends KDTreeKey> {
+
+    List<String> getFeatures();
+
+    boolean contains(double[] point);
+
+    boolean intersects(double[] lower, double[] upper);
+
+    boolean contains(double[] lower, double[] upper);
+
+    // the key is tested once, so its features are read from its fields and its cache is left alone, as a compact
+    // tree does
+    default boolean contains(K key) {
+        List<String> features = getFeatures();
+        double[] point = new double[features.size()];
+        for (int i = 0; i < point.length; i++) {
+            point[i] = toDouble(KDTreeUtils.feature(key, key.getIndexedFieldPosition(features.get(i)), true), features.get(i));
+        }
+        return contains(point);
+    }
+
+    // the polygon on the plane of two features, its vertices are {x, y} pairs in order, clockwise or not
+    static <K extends KDTreeKey> KDTreeRegion<K> polygon(String xFeature, String yFeature, double[][] vertices) {
+        return new KDTreePolygon<>(xFeature, yFeature, vertices);
+    }
+
+    // the points whose weighted sum of the features is at least the threshold
+    static <K extends KDTreeKey> KDTreeRegion<K> halfSpace(Map<String, Double> weights, double threshold) {
+        return new KDTreeHalfSpace<>(weights, threshold);
+    }
+
+    // the points within the radius from the center, by euclidean distance over the features of the center
+    static <K extends KDTreeKey> KDTreeRegion<K> ball(Map<String, Double> center, double radius) {
+        return new KDTreeBall<>(center, radius);
+    }
+
+    static double toDouble(Comparable<?> value, String feature) {
+        if (!(value instanceof Number)) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.FEATURE_NOT_NUMERIC, "region feature " + feature + " is not numeric: " + value);
+        }
+        return ((Number) value).doubleValue();
+    }
+}
@@ -0,0 +1,86 @@
+package com.alessandrosestito.kdtree.impl;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// the nodes of the tree sorted by the value of a single feature, the nodes sharing a value are kept by key. It follows
+// the hash index: tombstones stay in it until they are dropped from the tree
+class KDTreeSecondaryIndex<K extends KDTreeKey, V> {
+
+    private final int axis;
+    private final boolean concurrent;
+    private final boolean compactStorage;
+    private final NavigableMap<Comparable<?>, Map<K, KDTreeNode<K, V>>> nodes;
+
+    KDTreeSecondaryIndex(int axis, boolean concurrent, boolean compactStorage) {
+        this.axis = axis;
+        this.concurrent = concurrent;
+        this.compactStorage = compactStorage;
+        // concurrent writers add their nodes under the read lock, the removals always hold the write lock
+        nodes = concurrent ? new ConcurrentSkipListMap<>() : new TreeMap<>();
+    }
+
+    int getAxis() {
+        return axis;
+    }
+
+    // a null feature can never be within a bound, so it is not indexed
+    void put(K key, KDTreeNode<K, V> node) {
+        Comparable<?> value = KDTreeUtils.feature(key, axis, compactStorage);
+        if (value == null) {
+            return;
+        }
+        nodes.computeIfAbsent(value, v -> concurrent ? new ConcurrentHashMap<>() : new HashMap<>()).put(key, node);
+    }
+
+    void remove(K key) {
+        Comparable<?> value = KDTreeUtils.feature(key, axis, compactStorage);
+        if (value == null) {
+            return;
+        }
+        Map<K, KDTreeNode<K, V>> sameValue = nodes.get(value);
+        if (sameValue != null && sameValue.remove(key) != null && sameValue.isEmpty()) {
+            nodes.remove(value);
+        }
+    }
+
+    // the groups of nodes within the inclusive bound, in the order of the feature
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Collection<Map<K, KDTreeNode<K, V>>> range(KDTreeFeatureBound<?> bound, boolean descending) {
+        Comparable lower = bound.getLowerBound();
+        Comparable upper = bound.getUpperBound();
+        if (lower != null && upper != null && lower.compareTo(upper) > 0) {
+            return Collections.emptyList();
+        }
+        NavigableMap<Comparable<?>, Map<K, KDTreeNode<K, V>>> range = nodes;
+        if (lower != null) {
+            range = range.tailMap(lower, true);
+        }
+        if (upper != null) {
+            range = range.headMap(upper, true);
+        }
+        return descending ? range.descendingMap().values() : range.values();
+    }
+
+    // walks the range until the cap, so a bound is found selective without counting all its nodes
+    boolean isWithin(KDTreeFeatureBound<?> bound, long cap) {
+        long count = 0;
+        for (Map<K, KDTreeNode<K, V>> sameValue : range(bound, false)) {
+            count += sameValue.size();
+            if (count > cap) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the tree map entry of every value with its map of nodes
+    long estimateBytes() {
+        long bytes = 0;
+        for (Map<K, KDTreeNode<K, V>> sameValue : nodes.values()) {
+            bytes += 40 + KDTreeMemory.hashMap(sameValue.size());
+        }
+        return bytes;
+    }
+}
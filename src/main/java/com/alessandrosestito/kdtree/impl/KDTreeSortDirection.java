@@ -0,0 +1,6 @@
+package com.alessandrosestito.kdtree.impl;
+
+public enum KDTreeSortDirection {
+    ASC,
+    DESC
+}
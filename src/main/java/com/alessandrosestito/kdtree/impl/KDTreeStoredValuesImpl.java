@@ -0,0 +1,374 @@
+package com.alessandrosestito.kdtree.impl;
+
+import com.alessandrosestito.kdtree.KDTree;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+// the backend indexes the keys with the id of their value in the store, so the traversals touch only the keys and
+// a value is loaded when the entry returned is read. The backend reports the values of the entries it deletes or
+// evicts, which are removed from the store in the same write, as the replaced values are. The trees merged or split
+// from this one share its store, which is closed with the last of them, and the ids they share are counted
+class KDTreeStoredValuesImpl<K extends KDTreeKey, V> implements KDTree<K, V> {
+
+    private final KDTree<K, Long> backend;
+    private final KDTreeValueStore<V> store;
+    private final Class<K> keyClass;
+    private final Executor asyncExecutor;
+    private final AtomicInteger owners;
+    // the references to the ids held by more than one of the trees sharing the store, an id missing has a single one
+    private final Map<Long, Integer> sharedIds;
+    private final AtomicBoolean closed;
+
+    KDTreeStoredValuesImpl(KDTreeBuilder<K, V> builder) {
+        store = builder.getValueStore();
+        keyClass = builder.getKeyClass();
+        asyncExecutor = builder.getAsyncExecutor() != null ? builder.getAsyncExecutor() : KDTreeUtils.defaultAsyncExecutor();
+        owners = new AtomicInteger(1);
+        sharedIds = new ConcurrentHashMap<>();
+        closed = new AtomicBoolean(false);
+        // the backend is built from the same options, holding the ids of the stored values
+        backend = builder.buildBackend(this::release);
+    }
+
+    private KDTreeStoredValuesImpl(KDTree<K, Long> backend, KDTreeValueStore<V> store, Class<K> keyClass, Executor asyncExecutor,
+                                   AtomicInteger owners, Map<Long, Integer> sharedIds) {
+        this.backend = backend;
+        this.store = store;
+        this.keyClass = keyClass;
+        this.asyncExecutor = asyncExecutor;
+        this.owners = owners;
+        this.sharedIds = sharedIds;
+        closed = new AtomicBoolean(false);
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (owners.get() > 1) {
+                backend.query().execute().forEach(entry -> release(entry.getValue()));
+            }
+            backend.close();
+        } finally {
+            if (owners.decrementAndGet() == 0) {
+                store.close();
+            }
+        }
+    }
+
+    @Override
+    public void insert(K key, V value) {
+        long id = store.put(value);
+        try {
+            backend.insert(key, id);
+        } catch (RuntimeException e) {
+            store.remove(id);
+            throw e;
+        }
+    }
+
+    @Override
+    public void insert(K key, V value, Duration timeToLive) {
+        long id = store.put(value);
+        try {
+            backend.insert(key, id, timeToLive);
+        } catch (RuntimeException e) {
+            store.remove(id);
+            throw e;
+        }
+    }
+
+    @Override
+    public void insertAll(Collection<Map.Entry<K, V>> entries) {
+        List<Map.Entry<K, Long>> stored = new ArrayList<>(entries.size());
+        for (Map.Entry<K, V> entry : entries) {
+            stored.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), store.put(entry.getValue())));
+        }
+        try {
+            backend.insertAll(stored);
+        } catch (RuntimeException e) {
+            stored.forEach(entry -> store.remove(entry.getValue()));
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean delete(K key) {
+        return backend.delete(key);
+    }
+
+    @Override
+    public long deleteRange(KDTreeQuery<K, V> query) {
+        return backend.deleteRange(translate(query));
+    }
+
+    @Override
+    public boolean update(K key, V value) {
+        Map.Entry<K, Long> entry = backend.get(key);
+        long id = store.put(value);
+        boolean updated = backend.update(key, id);
+        release(updated && entry != null ? entry.getValue() : id);
+        return updated;
+    }
+
+    @Override
+    public V upsert(K key, V value) {
+        long id = store.put(value);
+        Long previous = backend.upsert(key, id);
+        if (previous == null) {
+            return null;
+        }
+        V previousValue = store.get(previous);
+        release(previous);
+        return previousValue;
+    }
+
+    @Override
+    public boolean move(K oldKey, K newKey) {
+        return backend.move(oldKey, newKey);
+    }
+
+    @Override
+    public long moveAll(Map<K, K> moves) {
+        return backend.moveAll(moves);
+    }
+
+    @Override
+    public long evictExpired() {
+        return backend.evictExpired();
+    }
+
+    @Override
+    public KDTreeQueryBuilder<K, V> query() {
+        return new KDTreeQueryBuilder<>(this);
+    }
+
+    @Override
+    public List<Map.Entry<K, V>> find(KDTreeQuery<K, V> query) {
+        return load(backend.find(translate(query)));
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public KDTreePage<K, V> findPage(KDTreeQuery<K, V> query) {
+        KDTreePage<K, Long> page = backend.findPage(translate(query));
+        return new KDTreePage<>(load(page.getEntries()), (KDTreeCursor) page.getCursor());
+    }
+
+    @Override
+    public CompletableFuture<List<Map.Entry<K, V>>> findAsync(KDTreeQuery<K, V> query) {
+        return CompletableFuture.supplyAsync(() -> find(query), asyncExecutor);
+    }
+
+    @Override
+    public Flow.Publisher<Map.Entry<K, V>> publisher(KDTreeQuery<K, V> query) {
+        return new KDTreePublisher<>(() -> find(query), asyncExecutor);
+    }
+
+    @Override
+    public List<List<Map.Entry<K, V>>> findAll(List<KDTreeQuery<K, V>> queries) {
+        return backend.findAll(queries.stream().map(this::translate).collect(Collectors.toList())).stream()
+                .map(this::load).collect(Collectors.toList());
+    }
+
+    @Override
+    public void visit(KDTreeQuery<K, V> query, KDTreeVisitor<K, V> visitor) {
+        backend.visit(translate(query), new KDTreeVisitor<>() {
+            @Override
+            public void visit(K key, Long id) {
+                visitor.visit(key, store.get(id));
+            }
+
+            @Override
+            public boolean shouldContinue() {
+                return visitor.shouldContinue();
+            }
+        });
+    }
+
+    @Override
+    public KDTreeNearestResult<K, V> nearest(KDTreeNearestQuery<K> query) {
+        KDTreeNearestResult<K, Long> result = backend.nearest(query);
+        return new KDTreeNearestResult<>(load(result.getEntries()), result.isExact(), result.getVisitedNodes());
+    }
+
+    // the events carry the values, so they are loaded on the subscription executor before the listener runs
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public KDTreeSubscription<K, V> subscribe(KDTreeQuery<K, V> query, KDTreeListener<K, V> listener) {
+        KDTreeSubscription<K, Long> subscription = backend.subscribe(translate(query),
+                event -> listener.onEvent(new KDTreeEvent<>(event.getType(), event.getKey(), store.get(event.getValue()))));
+        return (KDTreeSubscription) subscription;
+    }
+
+    @Override
+    public <W> void join(KDTree<K, W> other, KDTreeJoinCondition<K> condition, BiConsumer<Map.Entry<K, V>, Map.Entry<K, W>> consumer) {
+        backend.join(other, condition, (entry, otherEntry) -> consumer.accept(new StoredEntry<>(entry.getKey(), entry.getValue(), store), otherEntry));
+    }
+
+    @Override
+    public Map.Entry<K, V> get(K key) {
+        Map.Entry<K, Long> entry = backend.get(key);
+        return entry == null ? null : new StoredEntry<>(entry.getKey(), entry.getValue(), store);
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return backend.containsKey(key);
+    }
+
+    @Override
+    public long size() {
+        return backend.size();
+    }
+
+    @Override
+    public KDTreeMemoryStats memoryStats() {
+        return backend.memoryStats();
+    }
+
+    @Override
+    public void balance() {
+        backend.balance();
+    }
+
+    @Override
+    public double score() {
+        return backend.score();
+    }
+
+    // the trees sharing this store are merged by their ids, the values of the other trees are copied into it
+    @Override
+    @SuppressWarnings({"unchecked"})
+    public KDTree<K, V> merge(List<? extends KDTree<K, V>> others) {
+        List<KDTree<K, Long>> backends = new ArrayList<>();
+        List<Map.Entry<K, Long>> copied = new ArrayList<>();
+        Set<Long> copies = new HashSet<>();
+        for (KDTree<K, V> other : others) {
+            if (other instanceof KDTreeStoredValuesImpl && ((KDTreeStoredValuesImpl<K, V>) other).store == store) {
+                backends.add(((KDTreeStoredValuesImpl<K, V>) other).backend);
+            } else {
+                other.query().execute().forEach(entry -> copied.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), store.put(entry.getValue()))));
+                copied.subList(copies.size(), copied.size()).forEach(entry -> copies.add(entry.getValue()));
+            }
+        }
+        if (copied.isEmpty()) {
+            return share(backend.merge(backends), copies);
+        }
+        try (KDTree<K, Long> copiedTree = new KDTreeBuilder<K, Long>(keyClass).build()) {
+            copiedTree.insertAll(copied);
+            backends.add(copiedTree);
+            return share(backend.merge(backends), copies);
+        }
+    }
+
+    @Override
+    public List<KDTree<K, V>> split(Predicate<K> predicate) {
+        return backend.split(predicate).stream().map(part -> share(part, Set.of())).collect(Collectors.toList());
+    }
+
+    // every id of the new tree gains a reference, but the values copied into the store for it
+    private KDTree<K, V> share(KDTree<K, Long> part, Set<Long> copies) {
+        part.query().execute().forEach(entry -> {
+            if (!copies.contains(entry.getValue())) {
+                sharedIds.merge(entry.getValue(), 2, (references, added) -> references + 1);
+            }
+        });
+        owners.incrementAndGet();
+        return new KDTreeStoredValuesImpl<>(part, store, keyClass, asyncExecutor, owners, sharedIds);
+    }
+
+    // an id shared with other trees loses a reference, the last reference removes the value from the store
+    private void release(long id) {
+        boolean[] shared = {false};
+        sharedIds.computeIfPresent(id, (key, references) -> {
+            shared[0] = true;
+            return references == 2 ? null : references - 1;
+        });
+        if (!shared[0]) {
+            store.remove(id);
+        }
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private KDTreeQuery<K, Long> translate(KDTreeQuery<K, V> query) {
+        BiPredicate<K, V> matchFunction = query.getMatchFunction();
+        return KDTreeQuery.<K, Long>builder().boundsMap(query.getBoundsMap()).limit(query.getLimit()).orderBy(query.getOrderBy())
+                .direction(query.getDirection()).cursor((KDTreeCursor<K, Long>) (KDTreeCursor<?, ?>) query.getCursor()).region(query.getRegion())
+                .matchFunction(matchFunction == null ? null : (key, id) -> matchFunction.test(key, store.get(id))).build();
+    }
+
+    private List<Map.Entry<K, V>> load(List<Map.Entry<K, Long>> entries) {
+        List<Map.Entry<K, V>> loaded = new ArrayList<>(entries.size());
+        for (Map.Entry<K, Long> entry : entries) {
+            loaded.add(new StoredEntry<>(entry.getKey(), entry.getValue(), store));
+        }
+        return loaded;
+    }
+
+    // reads the value from the store the first time it is asked for
+    private static class StoredEntry<K, V> implements Map.Entry<K, V> {
+        private final K key;
+        private final long id;
+        private final KDTreeValueStore<V> store;
+        private boolean loaded;
+        private V value;
+
+        StoredEntry(K key, long id, KDTreeValueStore<V> store) {
+            this.key = key;
+            this.id = id;
+            this.store = store;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            if (!loaded) {
+                value = store.get(id);
+                loaded = true;
+            }
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+            return Objects.equals(key, entry.getKey()) && Objects.equals(getValue(), entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(key) ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + getValue();
+        }
+    }
+}
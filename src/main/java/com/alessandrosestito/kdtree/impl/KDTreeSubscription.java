@@ -0,0 +1,104 @@
+package com.alessandrosestito.kdtree.impl;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+public class KDTreeSubscription<K extends KDTreeKey, V> implements AutoCloseable {
+
+    private final KDTreeSubscriptions<K, V> subscriptions;
+    @Getter(AccessLevel.PACKAGE)
+    private final KDTreeFeatureBound<?>[] bounds;
+    private final Predicate<K> withinBounds;
+    private final BiPredicate<K, V> matchFunction;
+    private final SubmissionPublisher<KDTreeEvent<K, V>> publisher;
+    private final AtomicLong droppedEvents;
+    private final AtomicLong failedEvents;
+
+    KDTreeSubscription(KDTreeSubscriptions<K, V> subscriptions, KDTreeFeatureBound<?>[] bounds, Predicate<K> withinBounds,
+                       BiPredicate<K, V> matchFunction, KDTreeListener<K, V> listener, Executor executor, int bufferCapacity) {
+        this.subscriptions = subscriptions;
+        this.bounds = bounds;
+        this.withinBounds = withinBounds;
+        this.matchFunction = matchFunction;
+        droppedEvents = new AtomicLong();
+        failedEvents = new AtomicLong();
+        publisher = new SubmissionPublisher<>(executor, bufferCapacity);
+        publisher.subscribe(new Flow.Subscriber<>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            // one event is requested at a time, so a slow listener fills the buffer instead of the writers waiting. An
+            // exception of the listener is counted and the next events are still delivered
+            @Override
+            public void onNext(KDTreeEvent<K, V> event) {
+                try {
+                    listener.onEvent(event);
+                } catch (RuntimeException e) {
+                    failedEvents.incrementAndGet();
+                }
+                subscription.request(1);
+            }
+
+            // the publisher has dropped this subscriber, so no event would be delivered anymore
+            @Override
+            public void onError(Throwable throwable) {
+                cancel();
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+    }
+
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    public long getFailedEvents() {
+        return failedEvents.get();
+    }
+
+    public boolean isCancelled() {
+        return publisher.isClosed();
+    }
+
+    public void cancel() {
+        if (!publisher.isClosed()) {
+            subscriptions.remove(this);
+            publisher.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        cancel();
+    }
+
+    boolean matches(K key, V value) {
+        return withinBounds.test(key) && (matchFunction == null || matchFunction.test(key, value));
+    }
+
+    void deliver(KDTreeEvent<K, V> event) {
+        try {
+            publisher.offer(event, (subscriber, dropped) -> {
+                droppedEvents.incrementAndGet();
+                return false;
+            });
+        } catch (IllegalStateException e) {
+            // cancelled while the event was published
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.alessandrosestito.kdtree.impl;
+
+import lombok.RequiredArgsConstructor;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+// every subscription is indexed by the interval of its first bounded feature, so a write only checks
+// the subscriptions whose interval contains the written key, the index is rebuilt when the subscriptions change
+@RequiredArgsConstructor
+class KDTreeSubscriptions<K extends KDTreeKey, V> {
+
+    private final int dimensions;
+    private final boolean compactStorage;
+    private final Executor executor;
+    private final int bufferCapacity;
+    private final List<KDTreeSubscription<K, V>> subscriptions = new ArrayList<>();
+    private volatile SubscriptionIndex<K, V> index;
+
+    KDTreeSubscription<K, V> add(KDTreeFeatureBound<?>[] bounds, Predicate<K> withinBounds, BiPredicate<K, V> matchFunction, KDTreeListener<K, V> listener) {
+        KDTreeSubscription<K, V> subscription = new KDTreeSubscription<>(this, bounds, withinBounds, matchFunction, listener, executor, bufferCapacity);
+        synchronized (this) {
+            subscriptions.add(subscription);
+            index = new SubscriptionIndex<>(subscriptions, dimensions);
+        }
+        return subscription;
+    }
+
+    synchronized void remove(KDTreeSubscription<K, V> subscription) {
+        subscriptions.remove(subscription);
+        index = subscriptions.isEmpty() ? null : new SubscriptionIndex<>(subscriptions, dimensions);
+    }
+
+    void close() {
+        List<KDTreeSubscription<K, V>> cancelled;
+        synchronized (this) {
+            cancelled = new ArrayList<>(subscriptions);
+        }
+        cancelled.forEach(KDTreeSubscription::cancel);
+    }
+
+    boolean isEmpty() {
+        return index == null;
+    }
+
+    void publish(KDTreeEventType type, K key, V value) {
+        SubscriptionIndex<K, V> current = index;
+        if (current == null) {
+            return;
+        }
+        KDTreeEvent<K, V> event = new KDTreeEvent<>(type, key, value);
+        for (KDTreeSubscription<K, V> subscription : current.unbounded) {
+            deliver(subscription, event);
+        }
+        for (int axis = 0; axis < dimensions; axis++) {
+            IntervalNode<K, V> node = current.roots[axis];
+            Comparable<?> feature = node == null ? null : KDTreeUtils.feature(key, axis, compactStorage);
+            while (node != null) {
+                int compare = compare(feature, node.center);
+                if (compare < 0) {
+                    for (KDTreeSubscription<K, V> subscription : node.byLower) {
+                        Comparable<?> lower = subscription.getBounds()[axis].getLowerBound();
+                        if (lower != null && compare(lower, feature) > 0) {
+                            break;
+                        }
+                        deliver(subscription, event);
+                    }
+                    node = node.left;
+                } else if (compare > 0) {
+                    for (KDTreeSubscription<K, V> subscription : node.byUpper) {
+                        Comparable<?> upper = subscription.getBounds()[axis].getUpperBound();
+                        if (upper != null && compare(upper, feature) < 0) {
+                            break;
+                        }
+                        deliver(subscription, event);
+                    }
+                    node = node.right;
+                } else {
+                    node.byLower.forEach(subscription -> deliver(subscription, event));
+                    node = null;
+                }
+            }
+        }
+    }
+
+    private void deliver(KDTreeSubscription<K, V> subscription, KDTreeEvent<K, V> event) {
+        if (subscription.matches(event.getKey(), event.getValue())) {
+            subscription.deliver(event);
+        }
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static int compare(Comparable<?> c1, Comparable<?> c2) {
+        return ((Comparable<Object>) c1).compareTo(c2);
+    }
+
+    private static class SubscriptionIndex<K extends KDTreeKey, V> {
+        private final List<KDTreeSubscription<K, V>> unbounded = new ArrayList<>();
+        private final IntervalNode<K, V>[] roots;
+
+        private SubscriptionIndex(List<KDTreeSubscription<K, V>> subscriptions, int dimensions) {
+            List<List<KDTreeSubscription<K, V>>> byAxis = new ArrayList<>();
+            for (int axis = 0; axis < dimensions; axis++) {
+                byAxis.add(new ArrayList<>());
+            }
+            for (KDTreeSubscription<K, V> subscription : subscriptions) {
+                int axis = indexedAxis(subscription.getBounds());
+                if (axis == -1) {
+                    unbounded.add(subscription);
+                } else if (axis < dimensions) {
+                    byAxis.get(axis).add(subscription);
+                }
+            }
+            @SuppressWarnings({"unchecked"})
+            IntervalNode<K, V>[] axisRoots = (IntervalNode<K, V>[]) new IntervalNode<?, ?>[dimensions];
+            roots = axisRoots;
+            for (int axis = 0; axis < dimensions; axis++) {
+                roots[axis] = build(byAxis.get(axis), axis);
+            }
+        }
+
+        // the first bounded feature, -1 when no feature is bounded, dimensions when a bound is empty and nothing can match
+        private static int indexedAxis(KDTreeFeatureBound<?>[] bounds) {
+            int indexed = -1;
+            for (int axis = 0; axis < bounds.length; axis++) {
+                KDTreeFeatureBound<?> bound = bounds[axis];
+                if (bound == null || (bound.getLowerBound() == null && bound.getUpperBound() == null)) {
+                    continue;
+                }
+                if (bound.getLowerBound() != null && bound.getUpperBound() != null && compare(bound.getLowerBound(), bound.getUpperBound()) > 0) {
+                    return bounds.length;
+                }
+                if (indexed == -1) {
+                    indexed = axis;
+                }
+            }
+            return indexed;
+        }
+
+        private static <K extends KDTreeKey, V> IntervalNode<K, V> build(List<KDTreeSubscription<K, V>> subscriptions, int axis) {
+            if (subscriptions.isEmpty()) {
+                return null;
+            }
+            List<Comparable<?>> endpoints = new ArrayList<>();
+            for (KDTreeSubscription<K, V> subscription : subscriptions) {
+                KDTreeFeatureBound<?> bound = subscription.getBounds()[axis];
+                if (bound.getLowerBound() != null) {
+                    endpoints.add(bound.getLowerBound());
+                }
+                if (bound.getUpperBound() != null) {
+                    endpoints.add(bound.getUpperBound());
+                }
+            }
+            endpoints.sort(KDTreeSubscriptions::compare);
+            Comparable<?> center = endpoints.get(endpoints.size() / 2);
+
+            List<KDTreeSubscription<K, V>> left = new ArrayList<>();
+            List<KDTreeSubscription<K, V>> right = new ArrayList<>();
+            List<KDTreeSubscription<K, V>> crossing = new ArrayList<>();
+            for (KDTreeSubscription<K, V> subscription : subscriptions) {
+                KDTreeFeatureBound<?> bound = subscription.getBounds()[axis];
+                if (bound.getUpperBound() != null && compare(bound.getUpperBound(), center) < 0) {
+                    left.add(subscription);
+                } else if (bound.getLowerBound() != null && compare(bound.getLowerBound(), center) > 0) {
+                    right.add(subscription);
+                } else {
+                    crossing.add(subscription);
+                }
+            }
+
+            IntervalNode<K, V> node = new IntervalNode<>(center);
+            node.byLower.addAll(crossing);
+            node.byLower.sort((o1, o2) -> compareBounds(o1.getBounds()[axis].getLowerBound(), o2.getBounds()[axis].getLowerBound()));
+            node.byUpper.addAll(crossing);
+            node.byUpper.sort((o1, o2) -> compareBounds(o2.getBounds()[axis].getUpperBound(), o1.getBounds()[axis].getUpperBound()));
+            node.left = build(left, axis);
+            node.right = build(right, axis);
+            return node;
+        }
+
+        // a missing lower bound sorts first in ascending order, a missing upper bound sorts first in descending order
+        private static int compareBounds(Comparable<?> c1, Comparable<?> c2) {
+            if (c1 == null || c2 == null) {
+                return c1 == c2 ? 0 : c1 == null ? -1 : 1;
+            }
+            return compare(c1, c2);
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static class IntervalNode<K extends KDTreeKey, V> {
+        private final Comparable<?> center;
+        private final List<KDTreeSubscription<K, V>> byLower = new ArrayList<>();
+        private final List<KDTreeSubscription<K, V>> byUpper = new ArrayList<>();
+        private IntervalNode<K, V> left;
+        private IntervalNode<K, V> right;
+    }
+}
@@ -0,0 +1,271 @@
+package com.alessandrosestito.kdtree.impl;
+
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+import lombok.RequiredArgsConstructor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// an append-only file of length prefixed records, the id of a value maps to the offset of its record. Once the removed
+// records outnumber the live ones the file is rewritten with the live records only, so the ids stay the same while
+// the records move. The hot values are kept in access order with their encoded size, the least recently used are
+// dropped once the budget is exceeded
+class KDTreeTieredValueStore<V> implements KDTreeValueStore<V> {
+
+    // below this number of removed records the file is not worth rewriting
+    private static final int MIN_REMOVED_TO_COMPACT = 1 << 10;
+
+    private final Path file;
+    private final long maxBytesInMemory;
+    private final KDTreeValueCodec<V> codec;
+    private final LinkedHashMap<Long, Hot<V>> hot;
+    // the file is read and appended to under the read lock, it is rewritten under the write lock
+    private final ReentrantReadWriteLock lock;
+    private FileChannel channel;
+    // the offset of the record of every id, bitwise complemented once the value is removed
+    private Map<Long, Long> offsets;
+    private long hotBytes;
+    private long end;
+    private long nextId;
+    private long removed;
+    private IOException compactionFailure;
+
+    @RequiredArgsConstructor
+    private static class Hot<V> {
+        private final V value;
+        private final int bytes;
+    }
+
+    KDTreeTieredValueStore(Path file, long maxBytesInMemory, KDTreeValueCodec<V> codec) {
+        if (maxBytesInMemory < 0) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.VALUE_STORE_BUDGET_NEGATIVE, "bytes in memory cannot be negative: " + maxBytesInMemory);
+        }
+        this.file = file;
+        this.maxBytesInMemory = maxBytesInMemory;
+        this.codec = codec;
+        hot = new LinkedHashMap<>(16, 0.75f, true);
+        lock = new ReentrantReadWriteLock();
+        offsets = new HashMap<>();
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw failed("cannot open " + file, e);
+        }
+    }
+
+    @Override
+    public long put(V value) {
+        byte[] bytes = codec.encode(value);
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + bytes.length).putInt(bytes.length).put(bytes);
+        record.flip();
+        Runnable unlock = readLock();
+        try {
+            long id;
+            long position;
+            synchronized (this) {
+                id = nextId++;
+                position = end;
+                end += record.capacity();
+                offsets.put(id, position);
+            }
+            // the space is reserved, so the record is written without holding the monitor
+            write(channel, record, position);
+            keep(id, value, bytes.length);
+            return id;
+        } catch (IOException e) {
+            throw failed("cannot write a value to " + file, e);
+        } finally {
+            unlock.run();
+        }
+    }
+
+    // a removed value is still read from the file until the file is rewritten
+    @Override
+    public V get(long id) {
+        Runnable unlock = readLock();
+        try {
+            long offset;
+            synchronized (this) {
+                Hot<V> cached = hot.get(id);
+                if (cached != null) {
+                    return cached.value;
+                }
+                Long position = offsets.get(id);
+                if (position == null) {
+                    throw new KDTreeRuntimeException(KDTreeExceptionType.VALUE_NOT_EXISTS, "the value " + id + " has been removed from " + file);
+                }
+                offset = position < 0 ? ~position : position;
+            }
+            ByteBuffer header = read(offset, Integer.BYTES);
+            byte[] bytes = read(offset + Integer.BYTES, header.getInt()).array();
+            V value = codec.decode(bytes);
+            keep(id, value, bytes.length);
+            return value;
+        } catch (IOException e) {
+            throw failed("cannot read the value " + id + " from " + file, e);
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public void remove(long id) {
+        synchronized (this) {
+            Hot<V> cached = hot.remove(id);
+            if (cached != null) {
+                hotBytes -= cached.bytes;
+            }
+            Long offset = offsets.get(id);
+            if (offset == null || offset < 0) {
+                return;
+            }
+            offsets.put(id, ~offset);
+            removed++;
+            if (!isCompactionDue()) {
+                return;
+            }
+        }
+        compact();
+    }
+
+    // a failed rewrite leaves the file as it was and is not tried again, close reports it
+    @Override
+    public void close() {
+        synchronized (this) {
+            hot.clear();
+            hotBytes = 0;
+        }
+        try {
+            channel.close();
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            throw failed("cannot delete " + file, e);
+        }
+        if (compactionFailure != null) {
+            throw failed("cannot compact " + file, compactionFailure);
+        }
+    }
+
+    private boolean isCompactionDue() {
+        return compactionFailure == null && removed >= MIN_REMOVED_TO_COMPACT && removed > offsets.size() - removed;
+    }
+
+    // the live records are copied into a new file that replaces the old one, the removed ids are forgotten
+    private void compact() {
+        Runnable unlock = writeLock();
+        try {
+            synchronized (this) {
+                if (!isCompactionDue()) {
+                    return;
+                }
+                Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+                Map<Long, Long> moved = new HashMap<>();
+                long position = 0;
+                FileChannel target = null;
+                try {
+                    target = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING);
+                    for (Map.Entry<Long, Long> entry : offsets.entrySet()) {
+                        if (entry.getValue() < 0) {
+                            continue;
+                        }
+                        int length = read(entry.getValue(), Integer.BYTES).getInt();
+                        ByteBuffer record = read(entry.getValue(), Integer.BYTES + length);
+                        moved.put(entry.getKey(), position);
+                        position += write(target, record, position);
+                    }
+                    // the new file is kept open, so it is read and appended to under its final name
+                    Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    compactionFailure = e;
+                    discard(target, compacted);
+                    return;
+                }
+                FileChannel previous = channel;
+                channel = target;
+                offsets = moved;
+                end = position;
+                removed = 0;
+                discard(previous, null);
+            }
+        } finally {
+            unlock.run();
+        }
+    }
+
+    private void discard(FileChannel channel, Path path) {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            if (path != null) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            compactionFailure = e;
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("unexpected end of file at " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private int write(FileChannel target, ByteBuffer record, long position) throws IOException {
+        int length = record.remaining();
+        long written = position;
+        while (record.hasRemaining()) {
+            written += target.write(record, written);
+        }
+        return length;
+    }
+
+    // a value larger than the whole budget is never kept, it would evict everything else. Neither is a value removed
+    // while it was read
+    private synchronized void keep(long id, V value, int bytes) {
+        Long offset = offsets.get(id);
+        if (bytes > maxBytesInMemory || offset == null || offset < 0) {
+            return;
+        }
+        Hot<V> previous = hot.put(id, new Hot<>(value, bytes));
+        hotBytes += bytes - (previous == null ? 0 : previous.bytes);
+        Iterator<Map.Entry<Long, Hot<V>>> eldest = hot.entrySet().iterator();
+        while (hotBytes > maxBytesInMemory) {
+            hotBytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+        }
+    }
+
+    private Runnable readLock() {
+        lock.readLock().lock();
+        return lock.readLock()::unlock;
+    }
+
+    private Runnable writeLock() {
+        lock.writeLock().lock();
+        return lock.writeLock()::unlock;
+    }
+
+    private KDTreeRuntimeException failed(String description, IOException e) {
+        return new KDTreeRuntimeException(KDTreeExceptionType.VALUE_STORE_FAILED, description + ": " + e.getMessage());
+    }
+}
@@ -1,17 +1,24 @@
 package com.alessandrosestito.kdtree.impl;
 
+import com.alessandrosestito.kdtree.KDTree;
 import com.alessandrosestito.kdtree.SkipKDTreeIndex;
 import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
 import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Objects;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 
 public class KDTreeUtils {
+
+    private static volatile Executor asyncExecutor;
+
     public static List<Field> findIndexedFieldScan(Class<?> clazz) {
         return Arrays.stream(clazz.getDeclaredFields())
                 .parallel()
@@ -32,4 +39,118 @@ public class KDTreeUtils {
                 .filter(Objects::nonNull)
                 .collect(Collectors.toList());
     }
+
+    public static void checkTimeToLive(Duration timeToLive) {
+        if (timeToLive == null || timeToLive.isNegative() || timeToLive.isZero()) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.TIME_TO_LIVE_NOT_POSITIVE, "time to live must be a positive duration: " + timeToLive);
+        }
+    }
+
+    public static <K> void checkBatchKeys(Collection<? extends Map.Entry<K, ?>> entries) {
+        Set<K> keys = new HashSet<>();
+        for (Map.Entry<K, ?> entry : entries) {
+            if (entry.getKey() == null) {
+                throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "cannot insert data with null key");
+            }
+            if (!keys.add(entry.getKey())) {
+                throw new KDTreeRuntimeException(KDTreeExceptionType.DUPLICATE_KEY, "key " + entry.getKey() + " is duplicated in the batch");
+            }
+        }
+    }
+
+    // the live nodes of the trees with their expirations, collected in parallel. The trees of another implementation give
+    // their entries, which keep no expiration
+    @SuppressWarnings({"unchecked"})
+    public static <K extends KDTreeKey, V> List<KDTreeNode<K, V>> liveNodes(List<? extends KDTree<K, V>> trees) {
+        List<List<KDTreeNode<K, V>>> collected = trees.parallelStream().map(tree -> {
+            if (tree instanceof KDTreeImpl) {
+                return ((KDTreeImpl<K, V>) tree).liveNodes();
+            }
+            if (tree instanceof KDTreeLogarithmicImpl) {
+                return ((KDTreeLogarithmicImpl<K, V>) tree).liveNodes();
+            }
+            if (tree instanceof KDTreeZOrderImpl) {
+                return ((KDTreeZOrderImpl<K, V>) tree).liveNodes();
+            }
+            return tree.query().execute().stream().map(entry -> KDTreeNode.<K, V>builder().key(entry.getKey()).value(entry.getValue()).build())
+                    .collect(Collectors.toList());
+        }).collect(Collectors.toList());
+
+        List<KDTreeNode<K, V>> nodes = new ArrayList<>(collected.stream().mapToInt(List::size).sum());
+        Set<K> keys = new HashSet<>();
+        for (List<KDTreeNode<K, V>> treeNodes : collected) {
+            for (KDTreeNode<K, V> node : treeNodes) {
+                if (!keys.add(node.getKey())) {
+                    throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_EXISTS, "key " + node.getKey() + " is in more than one tree");
+                }
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+
+    // the position saved in the cursor, null for the first page, a cursor of another tree or of an older structure is rejected
+    public static Object resumePosition(KDTreeQuery<?, ?> query, Object tree, long version) {
+        if (query.isOrdered()) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.ORDERED_QUERY_NOT_PAGEABLE, "query ordered by " + query.getOrderBy() + " cannot be paged");
+        }
+        KDTreeCursor<?, ?> cursor = query.getCursor();
+        if (cursor == null) {
+            return null;
+        }
+        if (cursor.getTree() != tree || cursor.getVersion() != version) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.CURSOR_INVALIDATED, "the tree has been restructured since the cursor was created");
+        }
+        return cursor.getPosition();
+    }
+
+    // the bounds of the query by axis, null for the features it does not bound
+    static KDTreeFeatureBound<?>[] boundsByAxis(KDTreeQuery<?, ?> query, Map<String, Integer> featureIndexes) {
+        KDTreeFeatureBound<?>[] bounds = new KDTreeFeatureBound<?>[featureIndexes.size()];
+        if (query.hasFeatureBounds()) {
+            query.getBoundsMap().forEach((name, bound) -> {
+                Integer axis = featureIndexes.get(name);
+                if (axis == null) {
+                    throw new KDTreeRuntimeException(KDTreeExceptionType.FEATURE_NOT_EXISTS, "feature " + name + " is not indexed");
+                }
+                bounds[axis] = bound;
+            });
+        }
+        return bounds;
+    }
+
+    // the axes of the features of the region, in the order of the region
+    static int[] regionAxes(KDTreeRegion<?> region, Map<String, Integer> featureIndexes) {
+        List<String> names = region.getFeatures();
+        int[] axes = new int[names.size()];
+        for (int i = 0; i < axes.length; i++) {
+            Integer axis = featureIndexes.get(names.get(i));
+            if (axis == null) {
+                throw new KDTreeRuntimeException(KDTreeExceptionType.FEATURE_NOT_EXISTS, "feature " + names.get(i) + " is not indexed");
+            }
+            axes[i] = axis;
+        }
+        return axes;
+    }
+
+    // a compact tree reads the features from the fields of the keys, so the caches of the keys are left alone
+    static Comparable<?> feature(KDTreeKey key, int axis, boolean compactStorage) {
+        return compactStorage ? key.readIndexedKeyValue(axis) : key.getIndexedKeyValueByIndex(axis);
+    }
+
+    // virtual threads when the runtime has them (JDK 21+), the library still targets Java 11 so they are looked up by reflection
+    public static Executor defaultAsyncExecutor() {
+        if (asyncExecutor == null) {
+            synchronized (KDTreeUtils.class) {
+                if (asyncExecutor == null) {
+                    try {
+                        asyncExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                    } catch (ReflectiveOperationException e) {
+                        asyncExecutor = ForkJoinPool.commonPool();
+                    }
+                }
+            }
+        }
+        return asyncExecutor;
+    }
 }
@@ -0,0 +1,39 @@
+package com.alessandrosestito.kdtree.impl;
+
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+
+import java.io.*;
+
+// turns the values spilled by a value store into bytes and back
+public interface KDTreeValueCodec<V> {
+
+    byte[] encode(V value);
+
+    V decode(byte[] bytes);
+
+    static <V extends Serializable> KDTreeValueCodec<V> serialization() {
+        return new KDTreeValueCodec<>() {
+            @Override
+            public byte[] encode(V value) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+                    output.writeObject(value);
+                } catch (IOException e) {
+                    throw new KDTreeRuntimeException(KDTreeExceptionType.VALUE_STORE_FAILED, "cannot serialize " + value + ": " + e.getMessage());
+                }
+                return bytes.toByteArray();
+            }
+
+            @Override
+            @SuppressWarnings({"unchecked"})
+            public V decode(byte[] bytes) {
+                try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return (V) input.readObject();
+                } catch (IOException | ClassNotFoundException e) {
+                    throw new KDTreeRuntimeException(KDTreeExceptionType.VALUE_STORE_FAILED, "cannot deserialize a value: " + e.getMessage());
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,24 @@
+package com.alessandrosestito.kdtree.impl;
+
+import java.nio.file.Path;
+
+// keeps the values out of the tree, which then only holds the id returned by put. An id is never reused, remove
+// is called once the value is no longer referenced and lets the store reclaim its space
+public interface KDTreeValueStore<V> extends AutoCloseable {
+
+    long put(V value);
+
+    V get(long id);
+
+    void remove(long id);
+
+    @Override
+    void close();
+
+    // the values most recently used are kept in memory up to the byte budget, every value is appended to the file
+    // when it is put and read back from it when it is no longer in memory. The file is rewritten without the removed
+    // values once they are the most of it, and deleted on close
+    static <V> KDTreeValueStore<V> tiered(Path file, long maxBytesInMemory, KDTreeValueCodec<V> codec) {
+        return new KDTreeTieredValueStore<>(file, maxBytesInMemory, codec);
+    }
+}
@@ -0,0 +1,24 @@
+package com.alessandrosestito.kdtree.impl;
+
+import java.util.function.BiConsumer;
+
+public interface KDTreeVisitor<K, V> {
+
+    static <K, V> KDTreeVisitor<K, V> of(BiConsumer<K, V> consumer) {
+        return new KDTreeVisitor<>() {
+            @Override
+            public void visit(K key, V value) {
+                consumer.accept(key, value);
+            }
+
+            @Override
+            public boolean shouldContinue() {
+                return true;
+            }
+        };
+    }
+
+    void visit(K key, V value);
+
+    boolean shouldContinue();
+}
@@ -0,0 +1,93 @@
+package com.alessandrosestito.kdtree.impl;
+
+// every feature is encoded as an unsigned long keeping its order, the z-order of two points is decided by the
+// feature whose encoded values differ on the highest bit, the first feature winning a tie
+final class KDTreeZOrderCurve {
+
+    private KDTreeZOrderCurve() {
+    }
+
+    static long encode(Number value, boolean floating) {
+        if (floating) {
+            long bits = Double.doubleToLongBits(value.doubleValue());
+            return bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+        }
+        return value.longValue() ^ Long.MIN_VALUE;
+    }
+
+    static double decode(long coordinate, boolean floating) {
+        if (floating) {
+            return decodeFloating(coordinate);
+        }
+        return coordinate ^ Long.MIN_VALUE;
+    }
+
+    // without branches: the sign bit is flipped for positive values, every bit for negative ones
+    static double decodeFloating(long coordinate) {
+        return Double.longBitsToDouble(coordinate ^ (~(coordinate >> 63) | Long.MIN_VALUE));
+    }
+
+    static int compare(long[] coordinates1, long[] coordinates2) {
+        int axis = 0;
+        long highest = 0;
+        for (int i = 0; i < coordinates1.length; i++) {
+            long differing = coordinates1[i] ^ coordinates2[i];
+            if (isHigherBit(highest, differing)) {
+                highest = differing;
+                axis = i;
+            }
+        }
+        return highest == 0 ? 0 : Long.compareUnsigned(coordinates1[axis], coordinates2[axis]);
+    }
+
+    static int compare(long[][] columns, int index, long[] coordinates) {
+        int axis = 0;
+        long highest = 0;
+        for (int i = 0; i < coordinates.length; i++) {
+            long differing = columns[i][index] ^ coordinates[i];
+            if (isHigherBit(highest, differing)) {
+                highest = differing;
+                axis = i;
+            }
+        }
+        return highest == 0 ? 0 : Long.compareUnsigned(columns[axis][index], coordinates[axis]);
+    }
+
+    // BIGMIN: the first point of the box following the point outside of it along the curve, null when there is none
+    static long[] nextInBox(long[] point, long[] lower, long[] upper) {
+        long[] min = lower.clone();
+        long[] max = upper.clone();
+        long[] next = null;
+        long differing = 0;
+        for (int axis = 0; axis < point.length; axis++) {
+            differing |= (point[axis] ^ min[axis]) | (point[axis] ^ max[axis]);
+        }
+        for (int level = 63 - Long.numberOfLeadingZeros(differing); level >= 0; level--) {
+            long bit = 1L << level;
+            long below = bit - 1;
+            long above = ~(bit | below);
+            for (int axis = 0; axis < point.length; axis++) {
+                boolean pointBit = (point[axis] & bit) != 0;
+                boolean minBit = (min[axis] & bit) != 0;
+                boolean maxBit = (max[axis] & bit) != 0;
+                if (!pointBit && !minBit && maxBit) {
+                    // the box is split here: the upper half is the candidate, the search goes on in the lower half
+                    next = min.clone();
+                    next[axis] = (min[axis] & above) | bit;
+                    max[axis] = (max[axis] & above) | below;
+                } else if (!pointBit && minBit) {
+                    return min;
+                } else if (pointBit && !maxBit) {
+                    return next;
+                } else if (pointBit && !minBit) {
+                    min[axis] = (min[axis] & above) | bit;
+                }
+            }
+        }
+        return next;
+    }
+
+    private static boolean isHigherBit(long highest, long differing) {
+        return Long.compareUnsigned(highest, differing) < 0 && Long.compareUnsigned(highest, highest ^ differing) < 0;
+    }
+}
@@ -0,0 +1,1215 @@
+package com.alessandrosestito.kdtree.impl;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+
+import java.lang.reflect.Field;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+// the entries are kept sorted along the z-order curve of their numeric features, in blocks of columnar arrays,
+// a range query scans the curve from the lower corner of the box and jumps over the points outside of it with BIGMIN
+public class KDTreeZOrderImpl<K extends KDTreeKey, V> implements KDTree<K, V> {
+
+    private static final int BLOCK_CAPACITY = 256;
+
+    private final KDTreeBuilder<K, V> builder;
+    private final Class<K> keyClass;
+    private final Map<String, Integer> featureIndexes;
+    private final boolean[] floating;
+    private final boolean withAutoBalance;
+    private final boolean withCompactStorage;
+    private final double autoBalanceScoreThreshold;
+    private final Duration interval;
+    private final Duration timeToLive;
+    private final Clock clock;
+    private final NavigableMap<Long, List<K>> expirations;
+    private final ReentrantReadWriteLock lock;
+    private final Executor asyncExecutor;
+    private final KDTreeSubscriptions<K, V> subscriptions;
+    private final Consumer<V> removalListener;
+    private final List<Block<K, V>> blocks;
+    private ScheduledExecutorService scheduler;
+    private boolean ownScheduler;
+    private ScheduledFuture<?> scheduledBalance;
+    private volatile long size;
+
+    KDTreeZOrderImpl(KDTreeBuilder<K, V> builder) {
+        this.builder = builder;
+        keyClass = builder.getKeyClass();
+        List<Field> fields = KDTreeUtils.findIndexedFieldScan(keyClass);
+        featureIndexes = new HashMap<>();
+        floating = new boolean[fields.size()];
+        for (int axis = 0; axis < fields.size(); axis++) {
+            Class<?> type = fields.get(axis).getType();
+            if (type == Double.class || type == Float.class) {
+                floating[axis] = true;
+            } else if (type != Long.class && type != Integer.class && type != Short.class && type != Byte.class) {
+                throw new KDTreeRuntimeException(KDTreeExceptionType.FEATURE_NOT_NUMERIC, "z-order index needs numeric features, field " + fields.get(axis).getName() + " is " + type.getSimpleName());
+            }
+            featureIndexes.put(fields.get(axis).getName(), axis);
+        }
+        withAutoBalance = builder.isAutoBalance();
+        withCompactStorage = builder.isCompactStorage();
+        autoBalanceScoreThreshold = builder.getAutoBalanceScoreThreshold();
+        interval = builder.getBalanceInterval();
+        timeToLive = builder.getTimeToLive();
+        clock = builder.getClock();
+        expirations = new TreeMap<>();
+        lock = new ReentrantReadWriteLock();
+        asyncExecutor = builder.getAsyncExecutor() != null ? builder.getAsyncExecutor() : KDTreeUtils.defaultAsyncExecutor();
+        subscriptions = new KDTreeSubscriptions<>(fields.size(), withCompactStorage, builder.getSubscriptionExecutor(), builder.getSubscriptionBufferCapacity());
+        removalListener = builder.getRemovalListener();
+        blocks = new ArrayList<>();
+        scheduler = builder.getScheduler();
+        manageAutoBalance();
+    }
+
+    private void manageAutoBalance() {
+        if (!withAutoBalance) {
+            return;
+        }
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "kdtree-auto-balance");
+                thread.setDaemon(true);
+                return thread;
+            });
+            ownScheduler = true;
+        }
+        scheduledBalance = scheduler.scheduleAtFixedRate(this::balance, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (scheduledBalance != null) {
+            scheduledBalance.cancel(false);
+        }
+        if (ownScheduler) {
+            scheduler.shutdown();
+        }
+        subscriptions.close();
+    }
+
+    @Override
+    public void insert(K key, V value) {
+        insertExpiring(key, value, timeToLive);
+    }
+
+    @Override
+    public void insert(K key, V value, Duration timeToLive) {
+        KDTreeUtils.checkTimeToLive(timeToLive);
+        insertExpiring(key, value, timeToLive);
+    }
+
+    private void insertExpiring(K key, V value, Duration timeToLive) {
+        if (key == null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "cannot insert data with null key");
+        }
+        Runnable unlock = writeLock();
+
+        try {
+            long now = clock.millis();
+            evictExpiredEntries(now);
+            long[] coordinates = encode(key);
+            if (locate(key, coordinates) >= 0) {
+                throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_EXISTS, "key already exists into the tree");
+            }
+            insertEntry(new Entry<>(coordinates, key, value, timeToLive == null ? 0 : now + timeToLive.toMillis()));
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public void insertAll(Collection<Map.Entry<K, V>> entries) {
+        KDTreeUtils.checkBatchKeys(entries);
+        Runnable unlock = writeLock();
+
+        try {
+            long now = clock.millis();
+            evictExpiredEntries(now);
+            List<Entry<K, V>> batch = new ArrayList<>(entries.size());
+            for (Map.Entry<K, V> entry : entries) {
+                long[] coordinates = encode(entry.getKey());
+                if (locate(entry.getKey(), coordinates) >= 0) {
+                    throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_EXISTS, "key already exists into the tree");
+                }
+                batch.add(new Entry<>(coordinates, entry.getKey(), entry.getValue(), timeToLive == null ? 0 : now + timeToLive.toMillis()));
+            }
+            batch.sort((o1, o2) -> KDTreeZOrderCurve.compare(o1.coordinates, o2.coordinates));
+            if (batch.size() >= size) {
+                // merging two sorted runs and packing the blocks again is cheaper than inserting one by one
+                pack(mergeSorted(entries(), batch));
+            } else {
+                batch.forEach(this::insertSorted);
+            }
+            for (Entry<K, V> entry : batch) {
+                trackExpiration(entry);
+                subscriptions.publish(KDTreeEventType.INSERT, entry.key, entry.value);
+            }
+        } finally {
+            unlock.run();
+        }
+    }
+
+    private void insertEntry(Entry<K, V> entry) {
+        insertSorted(entry);
+        trackExpiration(entry);
+        subscriptions.publish(KDTreeEventType.INSERT, entry.key, entry.value);
+    }
+
+    private void trackExpiration(Entry<K, V> entry) {
+        if (entry.expiresAt != 0) {
+            expirations.computeIfAbsent(entry.expiresAt, expiresAt -> new ArrayList<>()).add(entry.key);
+        }
+    }
+
+    @Override
+    public boolean delete(K key) {
+        if (size == 0) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_NOT_EXISTS, "cannot delete node");
+        }
+        if (key == null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "key cannot be null");
+        }
+        Runnable unlock = writeLock();
+
+        try {
+            evictExpiredEntries(clock.millis());
+            long position = locate(key, encode(key));
+            if (position < 0) {
+                return false;
+            }
+            V value = removeAt(position).value;
+            subscriptions.publish(KDTreeEventType.DELETE, key, value);
+            notifyRemoval(value);
+            return true;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    // a block whose bounding box is inside the bounds is dropped at once, the blocks crossing them are compacted in place
+    @Override
+    public long deleteRange(KDTreeQuery<K, V> query) {
+        Runnable unlock = writeLock();
+
+        try {
+            evictExpiredEntries(clock.millis());
+            long[][] box = box(KDTreeUtils.boundsByAxis(query, featureIndexes));
+            if (box == null) {
+                return 0;
+            }
+            BiPredicate<K, V> matchFunction = query.getFilter();
+            KDTreeRegion<?> region = query.getRegion();
+            int[] axes = region == null ? null : KDTreeUtils.regionAxes(region, featureIndexes);
+            long deleted = 0;
+            Iterator<Block<K, V>> iterator = blocks.iterator();
+            while (iterator.hasNext()) {
+                Block<K, V> block = iterator.next();
+                if (isDisjoint(block, box) || (region != null && !region.intersects(decode(block.lower, axes), decode(block.upper, axes)))) {
+                    continue;
+                }
+                boolean contained = query.getMatchFunction() == null && isInBox(block.lower, box) && isInBox(block.upper, box)
+                        && (region == null || region.contains(decode(block.lower, axes), decode(block.upper, axes)));
+                int removed = block.removeIf(index -> {
+                    if (!contained && (!block.isInBox(index, box[0], box[1])
+                            || (matchFunction != null && !matchFunction.test(block.key(index), block.value(index))))) {
+                        return false;
+                    }
+                    subscriptions.publish(KDTreeEventType.DELETE, block.key(index), block.value(index));
+                    notifyRemoval(block.value(index));
+                    return true;
+                });
+                if (block.size == 0) {
+                    iterator.remove();
+                }
+                size -= removed;
+                deleted += removed;
+            }
+            return deleted;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    private boolean isDisjoint(Block<K, V> block, long[][] box) {
+        for (int axis = 0; axis < floating.length; axis++) {
+            if (Long.compareUnsigned(block.upper[axis], box[0][axis]) < 0 || Long.compareUnsigned(block.lower[axis], box[1][axis]) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean update(K key, V value) {
+        if (key == null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "key cannot be null");
+        }
+        Runnable unlock = writeLock();
+
+        try {
+            evictExpiredEntries(clock.millis());
+            long position = locate(key, encode(key));
+            if (position < 0) {
+                return false;
+            }
+            block(position).values[index(position)] = value;
+            subscriptions.publish(KDTreeEventType.UPDATE, key, value);
+            return true;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public V upsert(K key, V value) {
+        if (key == null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "key cannot be null");
+        }
+        Runnable unlock = writeLock();
+
+        try {
+            long now = clock.millis();
+            evictExpiredEntries(now);
+            long[] coordinates = encode(key);
+            long position = locate(key, coordinates);
+            if (position < 0) {
+                insertEntry(new Entry<>(coordinates, key, value, timeToLive == null ? 0 : now + timeToLive.toMillis()));
+                return null;
+            }
+            Block<K, V> block = block(position);
+            V previous = block.value(index(position));
+            block.values[index(position)] = value;
+            subscriptions.publish(KDTreeEventType.UPDATE, key, value);
+            return previous;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public boolean move(K oldKey, K newKey) {
+        if (oldKey == null || newKey == null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "key cannot be null");
+        }
+        Runnable unlock = writeLock();
+
+        try {
+            evictExpiredEntries(clock.millis());
+            return moveEntry(oldKey, newKey);
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public long moveAll(Map<K, K> moves) {
+        if (moves.containsKey(null) || moves.containsValue(null)) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "key cannot be null");
+        }
+        Runnable unlock = writeLock();
+
+        try {
+            evictExpiredEntries(clock.millis());
+            long moved = 0;
+            for (Map.Entry<K, K> move : moves.entrySet()) {
+                if (moveEntry(move.getKey(), move.getValue())) {
+                    moved++;
+                }
+            }
+            return moved;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    private boolean moveEntry(K oldKey, K newKey) {
+        long position = locate(oldKey, encode(oldKey));
+        if (position < 0) {
+            return false;
+        }
+        if (oldKey.equals(newKey)) {
+            return true;
+        }
+        long[] coordinates = encode(newKey);
+        if (locate(newKey, coordinates) >= 0) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_EXISTS, "key already exists into the tree");
+        }
+        Entry<K, V> moved = removeAt(position);
+        Entry<K, V> inserted = new Entry<>(coordinates, newKey, moved.value, moved.expiresAt);
+        insertSorted(inserted);
+        trackExpiration(inserted);
+        subscriptions.publish(KDTreeEventType.DELETE, oldKey, moved.value);
+        subscriptions.publish(KDTreeEventType.INSERT, newKey, moved.value);
+        return true;
+    }
+
+    @Override
+    public long evictExpired() {
+        Runnable unlock = writeLock();
+        try {
+            return evictExpiredEntries(clock.millis());
+        } finally {
+            unlock.run();
+        }
+    }
+
+    private void notifyRemoval(V value) {
+        if (removalListener != null) {
+            removalListener.accept(value);
+        }
+    }
+
+    private long evictExpiredEntries(long now) {
+        if (expirations.isEmpty() || expirations.firstKey() > now) {
+            return 0;
+        }
+        long evicted = 0;
+        NavigableMap<Long, List<K>> expired = expirations.headMap(now, true);
+        for (List<K> keys : expired.values()) {
+            for (K key : keys) {
+                long position = locate(key, encode(key));
+                if (position < 0 || block(position).isLive(index(position), now)) {
+                    continue;
+                }
+                V value = removeAt(position).value;
+                subscriptions.publish(KDTreeEventType.DELETE, key, value);
+                notifyRemoval(value);
+                evicted++;
+            }
+        }
+        expired.clear();
+        return evicted;
+    }
+
+    @Override
+    public KDTreeQueryBuilder<K, V> query() {
+        return new KDTreeQueryBuilder<>(this);
+    }
+
+    @Override
+    public List<Map.Entry<K, V>> find(KDTreeQuery<K, V> query) {
+        List<Map.Entry<K, V>> results = new ArrayList<>();
+        visit(query, KDTreeVisitor.of((key, value) -> results.add(new AbstractMap.SimpleImmutableEntry<>(key, value))));
+        return results;
+    }
+
+    // best-bin-first over the blocks, ordered by the distance of their bounding boxes from the target
+    @Override
+    public KDTreeNearestResult<K, V> nearest(KDTreeNearestQuery<K> query) {
+        Runnable unlock = readLock();
+        try {
+            long now = clock.millis();
+            KDTreeNearest<K, V> nearest = new KDTreeNearest<>(query, floating.length, withCompactStorage, now);
+            double[] target = nearest.getTarget();
+            double[] distances = new double[blocks.size()];
+            Integer[] order = new Integer[blocks.size()];
+            for (int blockIndex = 0; blockIndex < blocks.size(); blockIndex++) {
+                Block<K, V> block = blocks.get(blockIndex);
+                double distance = 0;
+                for (int axis = 0; axis < target.length; axis++) {
+                    double offset = Math.max(0, Math.max(decode(block.lower[axis], axis) - target[axis], target[axis] - decode(block.upper[axis], axis)));
+                    distance += offset * offset;
+                }
+                distances[blockIndex] = distance;
+                order[blockIndex] = blockIndex;
+            }
+            Arrays.sort(order, Comparator.comparingDouble(blockIndex -> distances[blockIndex]));
+            double[] entryDistances = new double[BLOCK_CAPACITY];
+            for (int blockIndex : order) {
+                if (!nearest.isPromising(distances[blockIndex])) {
+                    return nearest.result(distances[blockIndex]);
+                }
+                Block<K, V> block = blocks.get(blockIndex);
+                block.distances(target, floating, entryDistances);
+                for (int index = 0; index < block.size; index++) {
+                    if (!nearest.visit()) {
+                        return nearest.result(distances[blockIndex]);
+                    }
+                    if (block.isLive(index, now)) {
+                        nearest.offer(block.key(index), block.value(index), entryDistances[index]);
+                    }
+                }
+            }
+            return nearest.result(Double.POSITIVE_INFINITY);
+        } finally {
+            unlock.run();
+        }
+    }
+
+    private double decode(long coordinate, int axis) {
+        return KDTreeZOrderCurve.decode(coordinate, floating[axis]);
+    }
+
+    private double[] decode(long[] coordinates, int[] axes) {
+        double[] values = new double[axes.length];
+        for (int i = 0; i < axes.length; i++) {
+            values[i] = decode(coordinates[axes[i]], axes[i]);
+        }
+        return values;
+    }
+
+    @Override
+    public CompletableFuture<List<Map.Entry<K, V>>> findAsync(KDTreeQuery<K, V> query) {
+        return CompletableFuture.supplyAsync(() -> find(query), asyncExecutor);
+    }
+
+    @Override
+    public Flow.Publisher<Map.Entry<K, V>> publisher(KDTreeQuery<K, V> query) {
+        return new KDTreePublisher<>(() -> find(query), asyncExecutor);
+    }
+
+    @Override
+    public List<List<Map.Entry<K, V>>> findAll(List<KDTreeQuery<K, V>> queries) {
+        List<List<Map.Entry<K, V>>> results = new ArrayList<>(queries.size());
+        Runnable unlock = readLock();
+        try {
+            for (KDTreeQuery<K, V> query : queries) {
+                results.add(find(query));
+            }
+        } finally {
+            unlock.run();
+        }
+        return results;
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked"})
+    public KDTreePage<K, V> findPage(KDTreeQuery<K, V> query) {
+        Runnable unlock = readLock();
+        try {
+            Map.Entry<long[], Set<K>> position = (Map.Entry<long[], Set<K>>) KDTreeUtils.resumePosition(query, this, 0);
+            List<Map.Entry<K, V>> entries = new ArrayList<>();
+            Map.Entry<long[], Set<K>> next = pageEntries(query, position, entries, clock.millis());
+            return new KDTreePage<>(entries, next == null ? null : new KDTreeCursor<>(this, 0, next));
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public void visit(KDTreeQuery<K, V> query, KDTreeVisitor<K, V> visitor) {
+        Runnable unlock = readLock();
+        try {
+            long now = clock.millis();
+            if (!query.isOrdered()) {
+                visitEntries(query, visitor, now);
+                return;
+            }
+            for (Entry<K, V> entry : orderedEntries(query, now)) {
+                if (!visitor.shouldContinue()) {
+                    return;
+                }
+                visitor.visit(entry.key, entry.value);
+            }
+        } finally {
+            unlock.run();
+        }
+    }
+
+    private void visitEntries(KDTreeQuery<K, V> query, KDTreeVisitor<K, V> visitor, long now) {
+        BiPredicate<K, V> matchFunction = query.getFilter();
+        long limit = query.getLimit() == null ? Long.MAX_VALUE : query.getLimit();
+        long[] matches = {0};
+        scan(query, null, (block, index) -> {
+            if (matches[0] >= limit || !visitor.shouldContinue()) {
+                return false;
+            }
+            if (block.isLive(index, now) && (matchFunction == null || matchFunction.test(block.key(index), block.value(index)))) {
+                visitor.visit(block.key(index), block.value(index));
+                matches[0]++;
+            }
+            return true;
+        });
+    }
+
+    // the position is the last point returned along the curve with the keys returned on it, so it survives any write
+    private Map.Entry<long[], Set<K>> pageEntries(KDTreeQuery<K, V> query, Map.Entry<long[], Set<K>> position, List<Map.Entry<K, V>> entries, long now) {
+        BiPredicate<K, V> matchFunction = query.getFilter();
+        long limit = query.getLimit() == null ? Long.MAX_VALUE : query.getLimit();
+        long[][] last = {position == null ? null : position.getKey()};
+        Set<K> returned = position == null ? new HashSet<>() : new HashSet<>(position.getValue());
+        boolean[] hasNext = {false};
+        scan(query, last[0], (block, index) -> {
+            K key = block.key(index);
+            boolean onLast = last[0] != null && block.compare(index, last[0]) == 0;
+            if ((onLast && returned.contains(key)) || !block.isLive(index, now)
+                    || (matchFunction != null && !matchFunction.test(key, block.value(index)))) {
+                return true;
+            }
+            if (entries.size() >= limit) {
+                hasNext[0] = true;
+                return false;
+            }
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(key, block.value(index)));
+            if (!onLast) {
+                last[0] = block.coordinates(index);
+                returned.clear();
+            }
+            returned.add(key);
+            return true;
+        });
+        return hasNext[0] ? new AbstractMap.SimpleImmutableEntry<>(last[0], returned) : null;
+    }
+
+    // keeps the k best entries in a heap, comparing the encoded values of the ordering feature
+    private List<Entry<K, V>> orderedEntries(KDTreeQuery<K, V> query, long now) {
+        Integer orderAxis = featureIndexes.get(query.getOrderBy());
+        if (orderAxis == null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.FEATURE_NOT_EXISTS, "feature " + query.getOrderBy() + " is not indexed");
+        }
+        long limit = query.getLimit() == null ? Long.MAX_VALUE : query.getLimit();
+        if (limit <= 0) {
+            return new ArrayList<>();
+        }
+        BiPredicate<K, V> matchFunction = query.getFilter();
+        Comparator<Entry<K, V>> ascending = (o1, o2) -> Long.compareUnsigned(o1.coordinates[orderAxis], o2.coordinates[orderAxis]);
+        Comparator<Entry<K, V>> best = query.getDirection() == KDTreeSortDirection.DESC ? ascending.reversed() : ascending;
+        PriorityQueue<Entry<K, V>> kept = new PriorityQueue<>(best.reversed());
+        scan(query, null, (block, index) -> {
+            if (block.isLive(index, now) && (matchFunction == null || matchFunction.test(block.key(index), block.value(index)))) {
+                Entry<K, V> entry = block.entry(index);
+                if (kept.size() < limit) {
+                    kept.add(entry);
+                } else if (best.compare(entry, kept.peek()) < 0) {
+                    kept.poll();
+                    kept.add(entry);
+                }
+            }
+            return true;
+        });
+        List<Entry<K, V>> ordered = new ArrayList<>(kept);
+        ordered.sort(best);
+        return ordered;
+    }
+
+    // walks the curve between the corners of the box, or from a point of the box: every block is filtered a column at
+    // a time and the run of points outside of the box following it is skipped with a single search, a block whose
+    // bounding box misses the region is not filtered at all
+    private void scan(KDTreeQuery<K, V> query, long[] from, EntryVisitor<K, V> visitor) {
+        long[][] box = box(KDTreeUtils.boundsByAxis(query, featureIndexes));
+        KDTreeRegion<?> region = query.getRegion();
+        int[] axes = region == null ? null : KDTreeUtils.regionAxes(region, featureIndexes);
+        if (box == null || blocks.isEmpty()) {
+            return;
+        }
+        long[] lower = box[0];
+        long[] upper = box[1];
+        long[] start = from != null ? from : lower;
+        int blockIndex = findBlock(start, 0, false);
+        int index = blockIndex < blocks.size() ? blocks.get(blockIndex).search(start, false) : 0;
+        int[] selected = new int[BLOCK_CAPACITY];
+        while (blockIndex < blocks.size()) {
+            Block<K, V> block = blocks.get(blockIndex);
+            int count = region != null && !region.intersects(decode(block.lower, axes), decode(block.upper, axes)) ? 0
+                    : block.selectInBox(index, lower, upper, selected);
+            for (int i = 0; i < count; i++) {
+                if (!visitor.visit(block, selected[i])) {
+                    return;
+                }
+            }
+            int last = block.size - 1;
+            if (block.isInBox(last, lower, upper)) {
+                blockIndex++;
+                index = 0;
+                continue;
+            }
+            if (block.compare(last, upper) > 0) {
+                return;
+            }
+            long[] next = KDTreeZOrderCurve.nextInBox(block.coordinates(last), lower, upper);
+            if (next == null) {
+                return;
+            }
+            blockIndex = findBlock(next, blockIndex + 1, false);
+            index = blockIndex < blocks.size() ? blocks.get(blockIndex).search(next, false) : 0;
+        }
+    }
+
+    @Override
+    public KDTreeSubscription<K, V> subscribe(KDTreeQuery<K, V> query, KDTreeListener<K, V> listener) {
+        KDTreeFeatureBound<?>[] bounds = KDTreeUtils.boundsByAxis(query, featureIndexes);
+        long[][] box = box(bounds);
+        return subscriptions.add(bounds, key -> box != null && isInBox(encode(key), box), query.getFilter(), listener);
+    }
+
+    // the entries are copied into a balanced kd-tree, so the join can walk both trees at once
+    @Override
+    public <W> void join(KDTree<K, W> other, KDTreeJoinCondition<K> condition, BiConsumer<Map.Entry<K, V>, Map.Entry<K, W>> consumer) {
+        try (KDTreeImpl<K, V> tree = new KDTreeImpl<>(new KDTreeBuilder<K, V>(keyClass).withClock(clock))) {
+            tree.loadBalanced(liveNodes());
+            tree.join(other, condition, consumer);
+        }
+    }
+
+    List<KDTreeNode<K, V>> liveNodes() {
+        List<KDTreeNode<K, V>> nodes = new ArrayList<>();
+        Runnable unlock = readLock();
+        try {
+            long now = clock.millis();
+            for (Block<K, V> block : blocks) {
+                for (int index = 0; index < block.size; index++) {
+                    if (block.isLive(index, now)) {
+                        nodes.add(KDTreeNode.<K, V>builder().key(block.key(index)).value(block.value(index)).expiresAt(block.expiresAt[index]).build());
+                    }
+                }
+            }
+            return nodes;
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public Map.Entry<K, V> get(K key) {
+        if (key == null) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.KEY_IS_NULL, "key cannot be null");
+        }
+        Runnable unlock = readLock();
+
+        try {
+            long position = locate(key, encode(key));
+            if (position < 0 || !block(position).isLive(index(position), clock.millis())) {
+                return null;
+            }
+            return new AbstractMap.SimpleImmutableEntry<>(block(position).key(index(position)), block(position).value(index(position)));
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public KDTreeMemoryStats memoryStats() {
+        Runnable unlock = readLock();
+        try {
+            KDTreeMemory memory = new KDTreeMemory();
+            int dimensions = floating.length;
+            long blockBytes = KDTreeMemory.shallow(Block.class) + KDTreeMemory.array(dimensions, 4) + dimensions * KDTreeMemory.array(BLOCK_CAPACITY, 8)
+                    + 2 * KDTreeMemory.array(BLOCK_CAPACITY, 4) + KDTreeMemory.array(BLOCK_CAPACITY, 8) + 2 * KDTreeMemory.array(dimensions, 8);
+            memory.addEntries(size);
+            memory.addStructure(KDTreeMemory.array(blocks.size(), 4) + blocks.size() * blockBytes);
+            for (Block<K, V> block : blocks) {
+                for (int index = 0; index < block.size; index++) {
+                    memory.addKey(block.key(index));
+                }
+            }
+            memory.addExpirations(expirations);
+            return memory.toStats();
+        } finally {
+            unlock.run();
+        }
+    }
+
+    // the curve is always sorted, balancing only packs the blocks left half empty by splits and deletes
+    @Override
+    public void balance() {
+        if (withAutoBalance && score() >= autoBalanceScoreThreshold) {
+            return;
+        }
+        Runnable unlock = writeLock();
+        try {
+            evictExpiredEntries(clock.millis());
+            pack(entries());
+        } finally {
+            unlock.run();
+        }
+    }
+
+    @Override
+    public double score() {
+        Runnable unlock = readLock();
+        try {
+            return (double) size / ((long) blocks.size() * BLOCK_CAPACITY);
+        } finally {
+            unlock.run();
+        }
+    }
+
+    private long[] encode(K key) {
+        long[] coordinates = new long[floating.length];
+        for (int axis = 0; axis < floating.length; axis++) {
+            Comparable<?> value = KDTreeUtils.feature(key, axis, withCompactStorage);
+            if (value == null) {
+                throw new KDTreeRuntimeException(KDTreeExceptionType.FIELD_CANNOT_BE_NULL, "index " + axis + " of " + key + " cannot be null");
+            }
+            coordinates[axis] = KDTreeZOrderCurve.encode((Number) value, floating[axis]);
+        }
+        return coordinates;
+    }
+
+    // the encoded lower and upper corners of the box, null when a bound is empty
+    private long[][] box(KDTreeFeatureBound<?>[] bounds) {
+        long[] lower = new long[floating.length];
+        long[] upper = new long[floating.length];
+        for (int axis = 0; axis < floating.length; axis++) {
+            KDTreeFeatureBound<?> bound = bounds[axis];
+            lower[axis] = bound == null || bound.getLowerBound() == null ? 0 : encodeBound(bound, bound.getLowerBound(), axis);
+            upper[axis] = bound == null || bound.getUpperBound() == null ? -1 : encodeBound(bound, bound.getUpperBound(), axis);
+            if (Long.compareUnsigned(lower[axis], upper[axis]) > 0) {
+                return null;
+            }
+        }
+        return new long[][]{lower, upper};
+    }
+
+    private long encodeBound(KDTreeFeatureBound<?> bound, Comparable<?> value, int axis) {
+        if (!(value instanceof Number)) {
+            throw new KDTreeRuntimeException(KDTreeExceptionType.FEATURE_NOT_NUMERIC, "bound " + value + " of feature " + bound.getName() + " is not numeric");
+        }
+        return KDTreeZOrderCurve.encode((Number) value, floating[axis]);
+    }
+
+    private boolean isInBox(long[] coordinates, long[][] box) {
+        for (int axis = 0; axis < coordinates.length; axis++) {
+            if (Long.compareUnsigned(coordinates[axis], box[0][axis]) < 0 || Long.compareUnsigned(coordinates[axis], box[1][axis]) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the position of the key as block and index packed in a long, -1 when it is missing
+    private long locate(K key, long[] coordinates) {
+        int blockIndex = findBlock(coordinates, 0, false);
+        int index = blockIndex < blocks.size() ? blocks.get(blockIndex).search(coordinates, false) : 0;
+        for (; blockIndex < blocks.size(); blockIndex++, index = 0) {
+            Block<K, V> block = blocks.get(blockIndex);
+            for (; index < block.size; index++) {
+                if (block.compare(index, coordinates) != 0) {
+                    return -1;
+                }
+                if (key.equals(block.keys[index])) {
+                    return (long) blockIndex << 32 | index;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private Block<K, V> block(long position) {
+        return blocks.get((int) (position >>> 32));
+    }
+
+    private static int index(long position) {
+        return (int) position;
+    }
+
+    // the first block from the given one whose last point follows the coordinates, or equals them when not upper
+    private int findBlock(long[] coordinates, int from, boolean upper) {
+        int low = from;
+        int high = blocks.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            Block<K, V> block = blocks.get(middle);
+            int compare = block.compare(block.size - 1, coordinates);
+            if (compare < 0 || (upper && compare == 0)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void insertSorted(Entry<K, V> entry) {
+        if (blocks.isEmpty()) {
+            blocks.add(new Block<>(floating.length));
+            blocks.get(0).insert(0, entry);
+            size++;
+            return;
+        }
+        int blockIndex = Math.min(findBlock(entry.coordinates, 0, true), blocks.size() - 1);
+        Block<K, V> block = blocks.get(blockIndex);
+        int index = block.search(entry.coordinates, true);
+        if (block.size == BLOCK_CAPACITY) {
+            Block<K, V> split = block.split();
+            blocks.add(blockIndex + 1, split);
+            if (index > block.size) {
+                index -= block.size;
+                block = split;
+            }
+        }
+        block.insert(index, entry);
+        size++;
+    }
+
+    private Entry<K, V> removeAt(long position) {
+        Block<K, V> block = block(position);
+        Entry<K, V> removed = block.entry(index(position));
+        block.remove(index(position));
+        if (block.size == 0) {
+            blocks.remove((int) (position >>> 32));
+        }
+        size--;
+        return removed;
+    }
+
+    // the nodes of all the trees are sorted along the curve of a new tree with the options of this one and packed at once
+    @Override
+    public KDTree<K, V> merge(List<? extends KDTree<K, V>> others) {
+        List<KDTree<K, V>> trees = new ArrayList<>();
+        trees.add(this);
+        trees.addAll(others);
+        KDTreeZOrderImpl<K, V> merged = new KDTreeZOrderImpl<>(builder);
+        merged.loadNodes(KDTreeUtils.liveNodes(trees));
+        return merged;
+    }
+
+    @Override
+    public List<KDTree<K, V>> split(Predicate<K> predicate) {
+        Map<Boolean, List<KDTreeNode<K, V>>> parts = liveNodes().stream().collect(Collectors.partitioningBy(node -> predicate.test(node.getKey())));
+        KDTreeZOrderImpl<K, V> matching = new KDTreeZOrderImpl<>(builder);
+        matching.loadNodes(parts.get(true));
+        KDTreeZOrderImpl<K, V> others = new KDTreeZOrderImpl<>(builder);
+        others.loadNodes(parts.get(false));
+        return List.of(matching, others);
+    }
+
+    private void loadNodes(List<KDTreeNode<K, V>> nodes) {
+        List<Entry<K, V>> entries = nodes.parallelStream()
+                .map(node -> new Entry<>(encode(node.getKey()), node.getKey(), node.getValue(), node.getExpiresAt()))
+                .sorted((o1, o2) -> KDTreeZOrderCurve.compare(o1.coordinates, o2.coordinates))
+                .collect(Collectors.toList());
+        Runnable unlock = writeLock();
+        try {
+            pack(entries);
+            entries.forEach(this::trackExpiration);
+        } finally {
+            unlock.run();
+        }
+    }
+
+    private List<Entry<K, V>> entries() {
+        List<Entry<K, V>> entries = new ArrayList<>((int) size);
+        for (Block<K, V> block : blocks) {
+            for (int index = 0; index < block.size; index++) {
+                entries.add(block.entry(index));
+            }
+        }
+        return entries;
+    }
+
+    private List<Entry<K, V>> mergeSorted(List<Entry<K, V>> entries1, List<Entry<K, V>> entries2) {
+        List<Entry<K, V>> merged = new ArrayList<>(entries1.size() + entries2.size());
+        int i = 0;
+        int j = 0;
+        while (i < entries1.size() || j < entries2.size()) {
+            if (j == entries2.size() || (i < entries1.size() && KDTreeZOrderCurve.compare(entries1.get(i).coordinates, entries2.get(j).coordinates) <= 0)) {
+                merged.add(entries1.get(i++));
+            } else {
+                merged.add(entries2.get(j++));
+            }
+        }
+        return merged;
+    }
+
+    private void pack(List<Entry<K, V>> entries) {
+        blocks.clear();
+        Block<K, V> block = null;
+        for (Entry<K, V> entry : entries) {
+            if (block == null || block.size == BLOCK_CAPACITY) {
+                block = new Block<>(floating.length);
+                blocks.add(block);
+            }
+            block.insert(block.size, entry);
+        }
+        size = entries.size();
+    }
+
+    private Runnable readLock() {
+        lock.readLock().lock();
+        return lock.readLock()::unlock;
+    }
+
+    private Runnable writeLock() {
+        lock.writeLock().lock();
+        return lock.writeLock()::unlock;
+    }
+
+    private interface EntryVisitor<K, V> {
+        boolean visit(Block<K, V> block, int index);
+    }
+
+    private static class Entry<K, V> {
+        private final long[] coordinates;
+        private final K key;
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(long[] coordinates, K key, V value, long expiresAt) {
+            this.coordinates = coordinates;
+            this.key = key;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // a sorted run of the curve, every encoded feature is a column so the scans read primitive arrays,
+    // lower and upper hold the encoded bounding box of the block
+    private static class Block<K, V> {
+        private final long[][] columns;
+        private final Object[] keys;
+        private final Object[] values;
+        private final long[] expiresAt;
+        private final long[] lower;
+        private final long[] upper;
+        private int size;
+
+        private Block(int dimensions) {
+            columns = new long[dimensions][BLOCK_CAPACITY];
+            keys = new Object[BLOCK_CAPACITY];
+            values = new Object[BLOCK_CAPACITY];
+            expiresAt = new long[BLOCK_CAPACITY];
+            lower = new long[dimensions];
+            upper = new long[dimensions];
+            Arrays.fill(lower, -1);
+        }
+
+        @SuppressWarnings({"unchecked"})
+        private K key(int index) {
+            return (K) keys[index];
+        }
+
+        @SuppressWarnings({"unchecked"})
+        private V value(int index) {
+            return (V) values[index];
+        }
+
+        private boolean isLive(int index, long now) {
+            return expiresAt[index] == 0 || expiresAt[index] > now;
+        }
+
+        private long[] coordinates(int index) {
+            long[] coordinates = new long[columns.length];
+            for (int axis = 0; axis < columns.length; axis++) {
+                coordinates[axis] = columns[axis][index];
+            }
+            return coordinates;
+        }
+
+        private Entry<K, V> entry(int index) {
+            return new Entry<>(coordinates(index), key(index), value(index), expiresAt[index]);
+        }
+
+        private int compare(int index, long[] coordinates) {
+            return KDTreeZOrderCurve.compare(columns, index, coordinates);
+        }
+
+        private boolean isInBox(int index, long[] lower, long[] upper) {
+            for (int axis = 0; axis < columns.length; axis++) {
+                long value = columns[axis][index];
+                if (Long.compareUnsigned(value, lower[axis]) < 0 || Long.compareUnsigned(value, upper[axis]) > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // the indexes from the given one whose point is in the box, filtered a column at a time with branch-free loops
+        // over the primitive arrays: the first bounded column fills the selection and the others only shrink it,
+        // a block inside the box is selected whole and a block outside of it is skipped without reading the columns
+        private int selectInBox(int from, long[] lower, long[] upper, int[] selected) {
+            boolean contained = true;
+            for (int axis = 0; axis < columns.length; axis++) {
+                if (Long.compareUnsigned(this.upper[axis], lower[axis]) < 0 || Long.compareUnsigned(this.lower[axis], upper[axis]) > 0) {
+                    return 0;
+                }
+                contained &= Long.compareUnsigned(this.lower[axis], lower[axis]) >= 0 && Long.compareUnsigned(this.upper[axis], upper[axis]) <= 0;
+            }
+            if (contained) {
+                return selectAll(from, selected);
+            }
+            int count = -1;
+            for (int axis = 0; axis < columns.length; axis++) {
+                // flipping the sign bit turns the unsigned order into the signed one
+                long low = lower[axis] ^ Long.MIN_VALUE;
+                long high = upper[axis] ^ Long.MIN_VALUE;
+                if (low == Long.MIN_VALUE && high == Long.MAX_VALUE) {
+                    continue;
+                }
+                long[] column = columns[axis];
+                int kept = 0;
+                if (count < 0) {
+                    for (int index = from; index < size; index++) {
+                        long value = column[index] ^ Long.MIN_VALUE;
+                        selected[kept] = index;
+                        kept += value >= low & value <= high ? 1 : 0;
+                    }
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        int index = selected[i];
+                        long value = column[index] ^ Long.MIN_VALUE;
+                        selected[kept] = index;
+                        kept += value >= low & value <= high ? 1 : 0;
+                    }
+                }
+                count = kept;
+            }
+            // a block not inside the box crosses a bounded column, so the selection has been filled
+            return count;
+        }
+
+        private int selectAll(int from, int[] selected) {
+            int count = 0;
+            for (int index = from; index < size; index++) {
+                selected[count++] = index;
+            }
+            return count;
+        }
+
+        // the squared distances of all the entries from the target, a column at a time
+        private void distances(double[] target, boolean[] floating, double[] distances) {
+            Arrays.fill(distances, 0, size, 0);
+            for (int axis = 0; axis < columns.length; axis++) {
+                long[] column = columns[axis];
+                double coordinate = target[axis];
+                if (floating[axis]) {
+                    for (int index = 0; index < size; index++) {
+                        double difference = coordinate - KDTreeZOrderCurve.decodeFloating(column[index]);
+                        distances[index] += difference * difference;
+                    }
+                } else {
+                    for (int index = 0; index < size; index++) {
+                        double difference = coordinate - (column[index] ^ Long.MIN_VALUE);
+                        distances[index] += difference * difference;
+                    }
+                }
+            }
+        }
+
+        // the first index whose point follows the coordinates, or equals them when not upper
+        private int search(long[] coordinates, boolean upper) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                int compare = compare(middle, coordinates);
+                if (compare < 0 || (upper && compare == 0)) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private void insert(int index, Entry<K, V> entry) {
+            for (int axis = 0; axis < columns.length; axis++) {
+                System.arraycopy(columns[axis], index, columns[axis], index + 1, size - index);
+                columns[axis][index] = entry.coordinates[axis];
+                if (Long.compareUnsigned(entry.coordinates[axis], lower[axis]) < 0) {
+                    lower[axis] = entry.coordinates[axis];
+                }
+                if (Long.compareUnsigned(entry.coordinates[axis], upper[axis]) > 0) {
+                    upper[axis] = entry.coordinates[axis];
+                }
+            }
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(values, index, values, index + 1, size - index);
+            System.arraycopy(expiresAt, index, expiresAt, index + 1, size - index);
+            keys[index] = entry.key;
+            values[index] = entry.value;
+            expiresAt[index] = entry.expiresAt;
+            size++;
+        }
+
+        private void remove(int index) {
+            int moved = size - index - 1;
+            for (long[] column : columns) {
+                System.arraycopy(column, index + 1, column, index, moved);
+            }
+            System.arraycopy(keys, index + 1, keys, index, moved);
+            System.arraycopy(values, index + 1, values, index, moved);
+            System.arraycopy(expiresAt, index + 1, expiresAt, index, moved);
+            size--;
+            keys[size] = null;
+            values[size] = null;
+            updateBounds();
+        }
+
+        // keeps in place the entries not removed, one column at a time
+        private int removeIf(IntPredicate removed) {
+            int kept = 0;
+            for (int index = 0; index < size; index++) {
+                if (removed.test(index)) {
+                    continue;
+                }
+                for (long[] column : columns) {
+                    column[kept] = column[index];
+                }
+                keys[kept] = keys[index];
+                values[kept] = values[index];
+                expiresAt[kept] = expiresAt[index];
+                kept++;
+            }
+            int count = size - kept;
+            Arrays.fill(keys, kept, size, null);
+            Arrays.fill(values, kept, size, null);
+            size = kept;
+            if (count > 0) {
+                updateBounds();
+            }
+            return count;
+        }
+
+        // moves the upper half into a new block
+        private Block<K, V> split() {
+            Block<K, V> upper = new Block<>(columns.length);
+            int half = size / 2;
+            upper.size = size - half;
+            for (int axis = 0; axis < columns.length; axis++) {
+                System.arraycopy(columns[axis], half, upper.columns[axis], 0, upper.size);
+            }
+            System.arraycopy(keys, half, upper.keys, 0, upper.size);
+            System.arraycopy(values, half, upper.values, 0, upper.size);
+            System.arraycopy(expiresAt, half, upper.expiresAt, 0, upper.size);
+            Arrays.fill(keys, half, size, null);
+            Arrays.fill(values, half, size, null);
+            size = half;
+            updateBounds();
+            upper.updateBounds();
+            return upper;
+        }
+
+        private void updateBounds() {
+            for (int axis = 0; axis < columns.length; axis++) {
+                long min = -1;
+                long max = 0;
+                long[] column = columns[axis];
+                for (int index = 0; index < size; index++) {
+                    if (Long.compareUnsigned(column[index], min) < 0) {
+                        min = column[index];
+                    }
+                    if (Long.compareUnsigned(column[index], max) > 0) {
+                        max = column[index];
+                    }
+                }
+                lower[axis] = min;
+                upper[axis] = max;
+            }
+        }
+    }
+}
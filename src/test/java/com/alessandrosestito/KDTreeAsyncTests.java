@@ -0,0 +1,96 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class KDTreeAsyncTests {
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point2d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+    }
+
+    @Test
+    public void executeAsync() throws Exception {
+        checkExecuteAsync(buildTree(KDTree.of(Point2d.class, Integer.class).build()));
+        checkExecuteAsync(buildTree(KDTree.of(Point2d.class, Integer.class).withLogarithmicMethod(256).build()));
+    }
+
+    private void checkExecuteAsync(KDTree<Point2d, Integer> kdTree) throws Exception {
+        kdTree.balance();
+        List<Map.Entry<Point2d, Integer>> expected = kdTree.query().featureBounds("x", 100, 300).execute();
+        assertEquals(new HashSet<>(expected), new HashSet<>(kdTree.query().featureBounds("x", 100, 300).executeAsync().get(10, TimeUnit.SECONDS)));
+        kdTree.close();
+    }
+
+    @Test
+    public void publisherEmitsOnlyRequestedResults() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            KDTree<Point2d, Integer> kdTree = buildTree(KDTree.of(Point2d.class, Integer.class).withAsyncExecutor(executor).build());
+            long expected = kdTree.query().featureBounds("y", 0, 500).execute().size();
+
+            AtomicLong requested = new AtomicLong();
+            AtomicLong received = new AtomicLong();
+            CompletableFuture<Long> completed = new CompletableFuture<>();
+            kdTree.query().featureBounds("y", 0, 500).publisher().subscribe(new Flow.Subscriber<>() {
+                private Flow.Subscription subscription;
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    requested.addAndGet(3);
+                    subscription.request(3);
+                }
+
+                @Override
+                public void onNext(Map.Entry<Point2d, Integer> item) {
+                    if (received.incrementAndGet() > requested.get()) {
+                        completed.completeExceptionally(new AssertionError("more results than requested"));
+                    }
+                    if (received.get() == requested.get()) {
+                        requested.addAndGet(3);
+                        subscription.request(3);
+                    }
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    completed.completeExceptionally(throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                    completed.complete(received.get());
+                }
+            });
+            assertEquals(expected, (long) completed.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private KDTree<Point2d, Integer> buildTree(KDTree<Point2d, Integer> kdTree) {
+        Random random = new Random(47);
+        for (int i = 0; i < 10_000; i++) {
+            Point2d key = Point2d.builder().x(random.nextInt(1000)).y(random.nextInt(1000)).build();
+            if (!kdTree.containsKey(key)) {
+                kdTree.insert(key, i);
+            }
+        }
+        return kdTree;
+    }
+}
@@ -0,0 +1,122 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import com.alessandrosestito.kdtree.impl.KDTreeQuery;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class KDTreeBatchTests {
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point2d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+    }
+
+    @Test
+    public void insertAll() {
+        checkInsertAll(KDTree.of(Point2d.class, Integer.class).build());
+        checkInsertAll(KDTree.of(Point2d.class, Integer.class).withHashIndex().withTombstoneDeletes(0.5).build());
+        checkInsertAll(KDTree.of(Point2d.class, Integer.class).withLogarithmicMethod(256).build());
+    }
+
+    @Test
+    public void findAll() {
+        checkFindAll(KDTree.of(Point2d.class, Integer.class).build());
+        checkFindAll(KDTree.of(Point2d.class, Integer.class).withLogarithmicMethod(256).build());
+    }
+
+    private void checkInsertAll(KDTree<Point2d, Integer> kdTree) {
+        Random random = new Random(17);
+        Map<Point2d, Integer> oracle = new HashMap<>();
+        for (int round = 0; round < 5; round++) {
+            Map<Point2d, Integer> batch = new HashMap<>();
+            while (batch.size() < 5_000) {
+                Point2d key = Point2d.builder().x(random.nextInt(1000)).y(random.nextInt(1000)).build();
+                if (!oracle.containsKey(key)) {
+                    batch.put(key, random.nextInt());
+                }
+            }
+            kdTree.insertAll(batch.entrySet());
+            oracle.putAll(batch);
+
+            List<Point2d> keys = new ArrayList<>(oracle.keySet());
+            for (int i = 0; i < 1_000; i++) {
+                Point2d key = keys.get(random.nextInt(keys.size()));
+                if (oracle.remove(key) != null) {
+                    assertTrue(kdTree.delete(key));
+                }
+            }
+        }
+        Map<Point2d, Integer> found = kdTree.query().execute().stream().collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        assertEquals(oracle, found);
+        assertEquals(oracle.size(), kdTree.size());
+        oracle.forEach((key, value) -> assertEquals(value, kdTree.get(key).getValue()));
+
+        Point2d existing = oracle.keySet().iterator().next();
+        Point2d missing = Point2d.builder().x(-1).y(-1).build();
+        try {
+            kdTree.insertAll(List.of(Map.entry(missing, 0), Map.entry(existing, 0)));
+            fail();
+        } catch (KDTreeRuntimeException e) {
+            assertEquals(KDTreeExceptionType.KEY_EXISTS, e.getExceptionType());
+        }
+        try {
+            kdTree.insertAll(List.of(Map.entry(missing, 0), Map.entry(missing, 1)));
+            fail();
+        } catch (KDTreeRuntimeException e) {
+            assertEquals(KDTreeExceptionType.DUPLICATE_KEY, e.getExceptionType());
+        }
+        assertFalse(kdTree.containsKey(missing));
+        assertEquals(oracle.size(), kdTree.size());
+    }
+
+    private void checkFindAll(KDTree<Point2d, Integer> kdTree) {
+        Random random = new Random(23);
+        Map<Point2d, Integer> entries = new HashMap<>();
+        while (entries.size() < 20_000) {
+            entries.put(Point2d.builder().x(random.nextInt(1000)).y(random.nextInt(1000)).build(), entries.size());
+        }
+        entries.forEach(kdTree::insert);
+
+        List<KDTreeQuery<Point2d, Integer>> queries = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            int x = random.nextInt(1000);
+            int y = random.nextInt(1000);
+            int width = random.nextInt(100);
+            if (i % 3 == 0) {
+                queries.add(kdTree.query().featureBounds("x", x, x + width).limit(5L).build());
+            } else if (i % 3 == 1) {
+                queries.add(kdTree.query().featureBounds("x", x, x + width).featureBounds("y", y, y + width)
+                        .filter((key, value) -> value % 2 == 0).build());
+            } else {
+                queries.add(kdTree.query().featureBounds("y", y, y + width).build());
+            }
+        }
+
+        List<List<Map.Entry<Point2d, Integer>>> results = kdTree.findAll(queries);
+        assertEquals(queries.size(), results.size());
+        for (int i = 0; i < queries.size(); i++) {
+            List<Map.Entry<Point2d, Integer>> expected = kdTree.find(queries.get(i));
+            if (queries.get(i).getLimit() == null) {
+                assertEquals(new HashSet<>(expected), new HashSet<>(results.get(i)));
+            } else {
+                // a background merge may change the order of the components, so only the size is stable under a limit
+                assertEquals(expected.size(), results.get(i).size());
+                results.get(i).forEach(entry -> assertEquals(entries.get(entry.getKey()), entry.getValue()));
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+import com.alessandrosestito.kdtree.impl.KDTreeEvent;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.alessandrosestito.KDTreeTestSupport.*;
+import static org.junit.Assert.*;
+
+public class KDTreeConcurrentWritersTests {
+
+    private static final int WRITERS = 8;
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point3d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+        private final Integer z;
+    }
+
+    @Test
+    public void parallelInsertsMatchTheOracle() throws Exception {
+        checkParallelInserts(KDTree.of(Point3d.class, Integer.class).withConcurrentWriters().withSubscriptionExecutor(Runnable::run, 1 << 18).build());
+        checkParallelInserts(KDTree.of(Point3d.class, Integer.class).withConcurrentWriters().withTombstoneDeletes(0.3).withHashIndex()
+                .withSubscriptionExecutor(Runnable::run, 1 << 18).build());
+        checkParallelInserts(KDTree.of(Point3d.class, Integer.class).withConcurrentWriters().withAutoBalance(Duration.ofMillis(5))
+                .withAutoBalanceScoreThreshold(1).withSubscriptionExecutor(Runnable::run, 1 << 18).build());
+    }
+
+    @Test
+    public void racingInsertsOfTheSameKeySucceedOnce() throws Exception {
+        checkRacingInserts(KDTree.of(Point3d.class, Integer.class).withConcurrentWriters().build());
+        checkRacingInserts(KDTree.of(Point3d.class, Integer.class).withConcurrentWriters().withHashIndex().build());
+    }
+
+    @Test
+    public void exclusiveWritesStillWork() {
+        KDTree<Point3d, Integer> kdTree = KDTree.of(Point3d.class, Integer.class).withConcurrentWriters().withTombstoneDeletes(0.9).build();
+        Point3d key = Point3d.builder().x(1).y(2).z(3).build();
+        kdTree.insert(key, 1);
+        kdTree.insert(Point3d.builder().x(4).y(5).z(6).build(), 2);
+        assertTrue(kdTree.delete(key));
+        assertNull(kdTree.get(key));
+        kdTree.insert(key, 3);
+        assertEquals(Integer.valueOf(3), kdTree.get(key).getValue());
+        kdTree.insert(Point3d.builder().x(7).y(8).z(9).build(), 4, Duration.ofMinutes(1));
+        assertEquals(3, kdTree.size());
+        checkRejected(() -> kdTree.insert(key, 5), KDTreeExceptionType.KEY_EXISTS);
+        kdTree.close();
+    }
+
+    private void checkParallelInserts(KDTree<Point3d, Integer> kdTree) throws Exception {
+        Map<Point3d, Integer> oracle = new ConcurrentHashMap<>();
+        List<KDTreeEvent<Point3d, Integer>> events = Collections.synchronizedList(new ArrayList<>());
+        kdTree.subscribe(kdTree.query().build(), events::add);
+        Random random = new Random(37);
+        for (int i = 0; i < 2_000; i++) {
+            Point3d key = Point3d.builder().x(random.nextInt(WRITERS * 100)).y(random.nextInt(1000)).z(random.nextInt(1000)).build();
+            if (oracle.putIfAbsent(key, -1) == null) {
+                kdTree.insert(key, -1);
+            }
+        }
+        Map<Point3d, Integer> preloaded = new HashMap<>(oracle);
+
+        // every writer owns a stripe of x, the readers check the preloaded keys are always found
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + 2);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicInteger running = new AtomicInteger(WRITERS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            int writer = w;
+            futures.add(executor.submit(() -> {
+                Random writerRandom = new Random(writer);
+                start.await();
+                for (int i = 0; i < 5_000; i++) {
+                    Point3d key = Point3d.builder().x(writer * 100 + writerRandom.nextInt(100)).y(writerRandom.nextInt(1000)).z(writerRandom.nextInt(1000)).build();
+                    if (!oracle.containsKey(key)) {
+                        kdTree.insert(key, i);
+                        oracle.put(key, i);
+                    }
+                }
+                if (running.decrementAndGet() == 0) {
+                    writing.set(false);
+                }
+                return null;
+            }));
+        }
+        for (int r = 0; r < 2; r++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                Random readerRandom = new Random();
+                while (writing.get()) {
+                    int x = readerRandom.nextInt(WRITERS * 100);
+                    Set<Point3d> found = kdTree.query().featureBounds("x", x, x + 50).execute().stream().map(Map.Entry::getKey).collect(Collectors.toSet());
+                    preloaded.keySet().stream().filter(key -> key.getX() >= x && key.getX() <= x + 50).forEach(key -> assertTrue(found.contains(key)));
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(oracle.size(), kdTree.size());
+        oracle.forEach((key, value) -> assertEquals(value, kdTree.get(key).getValue()));
+        Map<Point3d, Integer> found = kdTree.query().execute().stream().collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        assertEquals(oracle, found);
+        assertEquals(oracle.size(), events.size());
+        kdTree.balance();
+        assertEquals(oracle, kdTree.query().execute().stream().collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+        kdTree.close();
+    }
+
+    private void checkRacingInserts(KDTree<Point3d, Integer> kdTree) throws Exception {
+        kdTree.insert(Point3d.builder().x(500).y(500).z(500).build(), 0);
+        List<Point3d> keys = new ArrayList<>();
+        Random random = new Random(41);
+        for (int i = 0; i < 3_000; i++) {
+            keys.add(Point3d.builder().x(random.nextInt(1000)).y(random.nextInt(1000)).z(random.nextInt(1000)).build());
+        }
+        Set<Point3d> distinct = new HashSet<>(keys);
+        distinct.add(Point3d.builder().x(500).y(500).z(500).build());
+
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger inserted = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (Point3d key : keys) {
+                    try {
+                        kdTree.insert(key, 1);
+                        inserted.incrementAndGet();
+                    } catch (KDTreeRuntimeException e) {
+                        assertEquals(KDTreeExceptionType.KEY_EXISTS, e.getExceptionType());
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(distinct.size() - 1, inserted.get());
+        assertEquals(distinct.size(), kdTree.size());
+        assertEquals(distinct, kdTree.query().execute().stream().map(Map.Entry::getKey).collect(Collectors.toSet()));
+        kdTree.close();
+    }
+}
@@ -0,0 +1,135 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.impl.KDTreeCursor;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import com.alessandrosestito.kdtree.impl.KDTreePage;
+import com.alessandrosestito.kdtree.impl.KDTreeSortDirection;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static com.alessandrosestito.KDTreeTestSupport.*;
+import static org.junit.Assert.*;
+
+public class KDTreeCursorTests {
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point3d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+        private final Integer z;
+    }
+
+    @Test
+    public void pagesCoverTheResultsOnce() {
+        backends(() -> KDTree.of(Point3d.class, Integer.class), 16_384).forEach(backend -> checkPages(backend.get().build()));
+    }
+
+    @Test
+    public void pagesSurviveWritesThatDoNotRestructure() {
+        checkConcurrentWrites(KDTree.of(Point3d.class, Integer.class).withTombstoneDeletes(0.9).build());
+        checkConcurrentWrites(KDTree.of(Point3d.class, Integer.class).withZOrderIndex().build());
+    }
+
+    @Test
+    public void restructuredTreesInvalidateTheCursor() {
+        KDTree<Point3d, Integer> kdTree = KDTree.of(Point3d.class, Integer.class).build();
+        Map<Point3d, Integer> oracle = fill(kdTree, randomPoints(new Random(5)), 2_000);
+        KDTreePage<Point3d, Integer> page = kdTree.query().limit(100L).executePage();
+        kdTree.delete(oracle.keySet().iterator().next());
+        checkRejected(() -> kdTree.query().limit(100L).after(page.getCursor()).executePage(), KDTreeExceptionType.CURSOR_INVALIDATED);
+
+        KDTree<Point3d, Integer> logarithmic = KDTree.of(Point3d.class, Integer.class).withLogarithmicMethod(4096).build();
+        fill(logarithmic, randomPoints(new Random(5)), 2_000);
+        KDTreePage<Point3d, Integer> logarithmicPage = logarithmic.query().limit(100L).executePage();
+        logarithmic.balance();
+        checkRejected(() -> logarithmic.query().limit(100L).after(logarithmicPage.getCursor()).executePage(), KDTreeExceptionType.CURSOR_INVALIDATED);
+
+        KDTreeCursor<Point3d, Integer> otherCursor = logarithmic.query().limit(100L).executePage().getCursor();
+        checkRejected(() -> kdTree.query().limit(100L).after(otherCursor).executePage(), KDTreeExceptionType.CURSOR_INVALIDATED);
+        checkRejected(() -> kdTree.query().orderBy("x", KDTreeSortDirection.ASC).limit(100L).executePage(), KDTreeExceptionType.ORDERED_QUERY_NOT_PAGEABLE);
+        kdTree.close();
+        logarithmic.close();
+    }
+
+    private void checkPages(KDTree<Point3d, Integer> kdTree) {
+        Random random = new Random(11);
+        Map<Point3d, Integer> oracle = fill(kdTree, randomPoints(random), 10_000);
+        oracle.keySet().stream().limit(500).collect(Collectors.toList()).forEach(key -> {
+            kdTree.delete(key);
+            oracle.remove(key);
+        });
+        // the logarithmic tree is left with a static level and a buffer, no merge runs while paging
+        kdTree.balance();
+        fill(kdTree, randomPoints(random), 1_000).forEach(oracle::putIfAbsent);
+
+        Set<Point3d> expected = oracle.entrySet().stream()
+                .filter(entry -> entry.getKey().getX() >= 100 && entry.getKey().getX() <= 400 && entry.getValue() % 3 != 0)
+                .map(Map.Entry::getKey).collect(Collectors.toSet());
+        List<Point3d> found = new ArrayList<>();
+        KDTreeCursor<Point3d, Integer> cursor = null;
+        do {
+            KDTreePage<Point3d, Integer> page = kdTree.query().featureBounds("x", 100, 400).filter((key, value) -> value % 3 != 0)
+                    .limit(97L).after(cursor).executePage();
+            assertTrue(page.getEntries().size() <= 97);
+            assertTrue(!page.hasNext() || page.getEntries().size() == 97);
+            page.getEntries().forEach(entry -> found.add(entry.getKey()));
+            cursor = page.getCursor();
+        } while (cursor != null);
+        assertEquals(expected.size(), found.size());
+        assertEquals(expected, new HashSet<>(found));
+
+        // a page of the exact size of the results has no cursor
+        KDTreePage<Point3d, Integer> all = kdTree.query().featureBounds("x", 100, 400).filter((key, value) -> value % 3 != 0)
+                .limit((long) expected.size()).executePage();
+        assertFalse(all.hasNext());
+        assertEquals(expected.size(), all.getEntries().size());
+        kdTree.close();
+    }
+
+    private void checkConcurrentWrites(KDTree<Point3d, Integer> kdTree) {
+        Random random = new Random(13);
+        Map<Point3d, Integer> oracle = fill(kdTree, randomPoints(random), 10_000);
+        Set<Point3d> untouched = new HashSet<>(oracle.keySet());
+        List<Point3d> found = new ArrayList<>();
+        KDTreeCursor<Point3d, Integer> cursor = null;
+        do {
+            KDTreePage<Point3d, Integer> page = kdTree.query().featureBounds("y", 50, 450).limit(250L).after(cursor).executePage();
+            page.getEntries().forEach(entry -> found.add(entry.getKey()));
+            cursor = page.getCursor();
+
+            for (int i = 0; i < 20; i++) {
+                Point3d key = randomPoint(random);
+                if (oracle.putIfAbsent(key, i) == null) {
+                    kdTree.insert(key, i);
+                } else {
+                    kdTree.delete(key);
+                    oracle.remove(key);
+                    untouched.remove(key);
+                }
+            }
+        } while (cursor != null);
+
+        assertEquals(found.size(), new HashSet<>(found).size());
+        Set<Point3d> expected = untouched.stream().filter(key -> key.getY() >= 50 && key.getY() <= 450).collect(Collectors.toSet());
+        assertTrue(found.containsAll(expected));
+        kdTree.close();
+    }
+
+    private Point3d randomPoint(Random random) {
+        return Point3d.builder().x(random.nextInt(500)).y(random.nextInt(500)).z(random.nextInt(500)).build();
+    }
+
+    private Supplier<Point3d> randomPoints(Random random) {
+        return () -> randomPoint(random);
+    }
+}
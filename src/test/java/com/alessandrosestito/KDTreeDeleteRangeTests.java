@@ -0,0 +1,127 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.impl.KDTreeEvent;
+import com.alessandrosestito.kdtree.impl.KDTreeEventType;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import java.util.stream.Collectors;
+
+import static com.alessandrosestito.KDTreeTestSupport.*;
+import static org.junit.Assert.*;
+
+public class KDTreeDeleteRangeTests {
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point3d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+        private final Integer z;
+    }
+
+    @Test
+    public void deleteRangeMatchesTheOracle() {
+        backends(() -> KDTree.of(Point3d.class, Integer.class).withSubscriptionExecutor(Runnable::run, 1 << 16), 128)
+                .forEach(backend -> checkDeleteRange(backend.get().build()));
+    }
+
+    @Test
+    public void degeneratedTreeDoesNotOverflowTheStack() throws InterruptedException {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicLong deleted = new AtomicLong();
+        AtomicLong left = new AtomicLong();
+        Thread smallStack = new Thread(null, () -> {
+            try {
+                KDTree<Point3d, Integer> kdTree = KDTree.of(Point3d.class, Integer.class).build();
+                IntStream.range(0, 5_000).forEach(i -> kdTree.insert(Point3d.builder().x(i).y(i).z(i).build(), i));
+                deleted.addAndGet(kdTree.deleteRange(kdTree.query().featureBounds("x", 4_990, 5_000).build()));
+                deleted.addAndGet(kdTree.deleteRange(kdTree.query().featureBounds("y", 0, 4_000).filter((key, value) -> value % 2 == 0).build()));
+                left.set(kdTree.size());
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        }, "small-stack", 64 * 1024);
+        smallStack.start();
+        smallStack.join();
+
+        assertNull(failure.get());
+        assertEquals(10 + 2_001, deleted.get());
+        assertEquals(5_000 - 10 - 2_001, left.get());
+    }
+
+    private void checkDeleteRange(KDTree<Point3d, Integer> kdTree) {
+        Random random = new Random(23);
+        Map<Point3d, Integer> oracle = new HashMap<>();
+        List<KDTreeEvent<Point3d, Integer>> events = new ArrayList<>();
+        kdTree.subscribe(kdTree.query().build(), events::add);
+        for (int i = 0; i < 20_000; i++) {
+            Point3d key = Point3d.builder().x(random.nextInt(500)).y(random.nextInt(500)).z(random.nextInt(500)).build();
+            if (oracle.putIfAbsent(key, i) == null) {
+                kdTree.insert(key, i);
+            }
+        }
+
+        for (int i = 0; i < 60; i++) {
+            int x = random.nextInt(500);
+            int y = random.nextInt(500);
+            int width = random.nextInt(150);
+            Set<Point3d> expected;
+            long deleted;
+            if (i % 3 == 0) {
+                expected = oracle.keySet().stream().filter(key -> key.getX() >= x && key.getX() <= x + width).collect(Collectors.toSet());
+                deleted = kdTree.deleteRange(kdTree.query().featureBounds("x", x, x + width).build());
+            } else if (i % 3 == 1) {
+                expected = oracle.keySet().stream().filter(key -> key.getX() >= x && key.getX() <= x + width && key.getY() >= y && key.getY() <= y + width)
+                        .collect(Collectors.toSet());
+                deleted = kdTree.deleteRange(kdTree.query().featureBounds("x", x, x + width).featureBounds("y", y, y + width).build());
+            } else {
+                expected = oracle.entrySet().stream().filter(entry -> entry.getKey().getY() >= y && entry.getValue() % 2 == 0)
+                        .map(Map.Entry::getKey).collect(Collectors.toSet());
+                deleted = kdTree.deleteRange(kdTree.query().featureBounds("y", y, null).filter((key, value) -> value % 2 == 0).build());
+            }
+            assertEquals(expected.size(), deleted);
+            expected.forEach(oracle::remove);
+            assertEquals(oracle.size(), kdTree.size());
+
+            // the tree stays consistent for the following writes
+            for (int j = 0; j < 200; j++) {
+                Point3d key = Point3d.builder().x(random.nextInt(500)).y(random.nextInt(500)).z(random.nextInt(500)).build();
+                if (oracle.putIfAbsent(key, j) == null) {
+                    kdTree.insert(key, j);
+                } else {
+                    assertTrue(kdTree.delete(key));
+                    oracle.remove(key);
+                }
+            }
+        }
+
+        assertEquals(oracle.size(), kdTree.size());
+        oracle.forEach((key, value) -> assertEquals(value, kdTree.get(key).getValue()));
+        Map<Point3d, Integer> found = kdTree.query().execute().stream().collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        assertEquals(oracle, found);
+
+        Map<Point3d, Integer> replayed = new HashMap<>();
+        for (KDTreeEvent<Point3d, Integer> event : events) {
+            if (event.getType() == KDTreeEventType.DELETE) {
+                assertNotNull(replayed.remove(event.getKey()));
+            } else {
+                replayed.put(event.getKey(), event.getValue());
+            }
+        }
+        assertEquals(oracle, replayed);
+        assertEquals(0, kdTree.deleteRange(kdTree.query().featureBounds("x", 10, 0).build()));
+        assertEquals(oracle.size(), kdTree.deleteRange(kdTree.query().build()));
+        assertEquals(0, kdTree.size());
+        kdTree.close();
+    }
+}
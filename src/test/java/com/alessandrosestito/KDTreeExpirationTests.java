@@ -0,0 +1,139 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+import com.alessandrosestito.kdtree.impl.KDTreeBuilder;
+import com.alessandrosestito.kdtree.impl.KDTreeEventType;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.alessandrosestito.KDTreeTestSupport.*;
+import static org.junit.Assert.*;
+
+public class KDTreeExpirationTests {
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point2d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+    }
+
+    @Test
+    public void expiredEntriesAreNotVisible() {
+        MutableClock clock = new MutableClock();
+        KDTree<Point2d, String> kdTree = KDTree.of(Point2d.class, String.class).withClock(clock).build();
+
+        IntStream.range(0, 1_000).forEach(i -> kdTree.insert(Point2d.builder().x(i).y(i).build(), "short", Duration.ofSeconds(10)));
+        IntStream.range(1_000, 2_000).forEach(i -> kdTree.insert(Point2d.builder().x(i).y(i).build(), "long", Duration.ofSeconds(60)));
+        IntStream.range(2_000, 2_500).forEach(i -> kdTree.insert(Point2d.builder().x(i).y(i).build(), "forever"));
+
+        assertEquals(2_500, kdTree.query().execute().size());
+
+        clock.advance(Duration.ofSeconds(10));
+        assertEquals(1_500, kdTree.query().execute().size());
+        assertFalse(kdTree.containsKey(Point2d.builder().x(5).y(5).build()));
+        assertTrue(kdTree.containsKey(Point2d.builder().x(1_005).y(1_005).build()));
+
+        assertEquals(1_000, kdTree.evictExpired());
+        assertEquals(1_500, kdTree.size());
+        assertEquals(0, kdTree.evictExpired());
+
+        clock.advance(Duration.ofSeconds(50));
+        kdTree.insert(Point2d.builder().x(1_005).y(1_005).build(), "again");
+        assertEquals(501, kdTree.size());
+        assertEquals(501, kdTree.query().execute().size());
+    }
+
+    @Test
+    public void expiredEntriesAreEvictedTogether() {
+        checkEviction(KDTree.of(Point2d.class, String.class));
+        checkEviction(KDTree.of(Point2d.class, String.class).withHashIndex());
+        checkEviction(KDTree.of(Point2d.class, String.class).withTombstoneDeletes(0.5).withHashIndex());
+    }
+
+    @Test
+    public void reinsertedKeyKeepsNewTimeToLive() {
+        MutableClock clock = new MutableClock();
+        KDTree<Point2d, String> kdTree = KDTree.of(Point2d.class, String.class)
+                .withClock(clock)
+                .withTimeToLive(Duration.ofSeconds(5))
+                .build();
+
+        Point2d key = Point2d.builder().x(1).y(2).build();
+        kdTree.insert(key, "first");
+        assertTrue(kdTree.delete(key));
+        clock.advance(Duration.ofSeconds(3));
+        kdTree.insert(key, "second");
+        kdTree.balance();
+
+        clock.advance(Duration.ofSeconds(3));
+        assertEquals(0, kdTree.evictExpired());
+        assertEquals("second", kdTree.get(key).getValue());
+
+        clock.advance(Duration.ofSeconds(2));
+        assertNull(kdTree.get(key));
+        assertEquals(1, kdTree.evictExpired());
+        assertEquals(0, kdTree.size());
+    }
+
+    @Test
+    public void timeToLiveMustBePositive() {
+        KDTree<Point2d, String> kdTree = KDTree.of(Point2d.class, String.class).build();
+        try {
+            kdTree.insert(Point2d.builder().x(1).y(2).build(), "value", Duration.ZERO);
+            fail();
+        } catch (KDTreeRuntimeException e) {
+            assertEquals(KDTreeExceptionType.TIME_TO_LIVE_NOT_POSITIVE, e.getExceptionType());
+        }
+    }
+
+    private void checkEviction(KDTreeBuilder<Point2d, String> builder) {
+        MutableClock clock = new MutableClock();
+        KDTree<Point2d, String> kdTree = builder.withClock(clock).withSubscriptionExecutor(Runnable::run, 1 << 16).build();
+        AtomicLong deleted = new AtomicLong();
+        kdTree.subscribe(kdTree.query().build(), event -> {
+            if (event.getType() == KDTreeEventType.DELETE) {
+                deleted.incrementAndGet();
+            }
+        });
+        Random random = new Random(26);
+        Map<Point2d, Integer> lifetimes = new HashMap<>();
+        while (lifetimes.size() < 10_000) {
+            Point2d key = Point2d.builder().x(random.nextInt(1_000)).y(random.nextInt(1_000)).build();
+            int seconds = random.nextInt(10);
+            if (lifetimes.putIfAbsent(key, seconds) == null) {
+                if (seconds == 0) {
+                    kdTree.insert(key, "forever");
+                } else {
+                    kdTree.insert(key, "expiring", Duration.ofSeconds(seconds));
+                }
+            }
+        }
+
+        for (int second = 1; second < 10; second++) {
+            clock.advance(Duration.ofSeconds(1));
+            int now = second;
+            long expired = lifetimes.values().stream().filter(seconds -> seconds == now).count();
+            assertEquals(expired, kdTree.evictExpired());
+            Set<Point2d> alive = lifetimes.entrySet().stream().filter(entry -> entry.getValue() == 0 || entry.getValue() > now)
+                    .map(Map.Entry::getKey).collect(Collectors.toSet());
+            assertEquals(alive.size(), kdTree.size());
+            assertEquals(alive, kdTree.query().execute().stream().map(Map.Entry::getKey).collect(Collectors.toSet()));
+            assertEquals(alive.stream().filter(key -> key.getX() < 100).count(), kdTree.query().featureBounds("x", 0, 99).execute().size());
+        }
+        assertEquals(10_000 - kdTree.size(), deleted.get());
+        kdTree.close();
+    }
+}
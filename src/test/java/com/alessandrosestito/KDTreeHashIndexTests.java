@@ -0,0 +1,76 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class KDTreeHashIndexTests {
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point2d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+    }
+
+    @Test
+    public void lookupsFollowInsertDeleteAndBalance() {
+        checkLookups(KDTree.of(Point2d.class, Integer.class).withHashIndex().build());
+        checkLookups(KDTree.of(Point2d.class, Integer.class).withHashIndex().withTombstoneDeletes(0.5).build());
+        checkLookups(KDTree.of(Point2d.class, Integer.class).build());
+    }
+
+    private void checkLookups(KDTree<Point2d, Integer> kdTree) {
+        Random random = new Random(3);
+        Map<Point2d, Integer> oracle = new HashMap<>();
+        while (oracle.size() < 20_000) {
+            Point2d key = Point2d.builder().x(random.nextInt(500)).y(random.nextInt(500)).build();
+            if (oracle.putIfAbsent(key, oracle.size()) == null) {
+                kdTree.insert(key, oracle.get(key));
+            }
+        }
+        List<Point2d> keys = new ArrayList<>(oracle.keySet());
+        keys.stream().limit(5_000).forEach(key -> {
+            assertTrue(kdTree.delete(key));
+            oracle.remove(key);
+        });
+        kdTree.balance();
+        keys.stream().skip(5_000).limit(5_000).forEach(key -> {
+            assertTrue(kdTree.update(key, -oracle.get(key)));
+            oracle.put(key, -oracle.get(key));
+        });
+        keys.stream().limit(1_000).forEach(key -> {
+            assertFalse(kdTree.update(key, 0));
+            kdTree.insert(key, 0);
+            oracle.put(key, 0);
+        });
+
+        for (Point2d key : keys) {
+            Map.Entry<Point2d, Integer> entry = kdTree.get(key);
+            assertEquals(oracle.containsKey(key), kdTree.containsKey(key));
+            assertEquals(oracle.get(key), entry == null ? null : entry.getValue());
+            if (entry != null) {
+                try {
+                    kdTree.insert(key, 1);
+                    fail();
+                } catch (KDTreeRuntimeException e) {
+                    assertEquals(KDTreeExceptionType.KEY_EXISTS, e.getExceptionType());
+                }
+            }
+        }
+        Map<Point2d, Integer> found = kdTree.query().execute().stream().collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        assertEquals(oracle, found);
+        assertEquals(oracle.size(), kdTree.size());
+    }
+}
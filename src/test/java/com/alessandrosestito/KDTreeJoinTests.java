@@ -0,0 +1,70 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.impl.KDTreeJoinCondition;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class KDTreeJoinTests {
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point2d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+    }
+
+    @Test
+    public void joinMatchesNestedLoop() {
+        Random random = new Random(29);
+        Map<Point2d, Integer> users = randomPoints(random, 4_000);
+        Map<Point2d, String> offers = new HashMap<>();
+        randomPoints(random, 3_000).forEach((key, value) -> offers.put(key, "offer-" + value));
+
+        KDTreeJoinCondition<Point2d> condition = KDTreeJoinCondition.<Point2d>create()
+                .maxDistance("x", 8)
+                .maxDistance("y", 8)
+                .filter((user, offer) -> Math.hypot(user.getX() - offer.getX(), user.getY() - offer.getY()) <= 8);
+        Set<String> expected = new HashSet<>();
+        users.forEach((user, userValue) -> offers.forEach((offer, offerValue) -> {
+            if (Math.hypot(user.getX() - offer.getX(), user.getY() - offer.getY()) <= 8) {
+                expected.add(userValue + "/" + offerValue);
+            }
+        }));
+        assertFalse(expected.isEmpty());
+
+        KDTree<Point2d, Integer> userTree = KDTree.of(Point2d.class, Integer.class).build();
+        users.forEach(userTree::insert);
+        KDTree<Point2d, String> offerTree = KDTree.of(Point2d.class, String.class).build();
+        offers.forEach(offerTree::insert);
+        KDTree<Point2d, String> logarithmicOfferTree = KDTree.of(Point2d.class, String.class).withLogarithmicMethod(128).build();
+        offers.forEach(logarithmicOfferTree::insert);
+
+        assertEquals(expected, join(userTree, offerTree, condition));
+        assertEquals(expected, join(userTree, logarithmicOfferTree, condition));
+        assertEquals(expected, join(userTree, offerTree, condition.parallel()));
+    }
+
+    private Set<String> join(KDTree<Point2d, Integer> users, KDTree<Point2d, String> offers, KDTreeJoinCondition<Point2d> condition) {
+        Set<String> matches = ConcurrentHashMap.newKeySet();
+        users.join(offers, condition, (user, offer) -> assertTrue(matches.add(user.getValue() + "/" + offer.getValue())));
+        return matches;
+    }
+
+    private Map<Point2d, Integer> randomPoints(Random random, int count) {
+        Map<Point2d, Integer> points = new HashMap<>();
+        while (points.size() < count) {
+            points.put(Point2d.builder().x(random.nextInt(1000)).y(random.nextInt(1000)).build(), points.size());
+        }
+        return points;
+    }
+}
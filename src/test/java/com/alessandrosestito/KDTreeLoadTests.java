@@ -0,0 +1,77 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.loadtest.KDTreeLoadConfig;
+import com.alessandrosestito.loadtest.KDTreeLoadReport;
+import com.alessandrosestito.loadtest.KDTreeLoadRunner;
+import com.alessandrosestito.loadtest.KeyDistribution;
+import com.alessandrosestito.loadtest.LatencyHistogram;
+import com.alessandrosestito.loadtest.LoadOperation;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class KDTreeLoadTests {
+
+    @Test
+    public void mixedWorkloadsMatchTheOracle() {
+        KDTreeLoadConfig smoke = KDTreeLoadConfig.builder()
+                .readers(2)
+                .writers(2)
+                .duration(Duration.ofMillis(300))
+                .preload(5_000)
+                .side(1_000)
+                .rangeWidth(100)
+                .autoBalance(Duration.ofMillis(100))
+                .verifyEvery(1)
+                .build();
+        for (KDTreeLoadConfig.Backend backend : KDTreeLoadConfig.Backend.values()) {
+            checkReport(KDTreeLoadRunner.run(smoke.toBuilder().backend(backend).build()));
+        }
+        for (KeyDistribution distribution : KeyDistribution.values()) {
+            checkReport(KDTreeLoadRunner.run(smoke.toBuilder().distribution(distribution).build()));
+        }
+    }
+
+    @Test
+    public void histogramPercentilesAreWithinTheBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        LatencyHistogram other = new LatencyHistogram();
+        Random random = new Random(3);
+        long[] values = new long[100_000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * 25);
+            (i % 2 == 0 ? histogram : other).record(values[i]);
+        }
+        histogram.add(other);
+        Arrays.sort(values);
+        assertEquals(values.length, histogram.getCount());
+        assertEquals(values[values.length - 1], histogram.getMax());
+        for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            long exact = values[(int) Math.ceil(quantile * values.length) - 1];
+            long reported = histogram.percentile(quantile);
+            assertTrue(reported >= exact);
+            assertTrue(reported <= exact + exact / 50 + 1);
+        }
+    }
+
+    // the load-test profile runs only this test, with the arguments of KDTreeLoadRunner in load.args
+    @Test
+    public void configuredLoad() {
+        String args = System.getProperty("load.args");
+        Assume.assumeTrue(args != null && !args.isBlank());
+        KDTreeLoadReport report = KDTreeLoadRunner.run(KDTreeLoadConfig.fromArgs(args.trim().split("\\s+")));
+        System.out.print(report.format());
+        assertTrue(report.getFailures().isEmpty());
+    }
+
+    private void checkReport(KDTreeLoadReport report) {
+        assertTrue(report.format(), report.getFailures().isEmpty());
+        assertTrue(report.getOperations() > 0);
+        assertTrue(report.getLatencies().containsKey(LoadOperation.RANGE));
+    }
+}
@@ -0,0 +1,163 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+
+import static com.alessandrosestito.KDTreeTestSupport.*;
+import static org.junit.Assert.*;
+
+public class KDTreeLogarithmicTests {
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point2d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+    }
+
+    @Test
+    public void writesAndQueriesAcrossLevels() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            checkWorkload(KDTree.of(Point2d.class, Integer.class).withLogarithmicMethod(64).withScheduler(scheduler).build());
+            checkWorkload(KDTree.of(Point2d.class, Integer.class).withLogarithmicMethod(100).withHashIndex().build());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void bufferCapacityMustBePositive() {
+        try {
+            KDTree.of(Point2d.class, Integer.class).withLogarithmicMethod(0);
+            fail();
+        } catch (KDTreeRuntimeException e) {
+            assertEquals(KDTreeExceptionType.BUFFER_CAPACITY_NOT_POSITIVE, e.getExceptionType());
+        }
+    }
+
+    @Test
+    public void failedMergeRestoresTheComponents() {
+        ManualScheduler scheduler = new ManualScheduler();
+        KDTree<FragilePoint, Integer> kdTree = KDTree.of(FragilePoint.class, Integer.class).withLogarithmicMethod(4).withScheduler(scheduler).build();
+        Map<FragilePoint, Integer> oracle = new HashMap<>();
+        try {
+            insertFragile(kdTree, oracle, 0, 4);
+            scheduler.runTasks();
+            insertFragile(kdTree, oracle, 4, 8);
+            runFailing(scheduler::runTasks);
+            checkFragileContent(kdTree, oracle);
+
+            // the restored buffer is full again, so the next insert schedules the merge once more
+            insertFragile(kdTree, oracle, 8, 10);
+            scheduler.runTasks();
+            checkFragileContent(kdTree, oracle);
+
+            try {
+                runFailing(kdTree::balance);
+                fail();
+            } catch (IllegalStateException e) {
+                assertEquals("comparison failed", e.getMessage());
+            }
+            checkFragileContent(kdTree, oracle);
+            kdTree.balance();
+            checkFragileContent(kdTree, oracle);
+        } finally {
+            scheduler.shutdown();
+        }
+        try {
+            kdTree.close();
+            fail();
+        } catch (KDTreeRuntimeException e) {
+            assertEquals(KDTreeExceptionType.MERGE_FAILED, e.getExceptionType());
+        }
+        kdTree.close();
+    }
+
+    private void insertFragile(KDTree<FragilePoint, Integer> kdTree, Map<FragilePoint, Integer> oracle, int from, int to) {
+        for (int i = from; i < to; i++) {
+            FragilePoint key = FragilePoint.builder().x(new Fragile(i * 7 % 10)).y(i).build();
+            kdTree.insert(key, i);
+            oracle.put(key, i);
+        }
+    }
+
+    private void checkFragileContent(KDTree<FragilePoint, Integer> kdTree, Map<FragilePoint, Integer> oracle) {
+        assertEquals(oracle.size(), kdTree.size());
+        for (Map.Entry<FragilePoint, Integer> entry : oracle.entrySet()) {
+            assertEquals(entry.getValue(), kdTree.get(entry.getKey()).getValue());
+        }
+        assertEquals(oracle.size(), kdTree.query().execute().size());
+    }
+
+    private void checkWorkload(KDTree<Point2d, Integer> kdTree) {
+        Random random = new Random(5);
+        Map<Point2d, Integer> oracle = new HashMap<>();
+        for (int i = 0; i < 30_000; i++) {
+            Point2d key = Point2d.builder().x(random.nextInt(300)).y(random.nextInt(300)).build();
+            int operation = random.nextInt(10);
+            if (operation < 6) {
+                if (oracle.putIfAbsent(key, i) == null) {
+                    kdTree.insert(key, i);
+                } else {
+                    try {
+                        kdTree.insert(key, i);
+                        fail();
+                    } catch (KDTreeRuntimeException e) {
+                        assertEquals(KDTreeExceptionType.KEY_EXISTS, e.getExceptionType());
+                    }
+                }
+            } else if (operation < 8) {
+                assertEquals(oracle.remove(key) != null, kdTree.delete(key));
+            } else if (operation < 9) {
+                assertEquals(oracle.put(key, -i), kdTree.upsert(key, -i));
+            } else {
+                Point2d target = Point2d.builder().x(random.nextInt(300)).y(random.nextInt(300)).build();
+                if (oracle.containsKey(key) && !oracle.containsKey(target)) {
+                    assertTrue(kdTree.move(key, target));
+                    oracle.put(target, oracle.remove(key));
+                }
+            }
+        }
+
+        checkContent(kdTree, oracle, random);
+        kdTree.balance();
+        checkContent(kdTree, oracle, random);
+        assertEquals(oracle.size(), kdTree.query().limit(50_000L).execute().size());
+        assertEquals(10, kdTree.query().limit(10L).execute().size());
+        kdTree.close();
+    }
+
+    private void checkContent(KDTree<Point2d, Integer> kdTree, Map<Point2d, Integer> oracle, Random random) {
+        assertEquals(oracle.size(), kdTree.size());
+        for (Map.Entry<Point2d, Integer> entry : oracle.entrySet()) {
+            assertEquals(entry.getValue(), kdTree.get(entry.getKey()).getValue());
+        }
+        for (int i = 0; i < 200; i++) {
+            int x = random.nextInt(300);
+            int y = random.nextInt(300);
+            int width = random.nextInt(60);
+            Map<Point2d, Integer> found = kdTree.query()
+                    .featureBounds("x", x, x + width)
+                    .featureBounds("y", y, y + width)
+                    .execute().stream().collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+            Map<Point2d, Integer> expected = oracle.entrySet().stream()
+                    .filter(entry -> entry.getKey().getX() >= x && entry.getKey().getX() <= x + width
+                            && entry.getKey().getY() >= y && entry.getKey().getY() <= y + width)
+                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+            assertEquals(expected, found);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+import com.alessandrosestito.kdtree.impl.KDTreeBuilder;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import com.alessandrosestito.kdtree.impl.KDTreeMemoryStats;
+import com.alessandrosestito.kdtree.impl.KDTreeNearestQuery;
+import com.alessandrosestito.kdtree.impl.KDTreeRegion;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static com.alessandrosestito.KDTreeTestSupport.*;
+import static org.junit.Assert.*;
+
+public class KDTreeMemoryTests {
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point3d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+        private final Integer z;
+    }
+
+    @Test
+    public void statsBreakDownTheFootprint() {
+        checkStats(() -> KDTree.of(Point3d.class, Integer.class), false);
+        checkStats(() -> KDTree.of(Point3d.class, Integer.class).withTombstoneDeletes(0.5).withHashIndex(), true);
+        checkStats(() -> KDTree.of(Point3d.class, Integer.class).withLogarithmicMethod(512), false);
+        checkStats(() -> KDTree.of(Point3d.class, Integer.class).withZOrderIndex(), false);
+    }
+
+    @Test
+    public void compactStorageDropsTheKeyCaches() {
+        checkCompact(() -> KDTree.of(Point3d.class, Integer.class));
+        checkCompact(() -> KDTree.of(Point3d.class, Integer.class).withHashIndex());
+        checkCompact(() -> KDTree.of(Point3d.class, Integer.class).withLogarithmicMethod(512));
+        checkCompact(() -> KDTree.of(Point3d.class, Integer.class).withZOrderIndex());
+    }
+
+    @Test
+    public void compactStorageLeavesTheKeysAlone() {
+        KDTree<Point3d, Integer> compact = KDTree.of(Point3d.class, Integer.class).withCompactStorage().build();
+        KDTree<Point3d, Integer> plain = KDTree.of(Point3d.class, Integer.class).build();
+        compact.subscribe(compact.query().featureBounds("x", 0, 500).build(), event -> {
+        });
+        List<Point3d> keys = new ArrayList<>(fill(compact, randomPoints(new Random(5)), 1_000).keySet());
+        try {
+            compact.insert(keys.get(0), 0);
+            fail();
+        } catch (KDTreeRuntimeException e) {
+            assertEquals(KDTreeExceptionType.KEY_EXISTS, e.getExceptionType());
+        }
+        assertEquals(0, compact.memoryStats().getKeyCacheBytes());
+        // the subscriptions and the region test of a split read the fields as well
+        List<KDTree<Point3d, Integer>> parts = compact.split(KDTreeRegion.ball(Map.of("x", 250.0, "y", 250.0), 100));
+        assertEquals(0, compact.memoryStats().getKeyCacheBytes());
+        parts.forEach(KDTree::close);
+
+        // the same keys still cache their features when a plain tree reads them
+        keys.forEach(key -> plain.insert(key, 0));
+        assertTrue(plain.memoryStats().getKeyCacheBytes() > 0);
+        KDTree<Point3d, Integer> merged = KDTree.merge(KDTree.of(Point3d.class, Integer.class).withCompactStorage().build(), plain);
+        assertEquals(plain.memoryStats().getKeyCacheBytes(), merged.memoryStats().getKeyCacheBytes());
+        assertEquals(keys.size(), merged.query().featureBounds("x", 0, 500).execute().size());
+        compact.close();
+        plain.close();
+        merged.close();
+    }
+
+    @Test
+    public void expirationsAreCounted() {
+        KDTree<Point3d, Integer> kdTree = KDTree.of(Point3d.class, Integer.class).build();
+        fill(kdTree, randomPoints(new Random(3)), 1_000);
+        long indexBytes = kdTree.memoryStats().getIndexBytes();
+        kdTree.insert(Point3d.builder().x(1_000).y(1_000).z(1_000).build(), 0, Duration.ofMinutes(1));
+        assertTrue(kdTree.memoryStats().getIndexBytes() > indexBytes);
+        kdTree.close();
+    }
+
+    private void checkStats(Supplier<KDTreeBuilder<Point3d, Integer>> builder, boolean indexed) {
+        KDTree<Point3d, Integer> empty = builder.get().build();
+        assertEquals(0, empty.memoryStats().getEntries());
+        assertEquals(0, empty.memoryStats().getKeyBytes());
+        empty.close();
+
+        KDTree<Point3d, Integer> kdTree = builder.get().build();
+        Map<Point3d, Integer> oracle = fill(kdTree, randomPoints(new Random(7)), 10_000);
+        KDTreeMemoryStats stats = kdTree.memoryStats();
+        assertEquals(kdTree.size(), stats.getEntries());
+        assertEquals(stats.getStructureBytes() + stats.getKeyBytes() + stats.getKeyCacheBytes() + stats.getFeatureBytes() + stats.getIndexBytes(),
+                stats.getTotalBytes());
+        assertTrue(stats.getStructureBytes() > 0);
+        // every key holds three boxed integers
+        assertTrue(stats.getKeyBytes() >= 16L * oracle.size());
+        assertTrue(stats.getFeatureBytes() >= 3 * 16L * oracle.size());
+        assertEquals(indexed, stats.getIndexBytes() > 0);
+        assertEquals((double) stats.getTotalBytes() / stats.getEntries(), stats.getBytesPerEntry(), 1e-9);
+
+        // measuring does not fill the caches of the keys
+        assertEquals(stats.getKeyCacheBytes(), kdTree.memoryStats().getKeyCacheBytes());
+        kdTree.close();
+    }
+
+    private void checkCompact(Supplier<KDTreeBuilder<Point3d, Integer>> builder) {
+        Random random = new Random(11);
+        KDTree<Point3d, Integer> plain = builder.get().build();
+        KDTree<Point3d, Integer> compact = builder.get().withCompactStorage().build();
+        Map<Point3d, Integer> oracle = new HashMap<>();
+        for (int i = 0; i < 10_000; i++) {
+            int x = random.nextInt(500);
+            int y = random.nextInt(500);
+            int z = random.nextInt(500);
+            if (oracle.putIfAbsent(Point3d.builder().x(x).y(y).z(z).build(), i) == null) {
+                plain.insert(Point3d.builder().x(x).y(y).z(z).build(), i);
+                compact.insert(Point3d.builder().x(x).y(y).z(z).build(), i);
+            }
+        }
+
+        for (int i = 0; i < 50; i++) {
+            int x = random.nextInt(500);
+            Set<Point3d> expected = oracle.keySet().stream().filter(key -> key.getX() >= x && key.getX() <= x + 40).collect(Collectors.toSet());
+            assertEquals(expected, compact.query().featureBounds("x", x, x + 40).execute().stream().map(Map.Entry::getKey).collect(Collectors.toSet()));
+            Point3d target = Point3d.builder().x(x).y(random.nextInt(500)).z(random.nextInt(500)).build();
+            assertEquals(plain.nearest(KDTreeNearestQuery.create(target, 5)).getEntries().stream().map(Map.Entry::getValue).collect(Collectors.toList()),
+                    compact.nearest(KDTreeNearestQuery.create(target, 5)).getEntries().stream().map(Map.Entry::getValue).collect(Collectors.toList()));
+        }
+        oracle.forEach((key, value) -> assertEquals(value, compact.get(key).getValue()));
+
+        KDTreeMemoryStats plainStats = plain.memoryStats();
+        KDTreeMemoryStats compactStats = compact.memoryStats();
+        assertEquals(0, compactStats.getKeyCacheBytes());
+        assertTrue(plainStats.getKeyCacheBytes() > 0);
+        assertTrue(compactStats.getBytesPerEntry() < plainStats.getBytesPerEntry());
+        plain.close();
+        compact.close();
+    }
+
+    private Supplier<Point3d> randomPoints(Random random) {
+        return () -> Point3d.builder().x(random.nextInt(500)).y(random.nextInt(500)).z(random.nextInt(500)).build();
+    }
+}
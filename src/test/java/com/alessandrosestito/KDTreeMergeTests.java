@@ -0,0 +1,242 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.impl.KDTreeBuilder;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import com.alessandrosestito.kdtree.impl.KDTreeRegion;
+import com.alessandrosestito.kdtree.impl.KDTreeValueCodec;
+import com.alessandrosestito.kdtree.impl.KDTreeValueStore;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static com.alessandrosestito.KDTreeTestSupport.*;
+import static org.junit.Assert.*;
+
+public class KDTreeMergeTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point3d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+        private final Integer z;
+    }
+
+    @Test
+    public void mergedTreesMatchTheOracle() {
+        backends(() -> KDTree.of(Point3d.class, Integer.class), 512).forEach(this::checkMerge);
+        checkMerge(() -> KDTree.of(Point3d.class, Integer.class).withTombstoneDeletes(0.3).withHashIndex().withSecondaryIndex("x"));
+    }
+
+    @Test
+    public void mergedTreeIsBalanced() {
+        List<KDTree<Point3d, Integer>> shards = new ArrayList<>();
+        for (int shard = 0; shard < 4; shard++) {
+            KDTree<Point3d, Integer> kdTree = KDTree.of(Point3d.class, Integer.class).build();
+            // the keys are inserted sorted, so every shard degenerates to a list
+            for (int i = shard * 5_000; i < (shard + 1) * 5_000; i++) {
+                kdTree.insert(Point3d.builder().x(i).y(i).z(i).build(), i);
+            }
+            assertTrue(kdTree.score() < 0.5);
+            shards.add(kdTree);
+        }
+        KDTree<Point3d, Integer> merged = KDTree.merge(shards.get(0), shards.get(1), shards.get(2), shards.get(3));
+        assertEquals(20_000, merged.size());
+        assertTrue(merged.score() > 0.9);
+        assertEquals(101, merged.query().featureBounds("x", 7_450, 7_550).execute().size());
+        shards.forEach(KDTree::close);
+        merged.close();
+    }
+
+    @Test
+    public void treesOfAnotherKindAreMerged() {
+        KDTree<Point3d, Integer> plain = KDTree.of(Point3d.class, Integer.class).build();
+        KDTree<Point3d, Integer> logarithmic = KDTree.of(Point3d.class, Integer.class).withLogarithmicMethod(64).build();
+        KDTree<Point3d, Integer> zOrder = KDTree.of(Point3d.class, Integer.class).withZOrderIndex().build();
+        Map<Point3d, Integer> oracle = new HashMap<>();
+        List<KDTree<Point3d, Integer>> trees = List.of(plain, logarithmic, zOrder);
+        for (int i = 0; i < 3_000; i++) {
+            Point3d key = Point3d.builder().x(i).y(i % 97).z(i % 13).build();
+            trees.get(i % 3).insert(key, i);
+            oracle.put(key, i);
+        }
+        for (KDTree<Point3d, Integer> first : trees) {
+            List<KDTree<Point3d, Integer>> others = trees.stream().filter(tree -> tree != first).collect(Collectors.toList());
+            KDTree<Point3d, Integer> merged = first.merge(others);
+            assertEquals(oracle, toMap(merged.query().execute()));
+            assertEquals(oracle.entrySet().stream().filter(entry -> entry.getKey().getY() < 10).count(),
+                    merged.query().featureBounds("y", 0, 9).execute().size());
+            merged.close();
+        }
+        trees.forEach(KDTree::close);
+    }
+
+    @Test
+    public void expirationsAreKept() {
+        checkExpirations(KDTree.of(Point3d.class, Integer.class).build(), KDTree.of(Point3d.class, Integer.class).build());
+        checkExpirations(KDTree.of(Point3d.class, Integer.class).withLogarithmicMethod(16).build(),
+                KDTree.of(Point3d.class, Integer.class).withLogarithmicMethod(16).build());
+        checkExpirations(KDTree.of(Point3d.class, Integer.class).withZOrderIndex().build(), KDTree.of(Point3d.class, Integer.class).withZOrderIndex().build());
+    }
+
+    @Test
+    public void duplicateKeysAreRejected() {
+        KDTree<Point3d, Integer> first = KDTree.of(Point3d.class, Integer.class).build();
+        KDTree<Point3d, Integer> second = KDTree.of(Point3d.class, Integer.class).withZOrderIndex().build();
+        first.insert(Point3d.builder().x(1).y(2).z(3).build(), 1);
+        second.insert(Point3d.builder().x(1).y(2).z(3).build(), 2);
+        second.insert(Point3d.builder().x(4).y(5).z(6).build(), 3);
+        checkRejected(() -> KDTree.merge(first, second), KDTreeExceptionType.KEY_EXISTS);
+        checkRejected(() -> KDTree.merge(second, first), KDTreeExceptionType.KEY_EXISTS);
+        assertEquals(1, first.size());
+        assertEquals(2, second.size());
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void splitPartsCoverTheTree() {
+        checkSplit(KDTree.of(Point3d.class, Integer.class).build());
+        checkSplit(KDTree.of(Point3d.class, Integer.class).withHashIndex().withSecondaryIndex("z").build());
+        checkSplit(KDTree.of(Point3d.class, Integer.class).withLogarithmicMethod(256).build());
+        checkSplit(KDTree.of(Point3d.class, Integer.class).withZOrderIndex().build());
+    }
+
+    @Test
+    public void storedValuesAreSharedUntilTheLastTreeIsClosed() throws Exception {
+        Path file = folder.newFile().toPath();
+        KDTree<Point3d, Integer> kdTree = KDTree.of(Point3d.class, Integer.class)
+                .withValueStore(KDTreeValueStore.tiered(file, 256, KDTreeValueCodec.serialization())).build();
+        Map<Point3d, Integer> oracle = new HashMap<>();
+        for (int i = 0; i < 2_000; i++) {
+            Point3d key = Point3d.builder().x(i).y(i % 50).z(i % 7).build();
+            kdTree.insert(key, i);
+            oracle.put(key, i);
+        }
+        List<KDTree<Point3d, Integer>> parts = kdTree.split(key -> key.getX() < 1_000);
+        KDTree<Point3d, Integer> plain = KDTree.of(Point3d.class, Integer.class).build();
+        plain.insert(Point3d.builder().x(-1).y(0).z(0).build(), -1);
+        KDTree<Point3d, Integer> merged = KDTree.merge(parts.get(0), parts.get(1), plain);
+        oracle.put(Point3d.builder().x(-1).y(0).z(0).build(), -1);
+
+        kdTree.close();
+        parts.forEach(KDTree::close);
+        plain.close();
+        assertTrue(Files.exists(file));
+        assertEquals(oracle, toMap(merged.query().execute()));
+        merged.close();
+        assertFalse(Files.exists(file));
+    }
+
+    private void checkMerge(Supplier<KDTreeBuilder<Point3d, Integer>> builder) {
+        Random random = new Random(49);
+        Map<Point3d, Integer> oracle = new HashMap<>();
+        List<KDTree<Point3d, Integer>> shards = new ArrayList<>();
+        for (int shard = 0; shard < 5; shard++) {
+            shards.add(builder.get().build());
+        }
+        for (int i = 0; i < 20_000; i++) {
+            Point3d key = Point3d.builder().x(random.nextInt(1_000)).y(random.nextInt(1_000)).z(random.nextInt(1_000)).build();
+            if (oracle.putIfAbsent(key, i) == null) {
+                shards.get(key.getX() % shards.size()).insert(key, i);
+            }
+        }
+        List<Point3d> keys = new ArrayList<>(oracle.keySet());
+        for (int i = 0; i < 2_000; i++) {
+            assertTrue(shards.get(keys.get(i).getX() % shards.size()).delete(keys.get(i)));
+            oracle.remove(keys.get(i));
+        }
+
+        KDTree<Point3d, Integer> merged = shards.get(0).merge(shards.subList(1, shards.size()));
+        assertEquals(oracle.size(), merged.size());
+        assertEquals(oracle, toMap(merged.query().execute()));
+        for (int i = 0; i < 20; i++) {
+            int x = random.nextInt(1_000);
+            int y = random.nextInt(1_000);
+            assertEquals(oracle.keySet().stream().filter(key -> key.getX() >= x && key.getX() <= x + 50 && key.getY() <= y).collect(Collectors.toSet()),
+                    merged.query().featureBounds("x", x, x + 50).featureBounds("y", 0, y).execute().stream().map(Map.Entry::getKey).collect(Collectors.toSet()));
+        }
+
+        // the merged tree keeps the options of the first one and is independent of the shards
+        Point3d key = Point3d.builder().x(-1).y(-1).z(-1).build();
+        merged.insert(key, -1);
+        assertTrue(merged.delete(keys.get(2_000)));
+        assertFalse(shards.get(0).containsKey(key));
+        assertTrue(shards.get(keys.get(2_000).getX() % shards.size()).containsKey(keys.get(2_000)));
+        shards.forEach(KDTree::close);
+        merged.close();
+    }
+
+    private void checkExpirations(KDTree<Point3d, Integer> first, KDTree<Point3d, Integer> second) {
+        first.insert(Point3d.builder().x(1).y(1).z(1).build(), 1, Duration.ofMillis(1));
+        first.insert(Point3d.builder().x(2).y(2).z(2).build(), 2);
+        second.insert(Point3d.builder().x(3).y(3).z(3).build(), 3, Duration.ofMillis(1));
+        second.insert(Point3d.builder().x(4).y(4).z(4).build(), 4, Duration.ofHours(1));
+        KDTree<Point3d, Integer> merged = KDTree.merge(first, second);
+        long deadline = System.currentTimeMillis() + 50;
+        while (System.currentTimeMillis() < deadline) {
+            Thread.onSpinWait();
+        }
+        assertEquals(Set.of(2, 4), merged.query().execute().stream().map(Map.Entry::getValue).collect(Collectors.toSet()));
+        List<KDTree<Point3d, Integer>> parts = merged.split(key -> key.getX() % 2 == 0);
+        assertEquals(Set.of(2, 4), parts.get(0).query().execute().stream().map(Map.Entry::getValue).collect(Collectors.toSet()));
+        assertEquals(0, parts.get(1).query().execute().size());
+        first.close();
+        second.close();
+        merged.close();
+        parts.forEach(KDTree::close);
+    }
+
+    private void checkSplit(KDTree<Point3d, Integer> kdTree) {
+        Random random = new Random(50);
+        Map<Point3d, Integer> oracle = new HashMap<>();
+        for (int i = 0; i < 10_000; i++) {
+            Point3d key = Point3d.builder().x(random.nextInt(1_000)).y(random.nextInt(1_000)).z(random.nextInt(100)).build();
+            if (oracle.putIfAbsent(key, i) == null) {
+                kdTree.insert(key, i);
+            }
+        }
+
+        List<KDTree<Point3d, Integer>> parts = kdTree.split(key -> key.getZ() < 30);
+        assertEquals(2, parts.size());
+        assertEquals(oracle.entrySet().stream().filter(entry -> entry.getKey().getZ() < 30).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)),
+                toMap(parts.get(0).query().execute()));
+        assertEquals(oracle.entrySet().stream().filter(entry -> entry.getKey().getZ() >= 30).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)),
+                toMap(parts.get(1).query().execute()));
+        assertEquals(oracle.size(), kdTree.size());
+
+        KDTreeRegion<Point3d> halfSpace = KDTreeRegion.halfSpace(Map.of("x", 1.0, "y", 1.0), 1_000);
+        List<KDTree<Point3d, Integer>> halves = kdTree.split(halfSpace);
+        assertEquals(oracle.keySet().stream().filter(halfSpace::contains).collect(Collectors.toSet()),
+                halves.get(0).query().execute().stream().map(Map.Entry::getKey).collect(Collectors.toSet()));
+        assertEquals(oracle.size(), halves.get(0).size() + halves.get(1).size());
+        halves.get(1).query().execute().forEach(entry -> assertFalse(halfSpace.contains(entry.getKey())));
+
+        KDTree<Point3d, Integer> rejoined = KDTree.merge(halves.get(0), halves.get(1));
+        assertEquals(oracle, toMap(rejoined.query().execute()));
+        kdTree.close();
+        parts.forEach(KDTree::close);
+        halves.forEach(KDTree::close);
+        rejoined.close();
+    }
+
+    private Map<Point3d, Integer> toMap(List<Map.Entry<Point3d, Integer>> entries) {
+        return entries.stream().collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    }
+}
@@ -0,0 +1,78 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class KDTreeMoveTests {
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point2d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+    }
+
+    @Test
+    public void movingEntitiesKeepTheirValues() {
+        checkMoves(KDTree.of(Point2d.class, Integer.class).build());
+        checkMoves(KDTree.of(Point2d.class, Integer.class).withHashIndex().build());
+        checkMoves(KDTree.of(Point2d.class, Integer.class).withTombstoneDeletes(0.3).build());
+    }
+
+    private void checkMoves(KDTree<Point2d, Integer> kdTree) {
+        Random random = new Random(11);
+        Map<Point2d, Integer> oracle = new HashMap<>();
+        while (oracle.size() < 5_000) {
+            Point2d key = Point2d.builder().x(random.nextInt(1_000)).y(random.nextInt(1_000)).build();
+            if (oracle.putIfAbsent(key, oracle.size()) == null) {
+                kdTree.insert(key, oracle.get(key));
+            }
+        }
+
+        for (int tick = 0; tick < 20; tick++) {
+            Map<Point2d, Point2d> moves = new LinkedHashMap<>();
+            Set<Point2d> targets = new HashSet<>();
+            for (Point2d key : oracle.keySet()) {
+                int step = tick % 5 == 0 ? 500 : 3;
+                Point2d next = Point2d.builder().x(key.getX() + random.nextInt(2 * step + 1) - step).y(key.getY() + random.nextInt(2 * step + 1) - step).build();
+                if (random.nextInt(4) == 0 && !oracle.containsKey(next) && targets.add(next)) {
+                    moves.put(key, next);
+                }
+            }
+            assertEquals(moves.size(), kdTree.moveAll(moves));
+            moves.forEach((from, to) -> oracle.put(to, oracle.remove(from)));
+        }
+
+        Point2d first = oracle.keySet().iterator().next();
+        Point2d second = oracle.keySet().stream().skip(1).findFirst().orElseThrow();
+        try {
+            kdTree.move(first, second);
+            fail();
+        } catch (KDTreeRuntimeException e) {
+            assertEquals(KDTreeExceptionType.KEY_EXISTS, e.getExceptionType());
+        }
+        assertFalse(kdTree.move(Point2d.builder().x(-5_000).y(-5_000).build(), Point2d.builder().x(0).y(0).build()));
+
+        Point2d absent = Point2d.builder().x(-1).y(-1).build();
+        assertNull(kdTree.upsert(absent, 1));
+        assertEquals(Integer.valueOf(1), kdTree.upsert(absent, 2));
+        oracle.put(absent, 2);
+
+        Map<Point2d, Integer> found = kdTree.query().execute().stream().collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        assertEquals(oracle, found);
+        assertEquals(oracle.size(), kdTree.size());
+        oracle.forEach((key, value) -> assertEquals(value, kdTree.get(key).getValue()));
+    }
+}
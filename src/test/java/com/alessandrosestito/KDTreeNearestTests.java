@@ -0,0 +1,104 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import com.alessandrosestito.kdtree.impl.KDTreeNearestQuery;
+import com.alessandrosestito.kdtree.impl.KDTreeNearestResult;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static com.alessandrosestito.KDTreeTestSupport.*;
+import static org.junit.Assert.*;
+
+public class KDTreeNearestTests {
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point8d extends KDTreeKey {
+        private final Double a;
+        private final Double b;
+        private final Double c;
+        private final Double d;
+        private final Double e;
+        private final Double f;
+        private final Double g;
+        private final Integer h;
+    }
+
+    @Test
+    public void exactAndApproximateNeighbours() {
+        backends(() -> KDTree.of(Point8d.class, Integer.class), 512).forEach(backend -> checkNeighbours(backend.get().build()));
+    }
+
+    @Test
+    public void invalidQueriesAreRejected() {
+        Point8d target = randomPoint(new Random(1));
+        checkRejected(() -> KDTreeNearestQuery.create(target, 0), KDTreeExceptionType.NEIGHBOURS_NOT_POSITIVE);
+        checkRejected(() -> KDTreeNearestQuery.create(target, 1).epsilon(-0.5), KDTreeExceptionType.EPSILON_NEGATIVE);
+        checkRejected(() -> KDTreeNearestQuery.create(target, 1).maxVisitedNodes(0), KDTreeExceptionType.VISIT_BUDGET_NOT_POSITIVE);
+        checkRejected(() -> KDTreeNearestQuery.create(target, 1).timeBudget(Duration.ZERO), KDTreeExceptionType.VISIT_BUDGET_NOT_POSITIVE);
+    }
+
+    private void checkNeighbours(KDTree<Point8d, Integer> kdTree) {
+        Random random = new Random(17);
+        List<Point8d> points = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            Point8d point = randomPoint(random);
+            kdTree.insert(point, i);
+            points.add(point);
+        }
+        for (int i = 0; i < 2_000; i++) {
+            kdTree.delete(points.remove(points.size() - 1));
+        }
+
+        for (int i = 0; i < 20; i++) {
+            Point8d target = randomPoint(random);
+            List<Double> expected = points.stream().map(point -> distance(point, target)).sorted().limit(10).collect(Collectors.toList());
+
+            KDTreeNearestResult<Point8d, Integer> exact = kdTree.nearest(KDTreeNearestQuery.create(target, 10));
+            assertTrue(exact.isExact());
+            assertEquals(expected, distances(exact, target));
+
+            KDTreeNearestResult<Point8d, Integer> bounded = kdTree.nearest(KDTreeNearestQuery.create(target, 10).maxVisitedNodes(200));
+            assertTrue(bounded.getVisitedNodes() <= 200);
+            assertEquals(10, bounded.getEntries().size());
+            if (bounded.isExact()) {
+                assertEquals(expected, distances(bounded, target));
+            }
+
+            KDTreeNearestResult<Point8d, Integer> approximate = kdTree.nearest(KDTreeNearestQuery.create(target, 10).epsilon(0.5));
+            List<Double> found = distances(approximate, target);
+            assertEquals(10, found.size());
+            assertTrue(found.get(9) <= expected.get(9) * 1.5 + 1e-9);
+            assertTrue(approximate.getVisitedNodes() <= exact.getVisitedNodes());
+
+            KDTreeNearestResult<Point8d, Integer> timed = kdTree.nearest(KDTreeNearestQuery.create(target, 10).timeBudget(Duration.ofSeconds(10)));
+            assertTrue(timed.isExact());
+            assertEquals(expected, distances(timed, target));
+        }
+        kdTree.close();
+    }
+
+    private List<Double> distances(KDTreeNearestResult<Point8d, Integer> result, Point8d target) {
+        return result.getEntries().stream().map(entry -> distance(entry.getKey(), target)).collect(Collectors.toList());
+    }
+
+    private double distance(Point8d p1, Point8d p2) {
+        double[] differences = {p1.getA() - p2.getA(), p1.getB() - p2.getB(), p1.getC() - p2.getC(), p1.getD() - p2.getD(),
+                p1.getE() - p2.getE(), p1.getF() - p2.getF(), p1.getG() - p2.getG(), p1.getH() - p2.getH()};
+        return Math.sqrt(Arrays.stream(differences).map(difference -> difference * difference).sum());
+    }
+
+    private Point8d randomPoint(Random random) {
+        return Point8d.builder().a(random.nextDouble()).b(random.nextDouble()).c(random.nextDouble()).d(random.nextDouble())
+                .e(random.nextGaussian()).f(random.nextGaussian()).g(random.nextGaussian()).h(random.nextInt(3)).build();
+    }
+}
@@ -0,0 +1,88 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import com.alessandrosestito.kdtree.impl.KDTreeSortDirection;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class KDTreeOrderByTests {
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point3d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+        private final Double score;
+    }
+
+    @Test
+    public void topEntriesByFeature() {
+        checkTopEntries(KDTree.of(Point3d.class, Integer.class).build());
+        checkTopEntries(KDTree.of(Point3d.class, Integer.class).withLogarithmicMethod(512).build());
+    }
+
+    @Test
+    public void subtreesThatCannotBeatTheWorstAreSkipped() {
+        KDTree<Point3d, Integer> kdTree = KDTree.of(Point3d.class, Integer.class).build();
+        Random random = new Random(41);
+        List<Map.Entry<Point3d, Integer>> entries = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            entries.add(Map.entry(Point3d.builder().x(i).y(random.nextInt(1000)).score(random.nextDouble()).build(), i));
+        }
+        kdTree.insertAll(entries);
+
+        AtomicLong tested = new AtomicLong();
+        List<Map.Entry<Point3d, Integer>> top = kdTree.query()
+                .filter((key, value) -> tested.incrementAndGet() > 0)
+                .orderBy("score", KDTreeSortDirection.DESC)
+                .limit(10L)
+                .execute();
+        assertEquals(10, top.size());
+        assertTrue(tested.get() < entries.size() / 10);
+    }
+
+    private void checkTopEntries(KDTree<Point3d, Integer> kdTree) {
+        Random random = new Random(37);
+        List<Point3d> keys = new ArrayList<>();
+        for (int i = 0; i < 30_000; i++) {
+            Point3d key = Point3d.builder().x(i).y(random.nextInt(1000)).score((double) random.nextInt(5_000)).build();
+            keys.add(key);
+            kdTree.insert(key, i);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            int x = random.nextInt(30_000);
+            int y = random.nextInt(1000);
+            int width = random.nextInt(10_000);
+            KDTreeSortDirection direction = i % 2 == 0 ? KDTreeSortDirection.DESC : KDTreeSortDirection.ASC;
+            Long limit = i % 5 == 0 ? null : (long) random.nextInt(100);
+
+            Comparator<Double> order = direction == KDTreeSortDirection.DESC ? Comparator.reverseOrder() : Comparator.naturalOrder();
+            List<Double> expected = keys.stream()
+                    .filter(key -> key.getX() >= x && key.getX() <= x + width && key.getY() >= y)
+                    .map(Point3d::getScore)
+                    .sorted(order)
+                    .limit(limit == null ? Long.MAX_VALUE : limit)
+                    .collect(Collectors.toList());
+            List<Double> found = kdTree.query()
+                    .featureBounds("x", x, x + width)
+                    .featureBounds("y", y, null)
+                    .orderBy("score", direction)
+                    .limit(limit)
+                    .execute().stream()
+                    .map(entry -> entry.getKey().getScore())
+                    .collect(Collectors.toList());
+            assertEquals(expected, found);
+        }
+    }
+}
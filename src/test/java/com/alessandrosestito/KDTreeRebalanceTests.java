@@ -0,0 +1,80 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class KDTreeRebalanceTests {
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point2d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+    }
+
+    @Test
+    public void writesDuringRebalanceAreKept() throws InterruptedException {
+        KDTree<Point2d, Integer> kdTree = KDTree.of(Point2d.class, Integer.class).build();
+        Random random = new Random(7);
+        Map<Point2d, Integer> oracle = new HashMap<>();
+        while (oracle.size() < 200_000) {
+            Point2d key = Point2d.builder().x(random.nextInt()).y(random.nextInt()).build();
+            if (oracle.putIfAbsent(key, oracle.size()) == null) {
+                kdTree.insert(key, oracle.get(key));
+            }
+        }
+
+        List<Point2d> toDelete = oracle.keySet().stream().limit(5_000).collect(Collectors.toList());
+        List<Point2d> toInsert = IntStream.range(0, 5_000).mapToObj(i -> Point2d.builder().x(i).y(-i).build()).collect(Collectors.toList());
+
+        Thread balancer = new Thread(kdTree::balance);
+        balancer.start();
+        for (int i = 0; i < toInsert.size(); i++) {
+            kdTree.insert(toInsert.get(i), -i);
+            oracle.put(toInsert.get(i), -i);
+            assertTrue(kdTree.delete(toDelete.get(i)));
+            oracle.remove(toDelete.get(i));
+        }
+        balancer.join();
+
+        Map<Point2d, Integer> found = kdTree.query().execute().stream().collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        assertEquals(oracle.size(), kdTree.size());
+        assertEquals(oracle, found);
+    }
+
+    @Test
+    public void sharedSchedulerOutlivesTrees() throws InterruptedException {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            List<KDTree<Point2d, Integer>> trees = IntStream.range(0, 10)
+                    .mapToObj(i -> KDTree.of(Point2d.class, Integer.class)
+                            .withAutoBalance(Duration.ofMillis(100))
+                            .withScheduler(scheduler)
+                            .build())
+                    .collect(Collectors.toList());
+            trees.forEach(tree -> IntStream.range(0, 1_000).forEach(i -> tree.insert(Point2d.builder().x(i).y(i).build(), i)));
+
+            Thread.sleep(500);
+            trees.forEach(tree -> assertTrue(tree.score() > 0.5));
+
+            trees.forEach(KDTree::close);
+            assertFalse(scheduler.isShutdown());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
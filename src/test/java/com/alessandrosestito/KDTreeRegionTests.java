@@ -0,0 +1,147 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.impl.KDTreeCursor;
+import com.alessandrosestito.kdtree.impl.KDTreeEvent;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import com.alessandrosestito.kdtree.impl.KDTreePage;
+import com.alessandrosestito.kdtree.impl.KDTreeRegion;
+import com.alessandrosestito.kdtree.impl.KDTreeSortDirection;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static com.alessandrosestito.KDTreeTestSupport.*;
+import static org.junit.Assert.*;
+
+public class KDTreeRegionTests {
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point3d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+        private final Double z;
+    }
+
+    // a concave arrow whose edges run along and across the grid of the keys
+    private static final double[][] ARROW = {{50, 50}, {450, 50}, {450, 300}, {250, 150}, {250, 450}, {50, 450}, {150, 250}};
+
+    @Test
+    public void regionQueriesMatchBruteForce() {
+        backends(() -> KDTree.of(Point3d.class, Integer.class), 32_768).forEach(backend -> checkRegions(backend.get().build()));
+    }
+
+    @Test
+    public void deleteRangeAndSubscriptionsFollowTheRegion() {
+        checkDeleteRange(KDTree.of(Point3d.class, Integer.class).withSubscriptionExecutor(Runnable::run, 1 << 16).build());
+        checkDeleteRange(KDTree.of(Point3d.class, Integer.class).withSubscriptionExecutor(Runnable::run, 1 << 16).withLogarithmicMethod(256).build());
+        checkDeleteRange(KDTree.of(Point3d.class, Integer.class).withSubscriptionExecutor(Runnable::run, 1 << 16).withZOrderIndex().build());
+    }
+
+    @Test
+    public void invalidRegionsAreRejected() {
+        checkRejected(() -> KDTreeRegion.polygon("x", "y", new double[][]{{0, 0}, {1, 1}}), KDTreeExceptionType.REGION_INVALID);
+        checkRejected(() -> KDTreeRegion.polygon("x", "x", ARROW), KDTreeExceptionType.REGION_INVALID);
+        checkRejected(() -> KDTreeRegion.polygon("x", "y", new double[][]{{0, 0}, {1, 1}, {2}}), KDTreeExceptionType.REGION_INVALID);
+        checkRejected(() -> KDTreeRegion.halfSpace(Map.of(), 1), KDTreeExceptionType.REGION_INVALID);
+        checkRejected(() -> KDTreeRegion.ball(Map.of("x", 0.0), -1), KDTreeExceptionType.REGION_INVALID);
+
+        KDTree<Point3d, Integer> kdTree = KDTree.of(Point3d.class, Integer.class).build();
+        kdTree.insert(Point3d.builder().x(1).y(1).z(1.0).build(), 1);
+        checkRejected(() -> kdTree.query().region(KDTreeRegion.ball(Map.of("w", 0.0), 1)).execute(), KDTreeExceptionType.FEATURE_NOT_EXISTS);
+        kdTree.close();
+    }
+
+    private void checkRegions(KDTree<Point3d, Integer> kdTree) {
+        Random random = new Random(29);
+        Map<Point3d, Integer> oracle = fill(kdTree, randomPoints(random), 20_000);
+        oracle.keySet().stream().limit(2_000).collect(Collectors.toList()).forEach(key -> {
+            kdTree.delete(key);
+            oracle.remove(key);
+        });
+        // the logarithmic tree is left with a static level and a buffer, no merge runs while paging
+        kdTree.balance();
+        fill(kdTree, randomPoints(random), 1_000).forEach(oracle::putIfAbsent);
+
+        List<KDTreeRegion<Point3d>> regions = new ArrayList<>();
+        regions.add(KDTreeRegion.polygon("x", "y", ARROW));
+        regions.add(KDTreeRegion.polygon("y", "z", new double[][]{{100, -1.5}, {400, -0.5}, {300, 2}}));
+        regions.add(KDTreeRegion.halfSpace(Map.of("x", 1.0, "y", -2.0), -150));
+        regions.add(KDTreeRegion.halfSpace(Map.of("z", 100.0, "y", 1.0), 420));
+        regions.add(KDTreeRegion.ball(Map.of("x", 200.0, "y", 300.0), 120));
+        regions.add(KDTreeRegion.ball(Map.of("x", 400.0, "y", 100.0, "z", 0.0), 80));
+
+        for (KDTreeRegion<Point3d> region : regions) {
+            Set<Point3d> expected = oracle.keySet().stream().filter(region::contains).collect(Collectors.toSet());
+            assertFalse(expected.isEmpty());
+            assertEquals(expected, keys(kdTree.query().region(region).execute()));
+
+            Set<Point3d> bounded = oracle.entrySet().stream()
+                    .filter(entry -> region.contains(entry.getKey()) && entry.getKey().getX() >= 100 && entry.getValue() % 2 == 0)
+                    .map(Map.Entry::getKey).collect(Collectors.toSet());
+            assertEquals(bounded, keys(kdTree.query().region(region).featureBounds("x", 100, null).filter((key, value) -> value % 2 == 0).execute()));
+
+            List<Map.Entry<Point3d, Integer>> limited = kdTree.query().region(region).limit(25L).execute();
+            assertEquals(Math.min(25, expected.size()), limited.size());
+            assertTrue(expected.containsAll(keys(limited)));
+
+            List<Integer> ordered = expected.stream().map(Point3d::getY).sorted(Comparator.reverseOrder()).limit(10).collect(Collectors.toList());
+            assertEquals(ordered, kdTree.query().region(region).orderBy("y", KDTreeSortDirection.DESC).limit(10L).execute().stream()
+                    .map(entry -> entry.getKey().getY()).collect(Collectors.toList()));
+
+            List<Point3d> paged = new ArrayList<>();
+            KDTreeCursor<Point3d, Integer> cursor = null;
+            do {
+                KDTreePage<Point3d, Integer> page = kdTree.query().region(region).limit(300L).after(cursor).executePage();
+                page.getEntries().forEach(entry -> paged.add(entry.getKey()));
+                cursor = page.getCursor();
+            } while (cursor != null);
+            assertEquals(expected.size(), paged.size());
+            assertEquals(expected, new HashSet<>(paged));
+        }
+        kdTree.close();
+    }
+
+    private void checkDeleteRange(KDTree<Point3d, Integer> kdTree) {
+        Random random = new Random(31);
+        KDTreeRegion<Point3d> arrow = KDTreeRegion.polygon("x", "y", ARROW);
+        List<KDTreeEvent<Point3d, Integer>> events = new ArrayList<>();
+        kdTree.subscribe(kdTree.query().region(arrow).build(), events::add);
+        Map<Point3d, Integer> oracle = fill(kdTree, randomPoints(random), 20_000);
+        long inserted = oracle.keySet().stream().filter(arrow::contains).count();
+        assertEquals(inserted, events.size());
+
+        KDTreeRegion<Point3d> ball = KDTreeRegion.ball(Map.of("x", 250.0, "y", 250.0), 150);
+        Set<Point3d> expected = oracle.keySet().stream().filter(ball::contains).collect(Collectors.toSet());
+        assertEquals(expected.size(), kdTree.deleteRange(kdTree.query().region(ball).build()));
+        expected.forEach(oracle::remove);
+
+        KDTreeRegion<Point3d> halfSpace = KDTreeRegion.halfSpace(Map.of("x", -1.0, "y", -1.0), -200);
+        Set<Point3d> filtered = oracle.entrySet().stream().filter(entry -> halfSpace.contains(entry.getKey()) && entry.getValue() % 3 == 0)
+                .map(Map.Entry::getKey).collect(Collectors.toSet());
+        assertEquals(filtered.size(), kdTree.deleteRange(kdTree.query().region(halfSpace).filter((key, value) -> value % 3 == 0).build()));
+        filtered.forEach(oracle::remove);
+
+        assertEquals(oracle.size(), kdTree.size());
+        assertEquals(oracle.keySet(), keys(kdTree.query().execute()));
+        long deleted = expected.stream().filter(arrow::contains).count() + filtered.stream().filter(arrow::contains).count();
+        assertEquals(inserted + deleted, events.size());
+        kdTree.close();
+    }
+
+    private Supplier<Point3d> randomPoints(Random random) {
+        return () -> Point3d.builder().x(random.nextInt(500)).y(random.nextInt(500)).z(random.nextGaussian()).build();
+    }
+
+    private Set<Point3d> keys(List<Map.Entry<Point3d, Integer>> entries) {
+        return entries.stream().map(Map.Entry::getKey).collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,127 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import com.alessandrosestito.kdtree.impl.KDTreeRegion;
+import com.alessandrosestito.kdtree.impl.KDTreeSortDirection;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static com.alessandrosestito.KDTreeTestSupport.*;
+import static org.junit.Assert.*;
+
+public class KDTreeSecondaryIndexTests {
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point3d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+        private final Integer z;
+    }
+
+    @Test
+    public void indexedQueriesMatchTheOracle() {
+        checkQueries(KDTree.of(Point3d.class, Integer.class).withSecondaryIndex("x").build());
+        checkQueries(KDTree.of(Point3d.class, Integer.class).withSecondaryIndex("x").withSecondaryIndex("z").withTombstoneDeletes(0.3).withHashIndex().build());
+        checkQueries(KDTree.of(Point3d.class, Integer.class).withSecondaryIndex("x").withConcurrentWriters().build());
+        checkQueries(KDTree.of(Point3d.class, Integer.class).withSecondaryIndex("z").withLogarithmicMethod(512).build());
+    }
+
+    @Test
+    public void expiredEntriesAreNotReturned() {
+        KDTree<Point3d, Integer> kdTree = KDTree.of(Point3d.class, Integer.class).withSecondaryIndex("x").build();
+        Point3d expiring = Point3d.builder().x(5).y(1).z(1).build();
+        kdTree.insert(expiring, 1, Duration.ofMillis(1));
+        kdTree.insert(Point3d.builder().x(5).y(2).z(2).build(), 2);
+        long deadline = System.currentTimeMillis() + 50;
+        while (System.currentTimeMillis() < deadline) {
+            Thread.onSpinWait();
+        }
+        assertEquals(List.of(2), kdTree.query().featureBounds("x", 0, 10).execute().stream().map(Map.Entry::getValue).collect(Collectors.toList()));
+        kdTree.close();
+    }
+
+    @Test
+    public void unknownFeaturesAreRejected() {
+        checkRejected(() -> KDTree.of(Point3d.class, Integer.class).withSecondaryIndex("w").build(), KDTreeExceptionType.FEATURE_NOT_EXISTS);
+        checkRejected(() -> KDTree.of(Point3d.class, Integer.class).withSecondaryIndex("w").withLogarithmicMethod(16).build(), KDTreeExceptionType.FEATURE_NOT_EXISTS);
+    }
+
+    private void checkQueries(KDTree<Point3d, Integer> kdTree) {
+        Random random = new Random(47);
+        Map<Point3d, Integer> oracle = new HashMap<>();
+        for (int i = 0; i < 20_000; i++) {
+            Point3d key = Point3d.builder().x(random.nextInt(1_000)).y(random.nextInt(1_000)).z(random.nextInt(50)).build();
+            if (oracle.putIfAbsent(key, i) == null) {
+                kdTree.insert(key, i);
+            }
+        }
+        List<Point3d> keys = new ArrayList<>(oracle.keySet());
+        for (int i = 0; i < 2_000; i++) {
+            assertTrue(kdTree.delete(keys.get(i)));
+            oracle.remove(keys.get(i));
+        }
+        for (int i = 2_000; i < 3_000; i++) {
+            Point3d moved = Point3d.builder().x(keys.get(i).getX()).y(keys.get(i).getY() + 1_000).z(keys.get(i).getZ()).build();
+            assertTrue(kdTree.move(keys.get(i), moved));
+            oracle.put(moved, oracle.remove(keys.get(i)));
+        }
+        checkRanges(kdTree, oracle, random);
+        kdTree.balance();
+        for (int i = 3_000; i < 4_000; i++) {
+            assertTrue(kdTree.update(keys.get(i), -i));
+            oracle.put(keys.get(i), -i);
+        }
+        checkRanges(kdTree, oracle, random);
+        kdTree.close();
+    }
+
+    private void checkRanges(KDTree<Point3d, Integer> kdTree, Map<Point3d, Integer> oracle, Random random) {
+        assertEquals(oracle.size(), kdTree.size());
+        for (int i = 0; i < 30; i++) {
+            int x = random.nextInt(1_000);
+            int z = random.nextInt(50);
+            checkRange(kdTree.query().featureBounds("x", x, x + 20).execute(), oracle, key -> key.getX() >= x && key.getX() <= x + 20);
+            checkRange(kdTree.query().featureBounds("z", z, z).execute(), oracle, key -> key.getZ() == z);
+            checkRange(kdTree.query().featureBounds("x", x, null).execute(), oracle, key -> key.getX() >= x);
+            checkRange(kdTree.query().featureBounds("x", x + 20, x).execute(), oracle, key -> false);
+            checkRange(kdTree.query().featureBounds("x", x, x + 5).featureBounds("y", 0, 500).execute(), oracle,
+                    key -> key.getX() >= x && key.getX() <= x + 5 && key.getY() <= 500);
+            checkRange(kdTree.query().featureBounds("z", z, z).featureBounds("x", 0, x).filter((key, value) -> value % 2 == 0).execute(), oracle,
+                    key -> key.getZ() == z && key.getX() <= x && oracle.get(key) % 2 == 0);
+            KDTreeRegion<Point3d> ball = KDTreeRegion.ball(Map.of("x", (double) x, "y", 500.0), 300);
+            checkRange(kdTree.query().featureBounds("z", z, z + 2).region(ball).execute(), oracle, key -> key.getZ() >= z && key.getZ() <= z + 2 && ball.contains(key));
+
+            List<Map.Entry<Point3d, Integer>> limited = kdTree.query().featureBounds("x", x, x + 100).limit(15L).execute();
+            assertEquals(Math.min(15, oracle.keySet().stream().filter(key -> key.getX() >= x && key.getX() <= x + 100).count()), limited.size());
+            limited.forEach(entry -> assertEquals(oracle.get(entry.getKey()), entry.getValue()));
+
+            for (KDTreeSortDirection direction : KDTreeSortDirection.values()) {
+                Comparator<Integer> order = direction == KDTreeSortDirection.DESC ? Comparator.reverseOrder() : Comparator.naturalOrder();
+                assertEquals(oracle.keySet().stream().map(Point3d::getX).filter(value -> value >= x && value <= x + 100).sorted(order).limit(10).collect(Collectors.toList()),
+                        kdTree.query().featureBounds("x", x, x + 100).orderBy("x", direction).limit(10L).execute().stream()
+                                .map(entry -> entry.getKey().getX()).collect(Collectors.toList()));
+                assertEquals(oracle.keySet().stream().filter(key -> key.getZ() == z).map(Point3d::getY).sorted(order).limit(10).collect(Collectors.toList()),
+                        kdTree.query().featureBounds("z", z, z).orderBy("y", direction).limit(10L).execute().stream()
+                                .map(entry -> entry.getKey().getY()).collect(Collectors.toList()));
+            }
+        }
+    }
+
+    private void checkRange(List<Map.Entry<Point3d, Integer>> found, Map<Point3d, Integer> oracle, Predicate<Point3d> expected) {
+        Map<Point3d, Integer> expectedEntries = oracle.entrySet().stream().filter(entry -> expected.test(entry.getKey()))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        assertEquals(expectedEntries.size(), found.size());
+        assertEquals(expectedEntries, found.stream().collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+    }
+}
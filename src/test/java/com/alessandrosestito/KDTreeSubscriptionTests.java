@@ -0,0 +1,143 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.impl.*;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+
+import static org.junit.Assert.*;
+
+public class KDTreeSubscriptionTests {
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point2d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+    }
+
+    @Test
+    public void onlyMatchingSubscribersAreNotified() {
+        checkNotifications(KDTree.of(Point2d.class, Integer.class).withSubscriptionExecutor(Runnable::run, 1 << 16).build());
+        checkNotifications(KDTree.of(Point2d.class, Integer.class).withSubscriptionExecutor(Runnable::run, 1 << 16).withLogarithmicMethod(64).build());
+    }
+
+    @Test
+    public void slowListenersDropEventsInsteadOfBlockingWriters() throws InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        KDTree<Point2d, Integer> kdTree = KDTree.of(Point2d.class, Integer.class).withSubscriptionExecutor(executor, 4).build();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicLong received = new AtomicLong();
+        KDTreeSubscription<Point2d, Integer> subscription = kdTree.subscribe(kdTree.query().build(), event -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            received.incrementAndGet();
+        });
+
+        for (int i = 0; i < 1_000; i++) {
+            kdTree.insert(Point2d.builder().x(i).y(i).build(), i);
+        }
+        release.countDown();
+        assertTrue(subscription.getDroppedEvents() > 0);
+        subscription.cancel();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1_000, received.get() + subscription.getDroppedEvents());
+        assertTrue(subscription.isCancelled());
+    }
+
+    @Test
+    public void throwingListenersKeepReceivingEvents() {
+        KDTree<Point2d, Integer> kdTree = KDTree.of(Point2d.class, Integer.class).withSubscriptionExecutor(Runnable::run, 1 << 16).build();
+        List<Integer> seen = new ArrayList<>();
+        KDTreeSubscription<Point2d, Integer> subscription = kdTree.subscribe(kdTree.query().featureBounds("x", 0, 100).build(), event -> {
+            seen.add(event.getValue());
+            if (event.getValue() % 3 == 0) {
+                throw new IllegalStateException("listener failed on " + event.getValue());
+            }
+        });
+
+        for (int i = 0; i < 10; i++) {
+            kdTree.insert(Point2d.builder().x(i).y(i).build(), i);
+        }
+        kdTree.insert(Point2d.builder().x(500).y(500).build(), 500);
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), seen);
+        assertEquals(4, subscription.getFailedEvents());
+        assertEquals(0, subscription.getDroppedEvents());
+        assertFalse(subscription.isCancelled());
+        subscription.cancel();
+        assertTrue(subscription.isCancelled());
+    }
+
+    private void checkNotifications(KDTree<Point2d, Integer> kdTree) {
+        Random random = new Random(43);
+        List<int[]> boxes = new ArrayList<>();
+        List<List<KDTreeEvent<Point2d, Integer>>> received = new ArrayList<>();
+        List<KDTreeSubscription<Point2d, Integer>> subscriptions = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            int x = random.nextInt(1000);
+            int y = random.nextInt(1000);
+            int[] box = {x, x + random.nextInt(200), y, y + random.nextInt(200)};
+            boxes.add(box);
+            List<KDTreeEvent<Point2d, Integer>> events = new ArrayList<>();
+            received.add(events);
+            KDTreeQueryBuilder<Point2d, Integer> query = kdTree.query();
+            if (i % 3 != 0) {
+                query.featureBounds("x", box[0], box[1]);
+            }
+            query.featureBounds("y", box[2], box[3]);
+            subscriptions.add(kdTree.subscribe(query.build(), events::add));
+        }
+        BiPredicate<Integer, Point2d> matches = (i, key) -> (i % 3 == 0 || (key.getX() >= boxes.get(i)[0] && key.getX() <= boxes.get(i)[1]))
+                && key.getY() >= boxes.get(i)[2] && key.getY() <= boxes.get(i)[3];
+        List<KDTreeEvent<Point2d, Integer>> all = new ArrayList<>();
+        kdTree.subscribe(kdTree.query().build(), all::add);
+
+        List<KDTreeEvent<Point2d, Integer>> expected = new ArrayList<>();
+        Map<Point2d, Integer> oracle = new HashMap<>();
+        for (int i = 0; i < 5_000; i++) {
+            Point2d key = Point2d.builder().x(random.nextInt(1200)).y(random.nextInt(1200)).build();
+            if (!oracle.containsKey(key)) {
+                kdTree.insert(key, i);
+                oracle.put(key, i);
+                expected.add(new KDTreeEvent<>(KDTreeEventType.INSERT, key, i));
+            } else if (i % 2 == 0) {
+                kdTree.update(key, -i);
+                oracle.put(key, -i);
+                expected.add(new KDTreeEvent<>(KDTreeEventType.UPDATE, key, -i));
+            } else {
+                kdTree.delete(key);
+                expected.add(new KDTreeEvent<>(KDTreeEventType.DELETE, key, oracle.remove(key)));
+            }
+        }
+
+        subscriptions.get(0).cancel();
+        kdTree.insert(Point2d.builder().x(-1).y(-1).build(), 0);
+        assertEquals(expected.size() + 1, all.size());
+
+        for (int i = 0; i < boxes.size(); i++) {
+            int subscription = i;
+            List<String> expectedEvents = new ArrayList<>();
+            expected.stream().filter(event -> matches.test(subscription, event.getKey())).forEach(event -> expectedEvents.add(event.toString()));
+            List<String> receivedEvents = new ArrayList<>();
+            received.get(i).forEach(event -> receivedEvents.add(event.toString()));
+            assertEquals(expectedEvents, receivedEvents);
+            assertEquals(0, subscriptions.get(i).getDroppedEvents());
+        }
+        kdTree.close();
+    }
+}
@@ -0,0 +1,170 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+import com.alessandrosestito.kdtree.impl.KDTreeBuilder;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Value;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+// the fixtures shared by the tests of the single features
+final class KDTreeTestSupport {
+
+    private static volatile boolean failing;
+
+    private KDTreeTestSupport() {
+    }
+
+    // a feature whose comparisons throw while a task runs through runFailing
+    @Value
+    static class Fragile implements Comparable<Fragile> {
+        int value;
+
+        @Override
+        public int compareTo(Fragile other) {
+            if (failing) {
+                throw new IllegalStateException("comparison failed");
+            }
+            return Integer.compare(value, other.value);
+        }
+    }
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class FragilePoint extends KDTreeKey {
+        private final Fragile x;
+        private final Integer y;
+    }
+
+    // queues the background jobs, which run only when asked, and runs the periodic job when the time of the scheduler
+    // passes its deadlines
+    static class ManualScheduler extends ScheduledThreadPoolExecutor {
+        private final Deque<Runnable> tasks = new ArrayDeque<>();
+        private Runnable scheduled;
+        private long period;
+        private long nextRun;
+        private long now;
+
+        ManualScheduler() {
+            super(1);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+            scheduled = command;
+            this.period = unit.toMillis(period);
+            nextRun = now + unit.toMillis(initialDelay);
+            return schedule(() -> {
+            }, 1, TimeUnit.DAYS);
+        }
+
+        long getPeriod() {
+            return period;
+        }
+
+        void runTasks() {
+            while (!tasks.isEmpty()) {
+                tasks.poll().run();
+            }
+        }
+
+        void advance(Duration elapsed) {
+            now += elapsed.toMillis();
+            while (scheduled != null && nextRun <= now) {
+                nextRun += period;
+                scheduled.run();
+            }
+        }
+    }
+
+    static class MutableClock extends Clock {
+        private Instant now = Instant.EPOCH;
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+
+    // the plain tree, tombstone deletes with the hash index, the logarithmic method and the z-order index, each built on
+    // top of the options of the given builder
+    static <K extends KDTreeKey, V> List<Supplier<KDTreeBuilder<K, V>>> backends(Supplier<KDTreeBuilder<K, V>> builder, int bufferCapacity) {
+        return Arrays.asList(
+                builder,
+                () -> builder.get().withTombstoneDeletes(0.5).withHashIndex(),
+                () -> builder.get().withLogarithmicMethod(bufferCapacity),
+                () -> builder.get().withZOrderIndex());
+    }
+
+    // inserts the keys not in the tree yet, the value of a key is the attempt that produced it
+    static <K extends KDTreeKey> Map<K, Integer> fill(KDTree<K, Integer> kdTree, Supplier<K> keys, int count) {
+        Map<K, Integer> oracle = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            K key = keys.get();
+            if (!kdTree.containsKey(key) && oracle.putIfAbsent(key, i) == null) {
+                kdTree.insert(key, i);
+            }
+        }
+        return oracle;
+    }
+
+    static void runFailing(Runnable task) {
+        failing = true;
+        try {
+            task.run();
+        } finally {
+            failing = false;
+        }
+    }
+
+    static void checkRejected(Runnable runnable, KDTreeExceptionType type) {
+        try {
+            runnable.run();
+            fail();
+        } catch (KDTreeRuntimeException e) {
+            assertEquals(type, e.getExceptionType());
+        }
+    }
+}
@@ -22,6 +22,7 @@ import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import static com.alessandrosestito.KDTreeTestSupport.*;
 import static org.junit.Assert.*;
 
 public class KDTreeTests {
@@ -264,28 +265,33 @@ public class KDTreeTests {
     }
 
     @Test
-    public void autoBalance() throws InterruptedException {
-        KDTree<Point3dIndex, Point3d> kd = KDTree.of(Point3dIndex.class, Point3d.class).withAutoBalance(Duration.of(3, ChronoUnit.SECONDS)).build();
-        IntStream.range(0, 10_000).boxed().forEach(i -> kd.insert(Point3dIndex.builder().x(i).y(i).z(i).t(i.toString()).build(), null));
-
-        Set<Point3dIndex> r1 = kd.query().featureBounds("x", 100, 200).execute().stream().map(Map.Entry::getKey).collect(Collectors.toSet());
-        System.out.println("tree ready - waiting auto-balance");
-        double lowScore1 = kd.score();
-
-        Thread.sleep(2_900);
-        double lowScore2 = kd.score();
-
-        assertEquals(lowScore1, lowScore2, 0.0);
-
-        Thread.sleep(3_200);
-        double highScore = kd.score();
-
-        System.out.println("auto balance check - low " + lowScore1 + "high " + highScore);
-        Set<Point3dIndex> r2 = kd.query().featureBounds("x", 100, 200).execute().stream().map(Map.Entry::getKey).collect(Collectors.toSet());
-
-        r2.forEach(p -> assertTrue(p.toString(), r1.contains(p)));
-        r1.forEach(p -> assertTrue(p.toString(), r2.contains(p)));
-        assertTrue(lowScore1 < highScore);
+    public void autoBalance() {
+        ManualScheduler scheduler = new ManualScheduler();
+        try (KDTree<Point3dIndex, Point3d> kd = KDTree.of(Point3dIndex.class, Point3d.class).withAutoBalance(Duration.of(3, ChronoUnit.SECONDS))
+                .withScheduler(scheduler).build()) {
+            IntStream.range(0, 10_000).boxed().forEach(i -> kd.insert(Point3dIndex.builder().x(i).y(i).z(i).t(i.toString()).build(), null));
+
+            Set<Point3dIndex> r1 = kd.query().featureBounds("x", 100, 200).execute().stream().map(Map.Entry::getKey).collect(Collectors.toSet());
+            System.out.println("tree ready - waiting auto-balance");
+            double lowScore1 = kd.score();
+            assertEquals(3_000, scheduler.getPeriod());
+
+            scheduler.advance(Duration.ofMillis(2_900));
+            double lowScore2 = kd.score();
+            assertEquals(lowScore1, lowScore2, 0.0);
+
+            scheduler.advance(Duration.ofMillis(200));
+            double highScore = kd.score();
+
+            System.out.println("auto balance check - low " + lowScore1 + "high " + highScore);
+            Set<Point3dIndex> r2 = kd.query().featureBounds("x", 100, 200).execute().stream().map(Map.Entry::getKey).collect(Collectors.toSet());
+
+            r2.forEach(p -> assertTrue(p.toString(), r1.contains(p)));
+            r1.forEach(p -> assertTrue(p.toString(), r2.contains(p)));
+            assertTrue(lowScore1 < highScore);
+        } finally {
+            scheduler.shutdownNow();
+        }
     }
 
     private <T> void checkFindResults(Set<T> kdRes, Set<T> fullScanRes) {
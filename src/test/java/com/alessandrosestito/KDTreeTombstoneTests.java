@@ -0,0 +1,126 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.IntStream;
+import java.util.stream.Collectors;
+
+import static com.alessandrosestito.KDTreeTestSupport.*;
+import static org.junit.Assert.*;
+
+public class KDTreeTombstoneTests {
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point2d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+    }
+
+    @Test
+    public void deletesAreTombstonedAndCompacted() throws InterruptedException {
+        KDTree<Point2d, Integer> kdTree = KDTree.of(Point2d.class, Integer.class).withTombstoneDeletes(0.25).build();
+        Random random = new Random(42);
+        Map<Point2d, Integer> oracle = new HashMap<>();
+        while (oracle.size() < 20_000) {
+            Point2d key = Point2d.builder().x(random.nextInt(10_000)).y(random.nextInt(10_000)).build();
+            if (oracle.putIfAbsent(key, oracle.size()) == null) {
+                kdTree.insert(key, oracle.get(key));
+            }
+        }
+        long nodeBytes = kdTree.memoryStats().getStructureBytes() / kdTree.size();
+
+        List<Point2d> toDelete = oracle.keySet().stream().filter(p -> p.getX() < 6_000).collect(Collectors.toList());
+        toDelete.forEach(p -> {
+            assertTrue(kdTree.delete(p));
+            oracle.remove(p);
+        });
+        assertFalse(kdTree.delete(toDelete.get(0)));
+        assertEquals(oracle.size(), kdTree.size());
+        assertNull(kdTree.get(toDelete.get(0)));
+
+        kdTree.insert(toDelete.get(0), -1);
+        oracle.put(toDelete.get(0), -1);
+        assertEquals(Integer.valueOf(-1), kdTree.get(toDelete.get(0)).getValue());
+        try {
+            kdTree.insert(toDelete.get(0), -2);
+            fail();
+        } catch (KDTreeRuntimeException e) {
+            assertEquals(KDTreeExceptionType.KEY_EXISTS, e.getExceptionType());
+        }
+
+        awaitCompaction(kdTree, nodeBytes, 0.25);
+        Map<Point2d, Integer> found = kdTree.query().featureBounds("x", 0, 10_000).execute().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        assertEquals(oracle, found);
+        assertEquals(oracle.size(), kdTree.size());
+    }
+
+    @Test
+    public void degeneratedTreeIsCompacted() throws InterruptedException {
+        // the compaction runs on a thread with a small stack
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(null, runnable, "small-stack", 64 * 1024));
+        KDTree<Point2d, Integer> kdTree = KDTree.of(Point2d.class, Integer.class).withTombstoneDeletes(0.25).withScheduler(scheduler).build();
+        IntStream.range(0, 5_000).forEach(i -> kdTree.insert(Point2d.builder().x(i).y(i).build(), i));
+        long nodeBytes = kdTree.memoryStats().getStructureBytes() / kdTree.size();
+        for (int i = 0; i < 5_000; i += 2) {
+            assertTrue(kdTree.delete(Point2d.builder().x(i).y(i).build()));
+        }
+
+        awaitCompaction(kdTree, nodeBytes, 0.25);
+        assertEquals(2_500, kdTree.size());
+        assertEquals(Set.of(4_001, 4_003), kdTree.query().featureBounds("x", 4_000, 4_003).execute().stream()
+                .map(Map.Entry::getValue).collect(Collectors.toSet()));
+        kdTree.close();
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void failedCompactionIsReportedByClose() {
+        ManualScheduler scheduler = new ManualScheduler();
+        KDTree<FragilePoint, Integer> kdTree = KDTree.of(FragilePoint.class, Integer.class).withTombstoneDeletes(0.25).withScheduler(scheduler).build();
+        List<FragilePoint> keys = IntStream.range(0, 20)
+                .mapToObj(i -> FragilePoint.builder().x(new Fragile(i * 7 % 20)).y(i).build())
+                .collect(Collectors.toList());
+        keys.forEach(key -> kdTree.insert(key, key.getY()));
+        keys.subList(0, 6).forEach(key -> assertTrue(kdTree.delete(key)));
+
+        runFailing(scheduler::runTasks);
+        // the deletes after the failure go on and schedule the compaction again
+        assertTrue(kdTree.delete(keys.get(6)));
+        scheduler.runTasks();
+        assertEquals(13, kdTree.size());
+        assertEquals(new HashSet<>(keys.subList(7, 20)), kdTree.query().execute().stream().map(Map.Entry::getKey).collect(Collectors.toSet()));
+
+        try {
+            kdTree.close();
+            fail();
+        } catch (KDTreeRuntimeException e) {
+            assertEquals(KDTreeExceptionType.COMPACTION_FAILED, e.getExceptionType());
+        }
+        kdTree.close();
+        scheduler.shutdown();
+    }
+
+    // the tree holds the live nodes and the tombstones, a compacted tree keeps the tombstones within the threshold
+    private void awaitCompaction(KDTree<Point2d, Integer> kdTree, long nodeBytes, double threshold) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        long nodes = kdTree.memoryStats().getStructureBytes() / nodeBytes;
+        while (nodes - kdTree.size() > threshold * nodes + 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            nodes = kdTree.memoryStats().getStructureBytes() / nodeBytes;
+        }
+        assertTrue("tombstones left " + (nodes - kdTree.size()), nodes - kdTree.size() <= threshold * nodes + 1);
+    }
+}
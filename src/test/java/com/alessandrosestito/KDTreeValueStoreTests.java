@@ -0,0 +1,246 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.impl.KDTreeBuilder;
+import com.alessandrosestito.kdtree.impl.KDTreeCursor;
+import com.alessandrosestito.kdtree.impl.KDTreeEvent;
+import com.alessandrosestito.kdtree.impl.KDTreeEventType;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import com.alessandrosestito.kdtree.impl.KDTreeNearestQuery;
+import com.alessandrosestito.kdtree.impl.KDTreePage;
+import com.alessandrosestito.kdtree.impl.KDTreeValueCodec;
+import com.alessandrosestito.kdtree.impl.KDTreeValueStore;
+import com.alessandrosestito.kdtree.impl.KDTreeVisitor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static com.alessandrosestito.KDTreeTestSupport.*;
+import static org.junit.Assert.*;
+
+public class KDTreeValueStoreTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point3d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+        private final Integer z;
+    }
+
+    // counts the values read back from the file
+    static class CountingCodec implements KDTreeValueCodec<String> {
+        private final AtomicInteger decoded = new AtomicInteger();
+
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] bytes) {
+            decoded.incrementAndGet();
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void storedValuesMatchTheOracle() throws Exception {
+        for (Supplier<KDTreeBuilder<Point3d, String>> backend : backends(() -> KDTree.of(Point3d.class, String.class), 512)) {
+            checkStoredValues(backend.get());
+        }
+    }
+
+    @Test
+    public void onlyTheHotValuesStayInMemory() throws Exception {
+        CountingCodec codec = new CountingCodec();
+        KDTreeValueStore<String> store = KDTreeValueStore.tiered(folder.newFile().toPath(), 1_000, codec);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ids.add(store.put(profile(i)));
+        }
+        // the last ten values fit the budget
+        for (int i = 99; i >= 91; i--) {
+            assertEquals(profile(i), store.get(ids.get(i)));
+        }
+        assertEquals(0, codec.decoded.get());
+        assertEquals(profile(0), store.get(ids.get(0)));
+        assertEquals(1, codec.decoded.get());
+        assertEquals(profile(0), store.get(ids.get(0)));
+        assertEquals(1, codec.decoded.get());
+
+        store.remove(ids.get(0));
+        assertEquals(profile(0), store.get(ids.get(0)));
+        assertEquals(2, codec.decoded.get());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(profile(i), store.get(ids.get(i)));
+        }
+        store.close();
+    }
+
+    @Test
+    public void resultsLoadTheirValuesWhenRead() throws Exception {
+        CountingCodec codec = new CountingCodec();
+        KDTree<Point3d, String> kdTree = KDTree.of(Point3d.class, String.class)
+                .withValueStore(KDTreeValueStore.tiered(folder.newFile().toPath(), 0, codec)).build();
+        for (int i = 0; i < 1_000; i++) {
+            kdTree.insert(Point3d.builder().x(i).y(i % 10).z(i % 100).build(), profile(i));
+        }
+        List<Map.Entry<Point3d, String>> entries = kdTree.query().featureBounds("x", 100, 199).execute();
+        assertEquals(100, entries.size());
+        assertEquals(0, codec.decoded.get());
+        entries.forEach(entry -> assertEquals(profile(entry.getKey().getX()), entry.getValue()));
+        entries.forEach(Map.Entry::getValue);
+        assertEquals(100, codec.decoded.get());
+
+        // a filter on the values has to read them
+        assertEquals(1, kdTree.query().featureBounds("x", 0, 99).filter((key, value) -> value.equals(profile(42))).execute().size());
+        assertEquals(200, codec.decoded.get());
+        kdTree.close();
+    }
+
+    @Test
+    public void closingTheStoreDeletesTheFile() throws Exception {
+        Path file = folder.newFile().toPath();
+        KDTree<Point3d, String> kdTree = KDTree.of(Point3d.class, String.class)
+                .withValueStore(KDTreeValueStore.tiered(file, 1_000, KDTreeValueCodec.serialization())).build();
+        kdTree.insert(Point3d.builder().x(1).y(2).z(3).build(), profile(1));
+        assertTrue(Files.size(file) > 0);
+        kdTree.close();
+        assertFalse(Files.exists(file));
+
+        checkRejected(() -> KDTreeValueStore.tiered(file, -1, KDTreeValueCodec.<String>serialization()), KDTreeExceptionType.VALUE_STORE_BUDGET_NEGATIVE);
+        KDTreeValueStore<String> store = KDTreeValueStore.tiered(file, 0, KDTreeValueCodec.serialization());
+        long id = store.put(profile(2));
+        store.close();
+        checkRejected(() -> store.get(id), KDTreeExceptionType.VALUE_STORE_FAILED);
+    }
+
+    @Test
+    public void removedValuesAreReclaimed() throws Exception {
+        Path file = folder.newFile().toPath();
+        MutableClock clock = new MutableClock();
+        KDTree<Point3d, String> kdTree = KDTree.of(Point3d.class, String.class).withClock(clock)
+                .withValueStore(KDTreeValueStore.tiered(file, 0, new CountingCodec())).build();
+        for (int i = 0; i < 4_000; i++) {
+            kdTree.insert(Point3d.builder().x(i).y(i % 10).z(i % 100).build(), profile(i));
+        }
+        for (int i = 4_000; i < 5_000; i++) {
+            kdTree.insert(Point3d.builder().x(i).y(i % 10).z(i % 100).build(), profile(i), Duration.ofMillis(1));
+        }
+        long written = Files.size(file);
+        clock.advance(Duration.ofMillis(1));
+
+        assertEquals(1_000, kdTree.evictExpired());
+        assertEquals(3_000, kdTree.deleteRange(kdTree.query().featureBounds("x", 0, 2_999).build()));
+        assertTrue(kdTree.delete(Point3d.builder().x(3_000).y(0).z(0).build()));
+        assertTrue("file of " + Files.size(file) + " bytes", Files.size(file) < written / 3);
+        assertEquals(999, kdTree.size());
+        kdTree.query().execute().forEach(entry -> assertEquals(profile(entry.getKey().getX()), entry.getValue()));
+        kdTree.close();
+    }
+
+    @Test
+    public void splitTreesKeepTheirSharedValues() throws Exception {
+        KDTree<Point3d, String> kdTree = KDTree.of(Point3d.class, String.class)
+                .withValueStore(KDTreeValueStore.tiered(folder.newFile().toPath(), 0, new CountingCodec())).build();
+        for (int i = 0; i < 3_000; i++) {
+            kdTree.insert(Point3d.builder().x(i).y(i % 10).z(i % 100).build(), profile(i));
+        }
+        List<KDTree<Point3d, String>> parts = kdTree.split(key -> key.getX() < 1_500);
+
+        // the values deleted from the split tree are still referenced by its parts
+        assertEquals(3_000, kdTree.deleteRange(kdTree.query().build()));
+        kdTree.close();
+        assertEquals(1_500, parts.get(0).deleteRange(parts.get(0).query().build()));
+        parts.get(0).close();
+        assertEquals(1_500, parts.get(1).size());
+        parts.get(1).query().execute().forEach(entry -> assertEquals(profile(entry.getKey().getX()), entry.getValue()));
+        parts.get(1).close();
+    }
+
+    private void checkStoredValues(KDTreeBuilder<Point3d, String> builder) throws Exception {
+        KDTree<Point3d, String> kdTree = builder.withSubscriptionExecutor(Runnable::run, 1 << 16)
+                .withValueStore(KDTreeValueStore.tiered(folder.newFile().toPath(), 4_096, KDTreeValueCodec.serialization())).build();
+        List<KDTreeEvent<Point3d, String>> events = new ArrayList<>();
+        kdTree.subscribe(kdTree.query().featureBounds("x", 0, 99).build(), events::add);
+
+        Random random = new Random(43);
+        Map<Point3d, String> oracle = new HashMap<>();
+        for (int i = 0; i < 5_000; i++) {
+            Point3d key = Point3d.builder().x(random.nextInt(500)).y(random.nextInt(500)).z(random.nextInt(500)).build();
+            if (oracle.putIfAbsent(key, profile(i)) == null) {
+                kdTree.insert(key, profile(i));
+            }
+        }
+        List<Point3d> keys = new ArrayList<>(oracle.keySet());
+        for (int i = 0; i < 500; i++) {
+            assertTrue(kdTree.delete(keys.get(i)));
+            oracle.remove(keys.get(i));
+        }
+        for (int i = 500; i < 1_000; i++) {
+            assertTrue(kdTree.update(keys.get(i), profile(-i)));
+            oracle.put(keys.get(i), profile(-i));
+        }
+        assertEquals(oracle.get(keys.get(1_000)), kdTree.upsert(keys.get(1_000), profile(-1_000)));
+        oracle.put(keys.get(1_000), profile(-1_000));
+        assertNull(kdTree.upsert(keys.get(0), profile(0)));
+        oracle.put(keys.get(0), profile(0));
+        checkRejected(() -> kdTree.insert(keys.get(0), profile(1)), KDTreeExceptionType.KEY_EXISTS);
+
+        assertEquals(oracle.size(), kdTree.size());
+        assertEquals(oracle, toMap(kdTree.query().execute()));
+        oracle.forEach((key, value) -> assertEquals(value, kdTree.get(key).getValue()));
+
+        Map<Point3d, String> filtered = oracle.entrySet().stream().filter(entry -> entry.getKey().getY() < 250 && entry.getValue().startsWith("profile--"))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        assertEquals(filtered, toMap(kdTree.query().featureBounds("y", 0, 249).filter((key, value) -> value.startsWith("profile--")).execute()));
+
+        Map<Point3d, String> visited = new HashMap<>();
+        kdTree.visit(kdTree.query().featureBounds("z", 100, 199).build(), KDTreeVisitor.of(visited::put));
+        assertEquals(oracle.entrySet().stream().filter(entry -> entry.getKey().getZ() >= 100 && entry.getKey().getZ() <= 199)
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)), visited);
+
+        Map<Point3d, String> paged = new HashMap<>();
+        KDTreeCursor<Point3d, String> cursor = null;
+        do {
+            KDTreePage<Point3d, String> page = kdTree.query().limit(700L).after(cursor).executePage();
+            paged.putAll(toMap(page.getEntries()));
+            cursor = page.getCursor();
+        } while (cursor != null);
+        assertEquals(oracle, paged);
+
+        Point3d target = Point3d.builder().x(250).y(250).z(250).build();
+        kdTree.nearest(KDTreeNearestQuery.create(target, 10)).getEntries().forEach(entry -> assertEquals(oracle.get(entry.getKey()), entry.getValue()));
+
+        Set<String> inserted = events.stream().filter(event -> event.getType() == KDTreeEventType.INSERT).map(KDTreeEvent::getValue).collect(Collectors.toSet());
+        assertTrue(inserted.containsAll(oracle.entrySet().stream().filter(entry -> entry.getKey().getX() <= 99 && !entry.getValue().startsWith("profile--"))
+                .map(Map.Entry::getValue).collect(Collectors.toSet())));
+        kdTree.close();
+    }
+
+    private static String profile(int i) {
+        return String.format("profile-%d-%0100d", i, 0).substring(0, 100);
+    }
+
+    private Map<Point3d, String> toMap(List<Map.Entry<Point3d, String>> entries) {
+        return entries.stream().collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    }
+}
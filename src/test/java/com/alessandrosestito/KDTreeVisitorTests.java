@@ -0,0 +1,73 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import com.alessandrosestito.kdtree.impl.KDTreeVisitor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class KDTreeVisitorTests {
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point2d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+    }
+
+    @Test
+    public void forEachVisitsTheSameEntriesOfExecute() {
+        KDTree<Point2d, Integer> kdTree = KDTree.of(Point2d.class, Integer.class).build();
+        IntStream.range(0, 10_000).forEach(i -> kdTree.insert(Point2d.builder().x((i * 7919) % 10_000).y(i).build(), i));
+
+        long expected = kdTree.query().featureBounds("x", 1_000, 2_000).execute().stream().mapToLong(Map.Entry::getValue).sum();
+        AtomicLong sum = new AtomicLong();
+        kdTree.query().featureBounds("x", 1_000, 2_000).forEach((key, value) -> sum.addAndGet(value));
+        assertEquals(expected, sum.get());
+
+        AtomicLong visited = new AtomicLong();
+        kdTree.query().featureBounds("y", 0, 5_000).forEach(new KDTreeVisitor<>() {
+            @Override
+            public void visit(Point2d key, Integer value) {
+                visited.incrementAndGet();
+            }
+
+            @Override
+            public boolean shouldContinue() {
+                return visited.get() < 100;
+            }
+        });
+        assertEquals(100, visited.get());
+    }
+
+    @Test
+    public void degeneratedTreeDoesNotOverflowTheStack() throws InterruptedException {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicLong found = new AtomicLong();
+        Thread smallStack = new Thread(null, () -> {
+            try {
+                KDTree<Point2d, Integer> kdTree = KDTree.of(Point2d.class, Integer.class).build();
+                IntStream.range(0, 5_000).forEach(i -> kdTree.insert(Point2d.builder().x(i).y(i).build(), i));
+                kdTree.query().featureBounds("x", 4_000, 5_000).forEach((key, value) -> found.incrementAndGet());
+                kdTree.balance();
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        }, "small-stack", 64 * 1024);
+        smallStack.start();
+        smallStack.join();
+
+        assertNull(failure.get());
+        assertEquals(1_000, found.get());
+    }
+}
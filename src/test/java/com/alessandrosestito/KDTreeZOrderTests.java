@@ -0,0 +1,255 @@
+package com.alessandrosestito;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.exception.KDTreeExceptionType;
+import com.alessandrosestito.kdtree.exception.KDTreeRuntimeException;
+import com.alessandrosestito.kdtree.impl.KDTreeBuilder;
+import com.alessandrosestito.kdtree.impl.KDTreeJoinCondition;
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import com.alessandrosestito.kdtree.impl.KDTreeQueryBuilder;
+import com.alessandrosestito.kdtree.impl.KDTreeSortDirection;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static com.alessandrosestito.KDTreeTestSupport.*;
+import static org.junit.Assert.*;
+
+public class KDTreeZOrderTests {
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point3d extends KDTreeKey {
+        private final Integer x;
+        private final Long y;
+        private final Double z;
+    }
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Point2d extends KDTreeKey {
+        private final Integer x;
+        private final Integer y;
+    }
+
+    @Data
+    @Builder
+    @EqualsAndHashCode(callSuper = false)
+    static class Named extends KDTreeKey {
+        private final Integer x;
+        private final String name;
+    }
+
+    @Test
+    public void rangeQueriesMatchBruteForce() {
+        Random random = new Random(11);
+        KDTree<Point3d, Integer> kdTree = KDTree.of(Point3d.class, Integer.class).withZOrderIndex().build();
+        Map<Point3d, Integer> oracle = new HashMap<>();
+        List<Map.Entry<Point3d, Integer>> batch = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            Point3d key = Point3d.builder()
+                    .x(random.nextInt(2000) - 1000)
+                    .y(random.nextInt(2000) - 1000L)
+                    .z(random.nextGaussian() * 100)
+                    .build();
+            if (oracle.putIfAbsent(key, i) != null) {
+                continue;
+            }
+            if (i < 5_000) {
+                batch.add(new AbstractMap.SimpleImmutableEntry<>(key, i));
+            } else {
+                kdTree.insert(key, i);
+            }
+            if (i == 4_999) {
+                kdTree.insertAll(batch);
+            }
+        }
+        assertEquals(oracle.size(), kdTree.size());
+
+        for (int i = 0; i < 500; i++) {
+            int x = random.nextInt(2400) - 1200;
+            long y = random.nextInt(2400) - 1200L;
+            double z = random.nextGaussian() * 150;
+            int width = random.nextInt(400);
+            KDTreeQueryBuilder<Point3d, Integer> query = kdTree.query();
+            List<Predicate<Point3d>> filters = new ArrayList<>();
+            if (i % 4 != 0) {
+                query.featureBounds("x", x, x + width);
+                filters.add(key -> key.getX() >= x && key.getX() <= x + width);
+            }
+            if (i % 4 != 1) {
+                query.featureBounds("y", y, y + width);
+                filters.add(key -> key.getY() >= y && key.getY() <= y + width);
+            }
+            if (i % 4 != 2) {
+                query.featureBounds("z", z, z + width / 2.0);
+                filters.add(key -> key.getZ() >= z && key.getZ() <= z + width / 2.0);
+            }
+            Set<Point3d> expected = oracle.keySet().stream().filter(key -> filters.stream().allMatch(filter -> filter.test(key))).collect(Collectors.toSet());
+            List<Map.Entry<Point3d, Integer>> found = query.execute();
+            assertEquals(expected.size(), found.size());
+            assertEquals(expected, found.stream().map(Map.Entry::getKey).collect(Collectors.toSet()));
+            found.forEach(entry -> assertEquals(oracle.get(entry.getKey()), entry.getValue()));
+
+            List<Map.Entry<Point3d, Integer>> limited = query.limit(5L).execute();
+            assertEquals(Math.min(5, expected.size()), limited.size());
+            assertTrue(limited.stream().allMatch(entry -> expected.contains(entry.getKey())));
+
+            List<Double> best = expected.stream().map(Point3d::getZ).sorted(Comparator.reverseOrder()).limit(5).collect(Collectors.toList());
+            List<Double> ordered = query.orderBy("z", KDTreeSortDirection.DESC).execute().stream().map(entry -> entry.getKey().getZ()).collect(Collectors.toList());
+            assertEquals(best, ordered);
+        }
+
+        assertTrue(kdTree.query().featureBounds("x", 10, 0).execute().isEmpty());
+    }
+
+    @Test
+    public void denseRangeQueriesMatchBruteForce() {
+        KDTree<Point3d, Integer> kdTree = KDTree.of(Point3d.class, Integer.class).withZOrderIndex().build();
+        Map<Point3d, Integer> oracle = new HashMap<>();
+        int value = 0;
+        for (int x = -40; x < 40; x++) {
+            for (long y = -40; y < 40; y++) {
+                for (double z = -5; z < 5; z += 0.5) {
+                    Point3d key = Point3d.builder().x(x).y(y).z(z).build();
+                    oracle.put(key, value);
+                    kdTree.insert(key, value++);
+                }
+            }
+        }
+
+        // wide boxes hold whole blocks, so the blocks inside them and the blocks crossing their faces are both scanned
+        Random random = new Random(29);
+        for (int i = 0; i < 200; i++) {
+            int x = random.nextInt(80) - 60;
+            long y = random.nextInt(80) - 60L;
+            double z = random.nextDouble() * 8 - 6;
+            int width = 10 + random.nextInt(60);
+            Set<Point3d> expected = oracle.keySet().stream()
+                    .filter(key -> key.getX() >= x && key.getX() <= x + width && key.getY() >= y && key.getY() <= y + width
+                            && key.getZ() >= z && key.getZ() <= z + width / 10.0)
+                    .collect(Collectors.toSet());
+            List<Map.Entry<Point3d, Integer>> found = kdTree.query().featureBounds("x", x, x + width).featureBounds("y", y, y + width)
+                    .featureBounds("z", z, z + width / 10.0).execute();
+            assertEquals(expected.size(), found.size());
+            assertEquals(expected, found.stream().map(Map.Entry::getKey).collect(Collectors.toSet()));
+        }
+        assertEquals(oracle.size(), kdTree.query().featureBounds("z", -5.0, 5.0).execute().size());
+    }
+
+    @Test
+    public void writesMatchTheOracle() {
+        KDTree<Point2d, Integer> kdTree = KDTree.of(Point2d.class, Integer.class).withZOrderIndex().build();
+        Random random = new Random(13);
+        Map<Point2d, Integer> oracle = new HashMap<>();
+        for (int i = 0; i < 30_000; i++) {
+            Point2d key = Point2d.builder().x(random.nextInt(300)).y(random.nextInt(300)).build();
+            int operation = random.nextInt(10);
+            if (operation < 6) {
+                if (oracle.putIfAbsent(key, i) == null) {
+                    kdTree.insert(key, i);
+                } else {
+                    try {
+                        kdTree.insert(key, i);
+                        fail();
+                    } catch (KDTreeRuntimeException e) {
+                        assertEquals(KDTreeExceptionType.KEY_EXISTS, e.getExceptionType());
+                    }
+                }
+            } else if (operation < 8) {
+                assertEquals(oracle.remove(key) != null, kdTree.delete(key));
+            } else if (operation < 9) {
+                assertEquals(oracle.put(key, -i), kdTree.upsert(key, -i));
+            } else {
+                Point2d target = Point2d.builder().x(random.nextInt(300)).y(random.nextInt(300)).build();
+                if (oracle.containsKey(key) && !oracle.containsKey(target)) {
+                    assertTrue(kdTree.move(key, target));
+                    oracle.put(target, oracle.remove(key));
+                }
+            }
+        }
+        assertEquals(oracle.size(), kdTree.size());
+        oracle.forEach((key, value) -> assertEquals(value, kdTree.get(key).getValue()));
+        kdTree.balance();
+        assertTrue(kdTree.score() > 0.99);
+        Map<Point2d, Integer> found = kdTree.query().featureBounds("x", 50, 150).execute().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        assertEquals(oracle.entrySet().stream().filter(entry -> entry.getKey().getX() >= 50 && entry.getKey().getX() <= 150)
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)), found);
+
+        KDTree<Point2d, Integer> other = KDTree.of(Point2d.class, Integer.class).build();
+        KDTree<Point2d, Integer> plain = KDTree.of(Point2d.class, Integer.class).build();
+        oracle.forEach(plain::insert);
+        for (int i = 0; i < 2_000; i++) {
+            Point2d key = Point2d.builder().x(random.nextInt(300)).y(random.nextInt(300)).build();
+            if (!other.containsKey(key)) {
+                other.insert(key, i);
+            }
+        }
+        KDTreeJoinCondition<Point2d> condition = KDTreeJoinCondition.<Point2d>create().maxDistance("x", 2).maxDistance("y", 2);
+        assertEquals(join(plain, other, condition), join(kdTree, other, condition));
+        assertEquals(join(other, plain, condition), join(other, kdTree, condition));
+    }
+
+    @Test
+    public void expiredEntriesAreEvicted() {
+        MutableClock clock = new MutableClock();
+        KDTree<Point2d, Integer> kdTree = KDTree.of(Point2d.class, Integer.class).withZOrderIndex().withClock(clock).build();
+        for (int i = 0; i < 1_000; i++) {
+            kdTree.insert(Point2d.builder().x(i).y(i).build(), i, Duration.ofSeconds(i % 2 == 0 ? 10 : 60));
+        }
+        clock.advance(Duration.ofSeconds(30));
+        assertEquals(500, kdTree.query().execute().size());
+        assertNull(kdTree.get(Point2d.builder().x(0).y(0).build()));
+        assertEquals(500, kdTree.evictExpired());
+        assertEquals(500, kdTree.size());
+        assertTrue(kdTree.move(Point2d.builder().x(1).y(1).build(), Point2d.builder().x(-1).y(-1).build()));
+        clock.advance(Duration.ofSeconds(60));
+        assertEquals(0, kdTree.query().execute().size());
+        assertEquals(500, kdTree.evictExpired());
+    }
+
+    @Test
+    public void nonNumericFeaturesAreRejected() {
+        try {
+            KDTree.of(Named.class, Integer.class).withZOrderIndex().build();
+            fail();
+        } catch (KDTreeRuntimeException e) {
+            assertEquals(KDTreeExceptionType.FEATURE_NOT_NUMERIC, e.getExceptionType());
+        }
+    }
+
+    @Test
+    public void incompatibleOptionsAreRejected() {
+        List<Supplier<KDTreeBuilder<Point2d, Integer>>> builders = Arrays.asList(
+                () -> KDTree.of(Point2d.class, Integer.class).withZOrderIndex().withLogarithmicMethod(100),
+                () -> KDTree.of(Point2d.class, Integer.class).withZOrderIndex().withHashIndex(),
+                () -> KDTree.of(Point2d.class, Integer.class).withZOrderIndex().withTombstoneDeletes(0.5),
+                () -> KDTree.of(Point2d.class, Integer.class).withZOrderIndex().withConcurrentWriters(),
+                () -> KDTree.of(Point2d.class, Integer.class).withLogarithmicMethod(100).withTombstoneDeletes(0.5),
+                () -> KDTree.of(Point2d.class, Integer.class).withLogarithmicMethod(100).withConcurrentWriters());
+        for (Supplier<KDTreeBuilder<Point2d, Integer>> builder : builders) {
+            try {
+                builder.get().build();
+                fail();
+            } catch (KDTreeRuntimeException e) {
+                assertEquals(KDTreeExceptionType.INCOMPATIBLE_OPTIONS, e.getExceptionType());
+            }
+        }
+    }
+
+    private Set<String> join(KDTree<Point2d, Integer> left, KDTree<Point2d, Integer> right, KDTreeJoinCondition<Point2d> condition) {
+        Set<String> matches = new HashSet<>();
+        left.join(right, condition, (entry, other) -> assertTrue(matches.add(entry.getKey() + "/" + other.getKey())));
+        return matches;
+    }
+}
@@ -0,0 +1,158 @@
+package com.alessandrosestito.loadtest;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.impl.KDTreeBuilder;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+@Builder(toBuilder = true)
+@Getter
+@ToString
+public class KDTreeLoadConfig {
+
+    public enum Backend {
+        PLAIN,
+        TOMBSTONE,
+        HASH_INDEX,
+        LOGARITHMIC,
+        Z_ORDER,
+        CONCURRENT_WRITERS
+    }
+
+    @Builder.Default
+    private final Backend backend = Backend.PLAIN;
+    @Builder.Default
+    private final int readers = 4;
+    @Builder.Default
+    private final int writers = 2;
+    @Builder.Default
+    private final Duration duration = Duration.ofSeconds(10);
+    @Builder.Default
+    private final int preload = 100_000;
+    @Builder.Default
+    private final int side = 10_000;
+    @Builder.Default
+    private final KeyDistribution distribution = KeyDistribution.UNIFORM;
+    @Builder.Default
+    private final Map<LoadOperation, Integer> mix = parseMix("insert=20,delete=10,get=40,range=25,nearest=5");
+    @Builder.Default
+    private final int rangeWidth = 200;
+    @Builder.Default
+    private final int neighbours = 10;
+    // null disables the auto balance
+    @Builder.Default
+    private final Duration autoBalance = Duration.ofSeconds(1);
+    // every reader checks one read out of verifyEvery against the brute force oracle, 0 disables the online checks
+    @Builder.Default
+    private final int verifyEvery = 16;
+    @Builder.Default
+    private final long seed = 42;
+
+    public KDTree<LoadPoint, Integer> buildTree() {
+        KDTreeBuilder<LoadPoint, Integer> builder = KDTree.of(LoadPoint.class, Integer.class);
+        if (autoBalance != null) {
+            builder.withAutoBalance(autoBalance);
+        }
+        switch (backend) {
+            case TOMBSTONE:
+                builder.withTombstoneDeletes(0.3);
+                break;
+            case HASH_INDEX:
+                builder.withHashIndex();
+                break;
+            case LOGARITHMIC:
+                builder.withLogarithmicMethod(4096);
+                break;
+            case Z_ORDER:
+                builder.withZOrderIndex();
+                break;
+            case CONCURRENT_WRITERS:
+                builder.withConcurrentWriters().withTombstoneDeletes(0.3).withHashIndex();
+                break;
+            default:
+                break;
+        }
+        return builder.build();
+    }
+
+    // --name=value arguments, the names are the fields of the configuration
+    public static KDTreeLoadConfig fromArgs(String[] args) {
+        KDTreeLoadConfigBuilder builder = builder();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("arguments are --name=value, found " + arg);
+            }
+            String value = arg.substring(separator + 1);
+            switch (arg.substring(2, separator)) {
+                case "backend":
+                    builder.backend(Backend.valueOf(value.toUpperCase(Locale.ROOT)));
+                    break;
+                case "readers":
+                    builder.readers(Integer.parseInt(value));
+                    break;
+                case "writers":
+                    builder.writers(Integer.parseInt(value));
+                    break;
+                case "duration":
+                    builder.duration(Duration.parse(value));
+                    break;
+                case "preload":
+                    builder.preload(Integer.parseInt(value));
+                    break;
+                case "side":
+                    builder.side(Integer.parseInt(value));
+                    break;
+                case "distribution":
+                    builder.distribution(KeyDistribution.valueOf(value.toUpperCase(Locale.ROOT)));
+                    break;
+                case "mix":
+                    builder.mix(parseMix(value));
+                    break;
+                case "rangeWidth":
+                    builder.rangeWidth(Integer.parseInt(value));
+                    break;
+                case "neighbours":
+                    builder.neighbours(Integer.parseInt(value));
+                    break;
+                case "autoBalance":
+                    builder.autoBalance(value.equalsIgnoreCase("off") ? null : Duration.parse(value));
+                    break;
+                case "verifyEvery":
+                    builder.verifyEvery(Integer.parseInt(value));
+                    break;
+                case "seed":
+                    builder.seed(Long.parseLong(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown argument " + arg);
+            }
+        }
+        return builder.build();
+    }
+
+    // operation=weight pairs separated by commas, the missing operations are never run
+    public static Map<LoadOperation, Integer> parseMix(String mix) {
+        Map<LoadOperation, Integer> weights = new EnumMap<>(LoadOperation.class);
+        for (String pair : mix.split(",")) {
+            String[] parts = pair.trim().split("=");
+            weights.put(LoadOperation.valueOf(parts[0].trim().toUpperCase(Locale.ROOT)), Integer.parseInt(parts[1].trim()));
+        }
+        return weights;
+    }
+
+    // the operations of the readers or of the writers repeated by weight, so a uniform pick follows the mix
+    LoadOperation[] operations(boolean write) {
+        return mix.entrySet().stream()
+                .filter(entry -> entry.getKey().isWrite() == write)
+                .flatMap(entry -> Collections.nCopies(entry.getValue(), entry.getKey()).stream())
+                .toArray(LoadOperation[]::new);
+    }
+}
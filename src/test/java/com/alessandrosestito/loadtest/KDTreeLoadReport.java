@@ -0,0 +1,38 @@
+package com.alessandrosestito.loadtest;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+@AllArgsConstructor
+@Getter
+public class KDTreeLoadReport {
+    private final KDTreeLoadConfig config;
+    private final Map<LoadOperation, LatencyHistogram> latencies;
+    private final Duration elapsed;
+    private final long finalSize;
+    private final List<String> failures;
+
+    public long getOperations() {
+        return latencies.values().stream().mapToLong(LatencyHistogram::getCount).sum();
+    }
+
+    public String format() {
+        StringBuilder report = new StringBuilder();
+        double seconds = Math.max(1, elapsed.toMillis()) / 1000.0;
+        report.append(String.format(Locale.ROOT, "backend=%s distribution=%s readers=%d writers=%d autoBalance=%s elapsed=%.1fs size=%d%n",
+                config.getBackend(), config.getDistribution(), config.getReaders(), config.getWriters(), config.getAutoBalance(), seconds, finalSize));
+        report.append(String.format(Locale.ROOT, "%-10s %12s %12s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "ops/s", "mean(us)", "p50(us)", "p99(us)", "p999(us)", "max(us)"));
+        latencies.forEach((operation, histogram) -> report.append(String.format(Locale.ROOT, "%-10s %12d %12.0f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                operation, histogram.getCount(), histogram.getCount() / seconds, histogram.getMean() / 1000,
+                histogram.percentile(0.5) / 1000.0, histogram.percentile(0.99) / 1000.0, histogram.percentile(0.999) / 1000.0, histogram.getMax() / 1000.0)));
+        report.append(String.format(Locale.ROOT, "total ops/s %.0f, oracle failures %d%n", getOperations() / seconds, failures.size()));
+        failures.forEach(failure -> report.append("  ").append(failure).append(System.lineSeparator()));
+        return report.toString();
+    }
+}
@@ -0,0 +1,301 @@
+package com.alessandrosestito.loadtest;
+
+import com.alessandrosestito.kdtree.KDTree;
+import com.alessandrosestito.kdtree.impl.KDTreeNearestQuery;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+
+// N readers and M writers on a shared tree for a fixed time. The keys are split in z classes: class 0 is preloaded and
+// never written, so the readers can check every answer against it while the writers run, and every writer owns a
+// class and keeps its own oracle, so the whole tree is checked against a brute force scan once the load is over.
+//
+// mvn -Pload-test test -Dload.args="--backend=plain --readers=8 --writers=2 --duration=PT30S --distribution=zipf"
+public class KDTreeLoadRunner {
+
+    private static final int MAX_FAILURES = 100;
+
+    private final KDTreeLoadConfig config;
+    private final KeyDistribution.Generator generator;
+    private final int owners;
+    private final Map<LoadPoint, Integer> stable = new HashMap<>();
+    private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+    private LoadPoint[] stableKeys;
+    private KDTree<LoadPoint, Integer> kdTree;
+
+    private KDTreeLoadRunner(KDTreeLoadConfig config) {
+        this.config = config;
+        generator = config.getDistribution().generator(config.getSide(), config.getSeed());
+        owners = config.getWriters() + 1;
+    }
+
+    public static void main(String[] args) {
+        KDTreeLoadReport report = run(KDTreeLoadConfig.fromArgs(args));
+        System.out.print(report.format());
+        if (!report.getFailures().isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    public static KDTreeLoadReport run(KDTreeLoadConfig config) {
+        return new KDTreeLoadRunner(config).run();
+    }
+
+    private KDTreeLoadReport run() {
+        Random random = new Random(config.getSeed());
+        for (long attempts = 0; stable.size() < config.getPreload() && attempts < 10L * config.getPreload(); attempts++) {
+            stable.putIfAbsent(KeyDistribution.Generator.owned(generator.next(random), 0, owners), stable.size());
+        }
+        stableKeys = stable.keySet().toArray(new LoadPoint[0]);
+        kdTree = config.buildTree();
+        kdTree.insertAll(new ArrayList<>(stable.entrySet()));
+
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < config.getReaders(); i++) {
+            workers.add(new Worker(workers.size(), 0, config.operations(false)));
+        }
+        for (int i = 0; i < config.getWriters(); i++) {
+            workers.add(new Worker(workers.size(), i + 1, config.operations(true)));
+        }
+        workers.removeIf(worker -> worker.operations.length == 0);
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (Worker worker : workers) {
+            Thread thread = new Thread(() -> worker.run(start), "kdtree-load-" + worker.id);
+            thread.start();
+            threads.add(thread);
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail("interrupted while waiting for " + thread.getName());
+            }
+        }
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - started);
+
+        Map<LoadOperation, LatencyHistogram> latencies = new EnumMap<>(LoadOperation.class);
+        Map<LoadPoint, Integer> expected = new HashMap<>(stable);
+        for (Worker worker : workers) {
+            worker.latencies.forEach((operation, histogram) -> latencies.computeIfAbsent(operation, o -> new LatencyHistogram()).add(histogram));
+            expected.putAll(worker.owned);
+        }
+        verifyQuiescent(expected, random);
+        long finalSize = kdTree.size();
+        kdTree.close();
+        return new KDTreeLoadReport(config, latencies, elapsed, finalSize, new ArrayList<>(failures));
+    }
+
+    // the whole content, some ranges and some nearest searches against a brute force scan of the oracle
+    private void verifyQuiescent(Map<LoadPoint, Integer> expected, Random random) {
+        if (kdTree.size() != expected.size()) {
+            fail("size " + kdTree.size() + " instead of " + expected.size());
+        }
+        expected.forEach((key, value) -> {
+            Map.Entry<LoadPoint, Integer> entry = kdTree.get(key);
+            if (entry == null || !value.equals(entry.getValue())) {
+                fail("get " + key + " returned " + entry + " instead of " + value);
+            }
+        });
+        List<LoadPoint> keys = new ArrayList<>(expected.keySet());
+        for (int i = 0; i < 50; i++) {
+            int[] box = box(generator.target(random));
+            Map<LoadPoint, Integer> found = new HashMap<>();
+            range(box).forEach(entry -> found.put(entry.getKey(), entry.getValue()));
+            Map<LoadPoint, Integer> inBox = keys.stream().filter(key -> isInBox(key, box)).collect(Collectors.toMap(key -> key, expected::get));
+            if (!inBox.equals(found)) {
+                fail("range " + Arrays.toString(box) + " returned " + found.size() + " entries instead of " + inBox.size());
+            }
+        }
+        for (int i = 0; i < 20 && !keys.isEmpty(); i++) {
+            LoadPoint target = generator.target(random);
+            List<Long> distances = kdTree.nearest(KDTreeNearestQuery.create(target, config.getNeighbours())).getEntries().stream()
+                    .map(entry -> entry.getKey().squaredDistance(target)).collect(Collectors.toList());
+            List<Long> nearest = keys.stream().map(key -> key.squaredDistance(target)).sorted().limit(config.getNeighbours()).collect(Collectors.toList());
+            if (!nearest.equals(distances)) {
+                fail("nearest " + target + " returned distances " + distances + " instead of " + nearest);
+            }
+        }
+    }
+
+    private List<Map.Entry<LoadPoint, Integer>> range(int[] box) {
+        return kdTree.query().featureBounds("x", box[0], box[1]).featureBounds("y", box[2], box[3]).featureBounds("z", box[4], box[5]).execute();
+    }
+
+    private int[] box(LoadPoint center) {
+        int half = config.getRangeWidth() / 2;
+        return new int[]{center.getX() - half, center.getX() + half, center.getY() - half, center.getY() + half, center.getZ() - half, center.getZ() + half};
+    }
+
+    private static boolean isInBox(LoadPoint key, int[] box) {
+        return key.getX() >= box[0] && key.getX() <= box[1] && key.getY() >= box[2] && key.getY() <= box[3] && key.getZ() >= box[4] && key.getZ() <= box[5];
+    }
+
+    private void fail(String failure) {
+        if (failures.size() < MAX_FAILURES) {
+            failures.add(failure);
+        }
+    }
+
+    private class Worker {
+        private final int id;
+        private final int owner;
+        private final LoadOperation[] operations;
+        private final Random random;
+        private final Map<LoadOperation, LatencyHistogram> latencies = new EnumMap<>(LoadOperation.class);
+        private final Map<LoadPoint, Integer> owned = new HashMap<>();
+        private final List<LoadPoint> ownedKeys = new ArrayList<>();
+        private long reads;
+
+        private Worker(int id, int owner, LoadOperation[] operations) {
+            this.id = id;
+            this.owner = owner;
+            this.operations = operations;
+            random = new Random(config.getSeed() * 31 + id);
+        }
+
+        private void run(CountDownLatch start) {
+            try {
+                start.await();
+                long deadline = System.nanoTime() + config.getDuration().toNanos();
+                while (System.nanoTime() - deadline < 0) {
+                    LoadOperation operation = operations[random.nextInt(operations.length)];
+                    switch (operation) {
+                        case INSERT:
+                            insert();
+                            break;
+                        case DELETE:
+                            delete();
+                            break;
+                        case GET:
+                            get();
+                            break;
+                        case RANGE:
+                            range();
+                            break;
+                        default:
+                            nearest();
+                            break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                fail("worker " + id + " failed: " + e);
+            }
+        }
+
+        // a key already owned is overwritten with upsert
+        private void insert() {
+            LoadPoint key = KeyDistribution.Generator.owned(generator.next(random), owner, owners);
+            int value = random.nextInt();
+            boolean present = owned.containsKey(key);
+            long started = System.nanoTime();
+            if (present) {
+                kdTree.upsert(key, value);
+            } else {
+                kdTree.insert(key, value);
+            }
+            record(LoadOperation.INSERT, started);
+            if (owned.put(key, value) == null) {
+                ownedKeys.add(key);
+            }
+        }
+
+        private void delete() {
+            if (ownedKeys.isEmpty()) {
+                return;
+            }
+            int index = random.nextInt(ownedKeys.size());
+            LoadPoint key = ownedKeys.get(index);
+            ownedKeys.set(index, ownedKeys.get(ownedKeys.size() - 1));
+            ownedKeys.remove(ownedKeys.size() - 1);
+            owned.remove(key);
+            long started = System.nanoTime();
+            boolean deleted = kdTree.delete(key);
+            record(LoadOperation.DELETE, started);
+            if (!deleted) {
+                fail("delete of the owned key " + key + " returned false");
+            }
+        }
+
+        private void get() {
+            if (stableKeys.length == 0) {
+                return;
+            }
+            LoadPoint key = stableKeys[random.nextInt(stableKeys.length)];
+            long started = System.nanoTime();
+            Map.Entry<LoadPoint, Integer> entry = kdTree.get(key);
+            record(LoadOperation.GET, started);
+            if (entry == null || !stable.get(key).equals(entry.getValue())) {
+                fail("get of the stable key " + key + " returned " + entry);
+            }
+        }
+
+        // every result is in the box, once, and no stable key of the box is missing
+        private void range() {
+            int[] box = box(generator.target(random));
+            long started = System.nanoTime();
+            List<Map.Entry<LoadPoint, Integer>> found = KDTreeLoadRunner.this.range(box);
+            record(LoadOperation.RANGE, started);
+            if (!isVerified()) {
+                return;
+            }
+            Set<LoadPoint> keys = new HashSet<>();
+            for (Map.Entry<LoadPoint, Integer> entry : found) {
+                if (!isInBox(entry.getKey(), box) || !keys.add(entry.getKey())) {
+                    fail("range " + Arrays.toString(box) + " returned " + entry.getKey() + " outside of the box or twice");
+                }
+            }
+            for (LoadPoint key : stableKeys) {
+                if (isInBox(key, box) && !keys.contains(key)) {
+                    fail("range " + Arrays.toString(box) + " missed the stable key " + key);
+                }
+            }
+        }
+
+        // the tree always holds the stable keys, so its k-th neighbour cannot be farther than the k-th stable one
+        private void nearest() {
+            LoadPoint target = generator.target(random);
+            long started = System.nanoTime();
+            List<Map.Entry<LoadPoint, Integer>> found = kdTree.nearest(KDTreeNearestQuery.create(target, config.getNeighbours())).getEntries();
+            record(LoadOperation.NEAREST, started);
+            if (!isVerified() || stableKeys.length < config.getNeighbours()) {
+                return;
+            }
+            PriorityQueue<Long> kept = new PriorityQueue<>(Comparator.reverseOrder());
+            for (LoadPoint key : stableKeys) {
+                kept.add(key.squaredDistance(target));
+                if (kept.size() > config.getNeighbours()) {
+                    kept.poll();
+                }
+            }
+            long last = -1;
+            for (Map.Entry<LoadPoint, Integer> entry : found) {
+                long distance = entry.getKey().squaredDistance(target);
+                if (distance < last) {
+                    fail("nearest " + target + " is not sorted by distance");
+                }
+                last = distance;
+            }
+            if (found.size() != config.getNeighbours() || last > kept.peek()) {
+                fail("nearest " + target + " returned " + found.size() + " entries up to distance " + last + ", the stable keys reach " + kept.peek());
+            }
+        }
+
+        private boolean isVerified() {
+            return config.getVerifyEvery() > 0 && reads++ % config.getVerifyEvery() == 0;
+        }
+
+        private void record(LoadOperation operation, long started) {
+            latencies.computeIfAbsent(operation, o -> new LatencyHistogram()).record(System.nanoTime() - started);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.alessandrosestito.loadtest;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public enum KeyDistribution {
+    UNIFORM,
+    // a few thousand hot spots chosen with a Zipf law of exponent 1.1
+    ZIPF,
+    // gaussian clouds around sixteen centers
+    CLUSTERED,
+    // x grows with every generated key, the worst case for a tree that is never balanced
+    SORTED;
+
+    private static final int HOT_SPOTS = 4096;
+    private static final int CLUSTERS = 16;
+
+    public Generator generator(int side, long seed) {
+        return new Generator(this, side, seed);
+    }
+
+    // shared by all the threads of a run, next is thread safe as long as every thread passes its own random
+    public static class Generator {
+        private final KeyDistribution distribution;
+        private final int side;
+        private final int[][] centers;
+        private final double[] cumulative;
+        private final AtomicInteger sequence = new AtomicInteger();
+
+        private Generator(KeyDistribution distribution, int side, long seed) {
+            this.distribution = distribution;
+            this.side = side;
+            Random random = new Random(seed);
+            int count = distribution == ZIPF ? HOT_SPOTS : CLUSTERS;
+            centers = new int[count][3];
+            for (int[] center : centers) {
+                for (int axis = 0; axis < 3; axis++) {
+                    center[axis] = random.nextInt(side);
+                }
+            }
+            cumulative = new double[HOT_SPOTS];
+            double sum = 0;
+            for (int rank = 0; rank < HOT_SPOTS; rank++) {
+                sum += 1 / Math.pow(rank + 1, 1.1);
+                cumulative[rank] = sum;
+            }
+            for (int rank = 0; rank < HOT_SPOTS; rank++) {
+                cumulative[rank] /= sum;
+            }
+        }
+
+        public LoadPoint next(Random random) {
+            switch (distribution) {
+                case ZIPF:
+                    int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+                    int[] spot = centers[rank < 0 ? Math.min(HOT_SPOTS - 1, -rank - 1) : rank];
+                    return point(spot[0] + random.nextInt(9) - 4, spot[1] + random.nextInt(9) - 4, spot[2] + random.nextInt(9) - 4);
+                case CLUSTERED:
+                    int[] center = centers[random.nextInt(CLUSTERS)];
+                    double sigma = side / 50.0;
+                    return point((int) (center[0] + random.nextGaussian() * sigma), (int) (center[1] + random.nextGaussian() * sigma),
+                            (int) (center[2] + random.nextGaussian() * sigma));
+                case SORTED:
+                    return point(sequence.getAndIncrement(), random.nextInt(side), random.nextInt(side));
+                default:
+                    return point(random.nextInt(side), random.nextInt(side), random.nextInt(side));
+            }
+        }
+
+        // a point drawn for reading: for the sorted distribution only the x already generated are targeted
+        public LoadPoint target(Random random) {
+            if (distribution == SORTED) {
+                return point(random.nextInt(Math.max(1, sequence.get())), random.nextInt(side), random.nextInt(side));
+            }
+            return next(random);
+        }
+
+        // moves the point to the z class of its owner, so the owners never write the same keys
+        public static LoadPoint owned(LoadPoint point, int owner, int owners) {
+            int z = point.getZ() - Math.floorMod(point.getZ(), owners) + owner;
+            return point(point.getX(), point.getY(), z);
+        }
+
+        private static LoadPoint point(int x, int y, int z) {
+            return LoadPoint.builder().x(x).y(y).z(z).build();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.alessandrosestito.loadtest;
+
+public enum LoadOperation {
+    INSERT(true),
+    DELETE(true),
+    GET(false),
+    RANGE(false),
+    NEAREST(false);
+
+    private final boolean write;
+
+    LoadOperation(boolean write) {
+        this.write = write;
+    }
+
+    public boolean isWrite() {
+        return write;
+    }
+}
@@ -0,0 +1,22 @@
+package com.alessandrosestito.loadtest;
+
+import com.alessandrosestito.kdtree.impl.KDTreeKey;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+@Data
+@Builder
+@EqualsAndHashCode(callSuper = false)
+public class LoadPoint extends KDTreeKey {
+    private final Integer x;
+    private final Integer y;
+    private final Integer z;
+
+    long squaredDistance(LoadPoint other) {
+        long dx = x - other.x;
+        long dy = y - other.y;
+        long dz = z - other.z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+}